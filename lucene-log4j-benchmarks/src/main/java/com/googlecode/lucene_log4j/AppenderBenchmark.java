@@ -0,0 +1,147 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.RollingFileAppender;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the append throughput of {@link FilePosTrackingRollingFileAppender}
+ * against a plain {@link RollingFileAppender} at 1, 4 and 16 logging threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppenderBenchmark {
+
+  /**
+   * The appender under test: "plain" for the {@link RollingFileAppender}
+   * baseline, "lucene" or "lucene-async" for
+   * {@link FilePosTrackingRollingFileAppender} without and with
+   * <code>AsyncIndexing</code>, "lucene-ring" with a
+   * <code>RingBufferSize</code> as well.
+   */
+  @Param({ "plain", "lucene", "lucene-async", "lucene-ring" })
+  public String appender;
+
+  /**
+   * The directory logged to.
+   */
+  private File dir;
+
+  /**
+   * The appender under test.
+   */
+  private RollingFileAppender target;
+
+  /**
+   * The event each thread logs over and over.
+   */
+  @State(Scope.Thread)
+  public static class Event {
+
+    /**
+     * The event, bound to the logging thread name.
+     */
+    private LoggingEvent event;
+
+    /**
+     * Creates the event on the logging thread.
+     */
+    @Setup
+    public void setUp() {
+      event = new LoggingEvent(Logger.class.getName(), Logger
+          .getLogger(AppenderBenchmark.class), org.apache.log4j.Level.ERROR,
+          "Benchmark message", null);
+    }
+  }
+
+  /**
+   * Creates the appender.
+   *
+   * @throws IOException
+   *           If the log directory cannot be created.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = BenchmarkFiles.createTempDir("appender-benchmark");
+    if ("plain".equals(appender)) {
+      target = new RollingFileAppender();
+      BenchmarkFiles.configure(target, dir, 2);
+    } else if ("lucene-ring".equals(appender)) {
+      FilePosTrackingRollingFileAppender ring = new FilePosTrackingRollingFileAppender();
+      ring.setRingBufferSize(4096);
+      ring.setIndexFlushInterval(5000);
+      BenchmarkFiles.configure(ring, dir, 2);
+      target = ring;
+    } else {
+      target = BenchmarkFiles.createAppender(dir, 2, "lucene-async"
+          .equals(appender), 5000);
+    }
+  }
+
+  /**
+   * Closes the appender and deletes its files.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    target.close();
+    BenchmarkFiles.deleteRecursively(dir);
+  }
+
+  /**
+   * Appends from a single thread.
+   *
+   * @param event
+   *          The thread's event.
+   */
+  @Benchmark
+  @Threads(1)
+  public void append1Thread(Event event) {
+    target.doAppend(event.event);
+  }
+
+  /**
+   * Appends from 4 threads.
+   *
+   * @param event
+   *          The thread's event.
+   */
+  @Benchmark
+  @Threads(4)
+  public void append4Threads(Event event) {
+    target.doAppend(event.event);
+  }
+
+  /**
+   * Appends from 16 threads.
+   *
+   * @param event
+   *          The thread's event.
+   */
+  @Benchmark
+  @Threads(16)
+  public void append16Threads(Event event) {
+    target.doAppend(event.event);
+  }
+}
@@ -0,0 +1,128 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.RollingFileAppender;
+
+/**
+ * File helpers shared by the benchmarks.
+ */
+final class BenchmarkFiles {
+
+  /**
+   * The layout of the benchmark log statements.
+   */
+  static final String CONVERSION_PATTERN = "%d %-5p [%t] %c - %m%n";
+
+  /**
+   * Not instantiable.
+   */
+  private BenchmarkFiles() {
+  }
+
+  /**
+   * Returns a directory under <code>java.io.tmpdir</code> that survives the
+   * benchmark, for data too slow to generate on every run.
+   *
+   * @param name
+   *          The directory name.
+   *
+   * @return the directory, created if needed.
+   *
+   * @throws IOException
+   *           If the directory cannot be created.
+   */
+  static File getDataDir(String name) throws IOException {
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+        "lucene-log4j-benchmarks" + File.separatorChar + name);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+
+    return dir;
+  }
+
+  /**
+   * Creates an empty temporary directory.
+   *
+   * @param prefix
+   *          The directory name prefix.
+   *
+   * @return the directory.
+   *
+   * @throws IOException
+   *           If the directory cannot be created.
+   */
+  static File createTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Could not create " + dir);
+    }
+
+    return dir;
+  }
+
+  /**
+   * Deletes a file or directory recursively.
+   *
+   * @param file
+   *          The file or directory to delete.
+   */
+  static void deleteRecursively(File file) {
+    File[] list = file.listFiles();
+    if (list != null) {
+      for (int i = 0; i < list.length; i++) {
+        deleteRecursively(list[i]);
+      }
+    }
+
+    file.delete();
+  }
+
+  /**
+   * Creates and activates a {@link FilePosTrackingRollingFileAppender}.
+   *
+   * @param dir
+   *          The directory to log to.
+   * @param maxBackupIndex
+   *          The amount of generations to keep.
+   * @param asyncIndexing
+   *          True to index on the indexer thread.
+   * @param indexFlushInterval
+   *          The milliseconds between index flushes, 0 to only flush on
+   *          signal.
+   *
+   * @return the appender.
+   */
+  static FilePosTrackingRollingFileAppender createAppender(File dir,
+      int maxBackupIndex, boolean asyncIndexing, int indexFlushInterval) {
+    FilePosTrackingRollingFileAppender appender = new FilePosTrackingRollingFileAppender();
+    appender.setAsyncIndexing(asyncIndexing);
+    appender.setIndexFlushInterval(indexFlushInterval);
+    configure(appender, dir, maxBackupIndex);
+
+    return appender;
+  }
+
+  /**
+   * Configures and activates a rolling file appender.
+   *
+   * @param appender
+   *          The appender.
+   * @param dir
+   *          The directory to log to.
+   * @param maxBackupIndex
+   *          The amount of generations to keep.
+   */
+  static void configure(RollingFileAppender appender, File dir,
+      int maxBackupIndex) {
+    appender.setName("benchmark");
+    appender.setLayout(new PatternLayout(CONVERSION_PATTERN));
+    appender.setFile(new File(dir, "server.log").getPath());
+    appender.setMaxFileSize("1GB");
+    appender.setMaxBackupIndex(maxBackupIndex);
+    appender.activateOptions();
+  }
+}
@@ -0,0 +1,44 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results to
+ * <code>jmh-result.json</code> unless another result format or file is
+ * given. E.g. <code>java -jar benchmarks.jar AppenderBenchmark</code>.
+ */
+public final class BenchmarkRunner {
+
+  /**
+   * Not instantiable.
+   */
+  private BenchmarkRunner() {
+  }
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args
+   *          The JMH command line arguments.
+   *
+   * @throws Exception
+   *           If the benchmarks cannot be run.
+   */
+  public static void main(String[] args) throws Exception {
+    List arguments = new ArrayList(Arrays.asList(args));
+    if (!arguments.contains("-rf")) {
+      arguments.add("-rf");
+      arguments.add("json");
+    }
+    if (!arguments.contains("-rff")) {
+      arguments.add("-rff");
+      arguments.add("jmh-result.json");
+    }
+
+    Main.main((String[]) arguments.toArray(new String[arguments.size()]));
+  }
+}
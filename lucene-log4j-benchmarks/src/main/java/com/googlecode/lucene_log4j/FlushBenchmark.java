@@ -0,0 +1,91 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of committing the index, i.e. the close and reopen of the
+ * {@link org.apache.lucene.index.IndexWriter} the flush thread does. Subtract
+ * {@link #appendOnly()} from {@link #appendAndFlush()} to get the flush
+ * alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+  /**
+   * The directory logged to.
+   */
+  private File dir;
+
+  /**
+   * The appender under test, flushing only when signaled.
+   */
+  private FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The event logged before every flush, so there is something to commit.
+   */
+  private LoggingEvent event;
+
+  /**
+   * Creates the appender.
+   *
+   * @throws IOException
+   *           If the log directory cannot be created.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = BenchmarkFiles.createTempDir("flush-benchmark");
+    appender = BenchmarkFiles.createAppender(dir, 2, false, 0);
+    event = new LoggingEvent(Logger.class.getName(), Logger
+        .getLogger(FlushBenchmark.class), org.apache.log4j.Level.ERROR,
+        "Benchmark message", null);
+  }
+
+  /**
+   * Closes the appender and deletes its files.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    appender.close();
+    BenchmarkFiles.deleteRecursively(dir);
+  }
+
+  /**
+   * Appends one event.
+   */
+  @Benchmark
+  public void appendOnly() {
+    appender.doAppend(event);
+  }
+
+  /**
+   * Appends one event and commits it.
+   */
+  @Benchmark
+  public void appendAndFlush() {
+    appender.doAppend(event);
+    FilePosTrackingRollingFileAppender.signalFlush();
+  }
+}
@@ -0,0 +1,118 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of {@link FilePosTrackingRollingFileAppender#rollOver()}
+ * with a given amount of backup generations on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RollOverBenchmark {
+
+  /**
+   * The amount of log statements in every generation.
+   */
+  private static final int EVENTS_PER_GENERATION = 100;
+
+  /**
+   * The amount of backup generations.
+   */
+  @Param({ "1", "5", "20" })
+  public int maxBackupIndex;
+
+  /**
+   * How generations are rolled over: renamed, or switched to the next
+   * sequence number.
+   */
+  @Param({ "rename", "sequence" })
+  public String rollOverMode;
+
+  /**
+   * The directory logged to.
+   */
+  private File dir;
+
+  /**
+   * The appender under test.
+   */
+  private FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The event filling every generation.
+   */
+  private LoggingEvent event;
+
+  /**
+   * Creates the appender and all its backup generations.
+   *
+   * @throws IOException
+   *           If the log directory cannot be created.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = BenchmarkFiles.createTempDir("rollover-benchmark");
+    appender = new FilePosTrackingRollingFileAppender();
+    appender.setRollOverMode(rollOverMode);
+    BenchmarkFiles.configure(appender, dir, maxBackupIndex);
+    event = new LoggingEvent(Logger.class.getName(), Logger
+        .getLogger(RollOverBenchmark.class), org.apache.log4j.Level.ERROR,
+        "Benchmark message", null);
+
+    for (int i = 0; i < maxBackupIndex; i++) {
+      fillGeneration();
+      appender.rollOver();
+    }
+  }
+
+  /**
+   * Logs to the current generation so the next rollover has work to do.
+   */
+  @Setup(Level.Invocation)
+  public void fillGeneration() {
+    for (int i = 0; i < EVENTS_PER_GENERATION; i++) {
+      appender.doAppend(event);
+    }
+  }
+
+  /**
+   * Closes the appender and deletes its files.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    appender.close();
+    BenchmarkFiles.deleteRecursively(dir);
+  }
+
+  /**
+   * Rolls the generations over.
+   */
+  @Benchmark
+  public void rollOver() {
+    synchronized (appender) {
+      appender.rollOver();
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.DateField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-generation search of {@link LuceneLogSearchServlet}: the
+ * query, the offset lookup and the streaming of the matched log fragments,
+ * against a generated generation of the given amount of log statements.
+ * <p>
+ * Generations are generated once and kept under
+ * <code>java.io.tmpdir/lucene-log4j-benchmarks</code>, since the largest takes
+ * minutes to build. Every query matches one statement out of
+ * {@link #THREADS}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+  /**
+   * The amount of distinct thread names logging.
+   */
+  private static final int THREADS = 64;
+
+  /**
+   * The amount of log statements printed by a paged search.
+   */
+  private static final int PAGE_SIZE = 100;
+
+  /**
+   * Discards the search output.
+   */
+  private static final OutputStream NULL_OUTPUT = new OutputStream() {
+
+    public void write(int b) {
+    }
+
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  /**
+   * The amount of log statements in the generation.
+   */
+  @Param({ "10000", "1000000", "10000000" })
+  public int events;
+
+  /**
+   * How log fragments are read: "channel" or "mapped".
+   */
+  @Param({ "channel", "mapped" })
+  public String reader;
+
+  /**
+   * The log file of the generation.
+   */
+  private File log;
+
+  /**
+   * The index directory of the generation.
+   */
+  private String indexDir;
+
+  /**
+   * The searchers, as the servlet keeps them.
+   */
+  private IndexSearcherCache searcherCache;
+
+  /**
+   * The mapped log files, null when reading through a channel.
+   */
+  private MappedLogCache mappedLogs;
+
+  /**
+   * The generations, of which only the rotated one exists.
+   */
+  private LogGenerations generations;
+
+  /**
+   * Matches the statements of one thread.
+   */
+  private Query query;
+
+  /**
+   * Generates the generation if it is not there yet.
+   *
+   * @throws IOException
+   *           If the generation cannot be written.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    File dir = BenchmarkFiles.getDataDir("search-" + events);
+    log = new File(dir, "server.log.1");
+    indexDir = new File(dir, "server.log_lucene.1").getPath();
+
+    File complete = new File(dir, "complete");
+    if (!complete.exists()) {
+      generate();
+      complete.createNewFile();
+    }
+
+    searcherCache = new IndexSearcherCache();
+    mappedLogs = "mapped".equals(reader) ? new MappedLogCache() : null;
+    generations = new LogGenerations(new File(dir, "server.log_lucene")
+        .getPath(), new File(dir, "server.log").getPath(), 1, searcherCache,
+        mappedLogs, new BlockCache(BlockCache.DEFAULT_CAPACITY));
+    query = new TermQuery(new Term("uuid", "thread-7"));
+  }
+
+  /**
+   * Writes a log file and its index the way
+   * {@link FilePosTrackingRollingFileAppender} does, without the appender
+   * overhead.
+   *
+   * @throws IOException
+   *           If the generation cannot be written.
+   */
+  private void generate() throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(log));
+    IndexWriter writer = new IndexWriter(indexDir, new WhitespaceAnalyzer(),
+        true);
+    writer.minMergeDocs = 10000;
+    try {
+      long offset = 0;
+      long time = System.currentTimeMillis() - events;
+      for (int i = 0; i < events; i++) {
+        String thread = "thread-" + (i % THREADS);
+        byte[] line = (time + i + " ERROR [" + thread
+            + "] benchmark - Benchmark message " + i + "\n").getBytes("UTF-8");
+        out.write(line);
+
+        Document doc = new Document();
+        doc.add(Field.Keyword("uuid", thread));
+        doc.add(Field.UnIndexed(
+            FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD, "" + offset));
+        offset += line.length;
+        doc.add(Field.UnIndexed(
+            FilePosTrackingRollingFileAppender.FILE_END_OFFSET_FIELD, ""
+                + offset));
+        doc.add(Field.Keyword(FilePosTrackingRollingFileAppender.TIMESTAMP_FIELD,
+            DateField.timeToString(time + i)));
+        writer.addDocument(doc);
+      }
+    } finally {
+      writer.close();
+      out.close();
+    }
+  }
+
+  /**
+   * Closes the searchers.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    searcherCache.evictAll();
+    if (mappedLogs != null) {
+      mappedLogs.evictAll();
+    }
+  }
+
+  /**
+   * Searches and prints the first page of matches.
+   *
+   * @return the amount of printed log statements.
+   *
+   * @throws Exception
+   *           If the generation cannot be searched.
+   */
+  @Benchmark
+  public int searchPage() throws Exception {
+    return search(PAGE_SIZE);
+  }
+
+  /**
+   * Searches and prints all matches.
+   *
+   * @return the amount of printed log statements.
+   *
+   * @throws Exception
+   *           If the generation cannot be searched.
+   */
+  @Benchmark
+  public int searchAll() throws Exception {
+    return search(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Searches and prints matches.
+   *
+   * @param limit
+   *          The most matches to print.
+   *
+   * @return the amount of printed log statements.
+   *
+   * @throws Exception
+   *           If the generation cannot be searched.
+   */
+  private int search(int limit) throws Exception {
+    GenerationSearch search = new GenerationSearch(generations, 1, 0, query,
+        null, -1);
+    search.setLimit(limit);
+    try {
+      search.call();
+
+      LogFragmentWriter writer = new LogFragmentWriter(NULL_OUTPUT, "UTF-8",
+          "UTF-8", null, 0);
+      writer.writeFragments(search.getSource(), search.getStarts(), search
+          .getEnds(), search.getCount());
+    } finally {
+      search.close();
+    }
+
+    return search.getCount();
+  }
+}
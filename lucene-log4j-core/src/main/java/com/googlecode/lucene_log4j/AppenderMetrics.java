@@ -0,0 +1,447 @@
+package com.googlecode.lucene_log4j;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Collects the metrics of a {@link FilePosTrackingRollingFileAppender} and
+ * exposes them over JMX as
+ * <code>com.googlecode.lucene_log4j:type=FilePosTrackingRollingFileAppender,name=&lt;appender name&gt;</code>.
+ * Recording is lock free and does not allocate, so it stays on.
+ */
+public final class AppenderMetrics implements AppenderMetricsMBean {
+
+  /**
+   * The JMX domain of the metrics.
+   */
+  static final String DOMAIN = "com.googlecode.lucene_log4j";
+
+  /**
+   * The appender measured.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * Tells where the generations measured live.
+   */
+  private final GenerationRoller roller;
+
+  /**
+   * Holds the queues measured.
+   */
+  private final IndexingPipeline pipeline;
+
+  /**
+   * Indexed documents.
+   */
+  private final StripedCounter documentsIndexed = new StripedCounter();
+
+  /**
+   * Documents rejected by populateDocument.
+   */
+  private final StripedCounter documentsRejected = new StripedCounter();
+
+  /**
+   * Log statements left out of the index by the admission options.
+   */
+  private final StripedCounter documentsNotAdmitted = new StripedCounter();
+
+  /**
+   * Documents that failed to be added.
+   */
+  private final StripedCounter indexingErrors = new StripedCounter();
+
+  /**
+   * Time spent in addDocument.
+   */
+  private final LatencyHistogram addDocument = new LatencyHistogram();
+
+  /**
+   * Time spent waiting on the appender monitor.
+   */
+  private final LatencyHistogram monitorWait = new LatencyHistogram();
+
+  /**
+   * Index commits.
+   */
+  private final LatencyHistogram flush = new LatencyHistogram();
+
+  /**
+   * The time of the last index commit.
+   */
+  private volatile long lastFlushTime;
+
+  /**
+   * Failed attempts to open the index.
+   */
+  private final StripedCounter indexOpenRetries = new StripedCounter();
+
+  /**
+   * Deleted write lock files.
+   */
+  private final StripedCounter lockFileDeletions = new StripedCounter();
+
+  /**
+   * Re-created corrupt indexes.
+   */
+  private final StripedCounter indexRecreations = new StripedCounter();
+
+  /**
+   * Rollovers.
+   */
+  private final LatencyHistogram rollOver = new LatencyHistogram();
+
+  /**
+   * Optimizations of rolled over indexes.
+   */
+  private final LatencyHistogram optimize = new LatencyHistogram();
+
+  /**
+   * The name the metrics are registered with, null if not registered.
+   */
+  private ObjectName objectName;
+
+  /**
+   * Creates the metrics of an appender.
+   *
+   * @param appender
+   *          The appender measured.
+   * @param roller
+   *          Tells where the generations measured live.
+   * @param pipeline
+   *          Holds the queues measured.
+   */
+  AppenderMetrics(FilePosTrackingRollingFileAppender appender,
+      GenerationRoller roller, IndexingPipeline pipeline) {
+    this.appender = appender;
+    this.roller = roller;
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, replacing those of
+   * a previous appender with the same name.
+   */
+  synchronized void register() {
+    if (objectName != null) {
+      return;
+    }
+
+    try {
+      ObjectName name = new ObjectName(DOMAIN
+          + ":type=FilePosTrackingRollingFileAppender,name="
+          + ObjectName.quote("" + appender.getName()));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        server.registerMBean(this, name);
+      } catch (InstanceAlreadyExistsException e) {
+        // A reconfiguration replaced the appender
+        server.unregisterMBean(name);
+        server.registerMBean(this, name);
+      }
+      objectName = name;
+    } catch (JMException e) {
+      LogLog.warn("Could not register metrics for appender "
+          + appender.getName(), e);
+    }
+  }
+
+  /**
+   * Unregisters the metrics, if registered.
+   */
+  synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      LogLog.warn("Could not unregister metrics for appender "
+          + appender.getName(), e);
+    }
+    objectName = null;
+  }
+
+  /**
+   * Records a document added to the index.
+   *
+   * @param nanos
+   *          The time spent in addDocument.
+   */
+  void documentIndexed(long nanos) {
+    documentsIndexed.increment();
+    addDocument.record(nanos);
+  }
+
+  /**
+   * Records a log statement populateDocument chose not to index.
+   */
+  void documentRejected() {
+    documentsRejected.increment();
+  }
+
+  /**
+   * Records a log statement the admission options left out of the index.
+   */
+  void documentNotAdmitted() {
+    documentsNotAdmitted.increment();
+  }
+
+  /**
+   * Records a document that could not be added to the index.
+   */
+  void indexingFailed() {
+    indexingErrors.increment();
+  }
+
+  /**
+   * Records the time a logging thread waited for the appender monitor.
+   *
+   * @param nanos
+   *          The wait.
+   */
+  void monitorWaited(long nanos) {
+    monitorWait.record(nanos);
+  }
+
+  /**
+   * Records an index commit.
+   *
+   * @param nanos
+   *          The commit duration.
+   */
+  void flushed(long nanos) {
+    flush.record(nanos);
+    lastFlushTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Records a failed attempt to open the index.
+   */
+  void indexOpenRetried() {
+    indexOpenRetries.increment();
+  }
+
+  /**
+   * Records a deleted write lock file.
+   */
+  void lockFileDeleted() {
+    lockFileDeletions.increment();
+  }
+
+  /**
+   * Records a re-created corrupt index.
+   */
+  void indexRecreated() {
+    indexRecreations.increment();
+  }
+
+  /**
+   * Records a rollover.
+   *
+   * @param nanos
+   *          The rollover duration.
+   */
+  void rolledOver(long nanos) {
+    rollOver.record(nanos);
+  }
+
+  /**
+   * Records the optimization of a rolled over index.
+   *
+   * @param nanos
+   *          The optimization duration, throttling included.
+   */
+  void optimized(long nanos) {
+    optimize.record(nanos);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getDocumentsIndexed() {
+    return documentsIndexed.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getDocumentsRejected() {
+    return documentsRejected.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getDocumentsNotAdmitted() {
+    return documentsNotAdmitted.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getIndexingErrors() {
+    return indexingErrors.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getAddDocumentMeanMicros() {
+    return addDocument.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getAddDocumentP99Micros() {
+    return addDocument.getPercentileMicros(99);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getAddDocumentMaxMicros() {
+    return addDocument.getMaxMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getMonitorWaitTotalMicros() {
+    return monitorWait.getTotalMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getMonitorWaitP99Micros() {
+    return monitorWait.getPercentileMicros(99);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getMonitorWaitMaxMicros() {
+    return monitorWait.getMaxMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getFlushes() {
+    return flush.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getLastFlushTime() {
+    return lastFlushTime;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getFlushMeanMicros() {
+    return flush.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getFlushMaxMicros() {
+    return flush.getMaxMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getIndexOpenRetries() {
+    return indexOpenRetries.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getLockFileDeletions() {
+    return lockFileDeletions.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getIndexRecreations() {
+    return indexRecreations.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getRollOvers() {
+    return rollOver.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getRollOverMeanMicros() {
+    return rollOver.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getRollOverMaxMicros() {
+    return rollOver.getMaxMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getIndexOptimizations() {
+    return optimize.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getIndexOptimizeMeanMicros() {
+    return optimize.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long[] getIndexSizes() {
+    return roller.getIndexSizes();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public int getIndexQueueDepth() {
+    return pipeline.getIndexQueueDepth();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getIndexQueueDropped() {
+    return pipeline.getIndexQueueDropped();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public int getRingBufferDepth() {
+    return pipeline.getRingBufferDepth();
+  }
+}
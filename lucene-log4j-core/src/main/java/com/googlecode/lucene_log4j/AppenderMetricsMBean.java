@@ -0,0 +1,200 @@
+package com.googlecode.lucene_log4j;
+
+/**
+ * The JMX view of the metrics of a {@link FilePosTrackingRollingFileAppender}.
+ * Durations are in microseconds, percentiles are estimates.
+ */
+public interface AppenderMetricsMBean {
+
+  /**
+   * Returns the amount of documents added to the index.
+   *
+   * @return the indexed document count.
+   */
+  long getDocumentsIndexed();
+
+  /**
+   * Returns the amount of log statements
+   * {@link FilePosTrackingRollingFileAppender#populateDocument} chose not to
+   * index.
+   *
+   * @return the rejected document count.
+   */
+  long getDocumentsRejected();
+
+  /**
+   * Returns the amount of log statements written to the log file but left
+   * out of the index by the <code>Index*</code> admission options.
+   *
+   * @return the not admitted document count.
+   */
+  long getDocumentsNotAdmitted();
+
+  /**
+   * Returns the amount of documents that could not be added to the index.
+   *
+   * @return the failed document count.
+   */
+  long getIndexingErrors();
+
+  /**
+   * Returns the mean time spent adding a document to the index.
+   *
+   * @return microseconds.
+   */
+  double getAddDocumentMeanMicros();
+
+  /**
+   * Returns the 99th percentile of the time spent adding a document.
+   *
+   * @return microseconds.
+   */
+  long getAddDocumentP99Micros();
+
+  /**
+   * Returns the longest time spent adding a document.
+   *
+   * @return microseconds.
+   */
+  long getAddDocumentMaxMicros();
+
+  /**
+   * Returns the total time logging threads waited for the appender monitor.
+   *
+   * @return microseconds.
+   */
+  long getMonitorWaitTotalMicros();
+
+  /**
+   * Returns the 99th percentile of the time a logging thread waited for the
+   * appender monitor.
+   *
+   * @return microseconds.
+   */
+  long getMonitorWaitP99Micros();
+
+  /**
+   * Returns the longest time a logging thread waited for the appender
+   * monitor.
+   *
+   * @return microseconds.
+   */
+  long getMonitorWaitMaxMicros();
+
+  /**
+   * Returns the amount of index commits.
+   *
+   * @return the flush count.
+   */
+  long getFlushes();
+
+  /**
+   * Returns the time of the last index commit.
+   *
+   * @return milliseconds since epoch, 0 if none yet.
+   */
+  long getLastFlushTime();
+
+  /**
+   * Returns the mean duration of an index commit.
+   *
+   * @return microseconds.
+   */
+  double getFlushMeanMicros();
+
+  /**
+   * Returns the longest duration of an index commit.
+   *
+   * @return microseconds.
+   */
+  long getFlushMaxMicros();
+
+  /**
+   * Returns the amount of failed attempts to open the index.
+   *
+   * @return the retry count.
+   */
+  long getIndexOpenRetries();
+
+  /**
+   * Returns the amount of stale write lock files deleted to open the index.
+   *
+   * @return the deletion count.
+   */
+  long getLockFileDeletions();
+
+  /**
+   * Returns the amount of times a corrupt index was re-created.
+   *
+   * @return the re-creation count.
+   */
+  long getIndexRecreations();
+
+  /**
+   * Returns the amount of rollovers.
+   *
+   * @return the rollover count.
+   */
+  long getRollOvers();
+
+  /**
+   * Returns the mean duration of a rollover.
+   *
+   * @return microseconds.
+   */
+  double getRollOverMeanMicros();
+
+  /**
+   * Returns the longest duration of a rollover.
+   *
+   * @return microseconds.
+   */
+  long getRollOverMaxMicros();
+
+  /**
+   * Returns the amount of rolled over indexes merged down to one segment.
+   *
+   * @return the optimization count.
+   */
+  long getIndexOptimizations();
+
+  /**
+   * Returns the mean duration of optimizing a rolled over index, throttling
+   * included.
+   *
+   * @return microseconds.
+   */
+  double getIndexOptimizeMeanMicros();
+
+  /**
+   * Returns the size on disk of the index of every generation, the live one
+   * first.
+   *
+   * @return bytes per generation, 0 for missing generations.
+   */
+  long[] getIndexSizes();
+
+  /**
+   * Returns the amount of log statements waiting to be indexed when
+   * <code>AsyncIndexing</code> is on.
+   *
+   * @return the queue depth, 0 when indexing synchronously.
+   */
+  int getIndexQueueDepth();
+
+  /**
+   * Returns the amount of log statements dropped from the index because the
+   * queue was full.
+   *
+   * @return the dropped count.
+   */
+  long getIndexQueueDropped();
+
+  /**
+   * Returns the amount of log statements waiting to be written when
+   * <code>RingBufferSize</code> is set.
+   *
+   * @return the ring depth, 0 when writing on the logging threads.
+   */
+  int getRingBufferDepth();
+}
@@ -0,0 +1,327 @@
+package com.googlecode.lucene_log4j;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * AsyncIndexer takes Lucene indexing off the logging threads of a
+ * {@link FilePosTrackingRollingFileAppender}. Log statements are recorded as
+ * (file offsets, event) pairs into a bounded circular buffer and a dedicated
+ * thread drains them in batches into the appender's index.
+ * <p>
+ * Every drain (the indexer thread, {@link #drain()} and the
+ * {@link #POLICY_INLINE} fallback) takes its events out of the buffer while
+ * holding the appender's index lock, so documents always reach the index in
+ * the same order as the log statements reached the file.
+ * <p>
+ * Indexing must never take the appender lock: with {@link #POLICY_BLOCK} a
+ * logging thread waits for room in the queue while holding it, and with
+ * {@link #POLICY_INLINE} it takes the index lock while holding it. The
+ * indexer thread only calls {@link
+ * FilePosTrackingRollingFileAppender#writeToLucene(long, long, LoggingEvent)},
+ * which must not log through log4j either, since log4j locks the loggers a
+ * statement goes through and the logger repository while shutting down.
+ * Reports go through {@link LogLog}. Log statements reaching the appender
+ * while indexing anyway, e.g. from <code>populateDocument</code>, are dropped
+ * and reported rather than wait for its lock.
+ */
+final class AsyncIndexer implements Runnable {
+
+  /**
+   * Block the logging thread until there is room in the queue.
+   */
+  static final int POLICY_BLOCK = 0;
+
+  /**
+   * Discard the event from the index (it is still written to the log file).
+   */
+  static final int POLICY_DROP = 1;
+
+  /**
+   * Index the queued events and the current one on the logging thread.
+   */
+  static final int POLICY_INLINE = 2;
+
+  /**
+   * The appender whose index we are feeding.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The lock guarding the appender's {@link org.apache.lucene.index.IndexWriter}.
+   */
+  private final Object indexLock;
+
+  /**
+   * The file offsets of the queued events.
+   */
+  private final long[] offsets;
+
+  /**
+   * The file offsets right after the queued events.
+   */
+  private final long[] endOffsets;
+
+  /**
+   * The queued events.
+   */
+  private final LoggingEvent[] events;
+
+  /**
+   * Index in the circular buffer of the oldest queued event.
+   */
+  private int first;
+
+  /**
+   * Amount of queued events.
+   */
+  private int size;
+
+  /**
+   * What to do when the queue is full. One of the POLICY_ constants.
+   */
+  private final int queueFullPolicy;
+
+  /**
+   * The file offsets of the batch being indexed. Guarded by {@link #indexLock}.
+   */
+  private final long[] batchOffsets;
+
+  /**
+   * The end offsets of the batch being indexed. Guarded by {@link #indexLock}.
+   */
+  private final long[] batchEndOffsets;
+
+  /**
+   * The events of the batch being indexed. Guarded by {@link #indexLock}.
+   */
+  private final LoggingEvent[] batchEvents;
+
+  /**
+   * Amount of events dropped from the index.
+   */
+  private long dropped;
+
+  /**
+   * Set when the appender is closed, to stop the indexer thread.
+   */
+  private boolean closed;
+
+  /**
+   * Creates and starts an AsyncIndexer.
+   *
+   * @param appender
+   *          The appender whose index we are feeding.
+   * @param indexLock
+   *          The lock guarding the appender's index writer.
+   * @param queueSize
+   *          The maximum amount of events waiting to be indexed.
+   * @param batchSize
+   *          The maximum amount of events indexed in one go.
+   * @param queueFullPolicy
+   *          One of the POLICY_ constants.
+   */
+  AsyncIndexer(FilePosTrackingRollingFileAppender appender, Object indexLock,
+      int queueSize, int batchSize, int queueFullPolicy) {
+    this.appender = appender;
+    this.indexLock = indexLock;
+    this.queueFullPolicy = queueFullPolicy;
+    offsets = new long[queueSize];
+    endOffsets = new long[queueSize];
+    events = new LoggingEvent[queueSize];
+    batchOffsets = new long[Math.min(batchSize, queueSize)];
+    batchEndOffsets = new long[batchOffsets.length];
+    batchEvents = new LoggingEvent[batchOffsets.length];
+
+    Thread thread = new Thread(this, "FilePosTrackingRollingFileAppender-indexer-"
+        + appender.getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queues an event for indexing. Everything the index might need from the
+   * logging thread's context is captured before returning.
+   *
+   * @param fileOffset
+   *          The position of the log statement in the log file.
+   * @param endOffset
+   *          The position right after the log statement in the log file.
+   * @param event
+   *          The {@link LoggingEvent} to be indexed.
+   */
+  void enqueue(long fileOffset, long endOffset, LoggingEvent event) {
+    // Same snapshot as AsyncAppender: these are resolved lazily from the
+    // current thread
+    event.getThreadName();
+    event.getNDC();
+    event.getMDCCopy();
+    event.getRenderedMessage();
+
+    synchronized (this) {
+      while (size == events.length && !closed) {
+        if (queueFullPolicy == POLICY_DROP) {
+          if (dropped++ == 0) {
+            LogLog.warn("Index queue full for appender " + appender.getName()
+                + ", dropping events from the index");
+          }
+
+          return;
+        }
+
+        if (queueFullPolicy == POLICY_INLINE) {
+          break;
+        }
+
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+
+      if (size < events.length && !closed) {
+        int last = (first + size) % events.length;
+        offsets[last] = fileOffset;
+        endOffsets[last] = endOffset;
+        events[last] = event;
+        size++;
+        notifyAll();
+
+        return;
+      }
+    }
+
+    // No room left: index everything on this thread, keeping the file order
+    synchronized (indexLock) {
+      indexPending(events.length);
+      appender.writeToLucene(fileOffset, endOffset, event);
+    }
+  }
+
+  /**
+   * Indexes every queued event on the calling thread. Used before the index is
+   * closed so that no offset ends up in the wrong generation's index.
+   */
+  void drain() {
+    synchronized (indexLock) {
+      indexPending(events.length);
+    }
+  }
+
+  /**
+   * Stops the indexer thread once every queued event has been indexed.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+
+    drain();
+  }
+
+  /**
+   * Returns the amount of events waiting to be indexed.
+   *
+   * @return the queue depth.
+   */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the amount of events dropped from the index.
+   *
+   * @return the dropped count.
+   */
+  synchronized long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * The indexer thread loop.
+   */
+  public void run() {
+    while (waitForEvents()) {
+      synchronized (indexLock) {
+        indexPending(batchEvents.length);
+      }
+    }
+  }
+
+  /**
+   * Waits until there are events to index.
+   *
+   * @return false if the indexer has been closed.
+   */
+  private synchronized boolean waitForEvents() {
+    while (size == 0 && !closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+
+    return !closed;
+  }
+
+  /**
+   * Indexes queued events in batches. Must be called holding
+   * {@link #indexLock}.
+   *
+   * @param max
+   *          The maximum amount of events to index.
+   */
+  private void indexPending(int max) {
+    int remaining = max;
+    while (remaining > 0) {
+      int count = takeBatch(Math.min(remaining, batchEvents.length));
+      if (count == 0) {
+        return;
+      }
+
+      for (int i = 0; i < count; i++) {
+        try {
+          appender.writeToLucene(batchOffsets[i], batchEndOffsets[i],
+              batchEvents[i]);
+        } catch (RuntimeException e) {
+          // Keep the indexer thread alive, or blocked loggers never resume
+          LogLog.error("Could not index log statement at " + batchOffsets[i]
+              + " for appender " + appender.getName(), e);
+        }
+        batchEvents[i] = null;
+      }
+      remaining -= count;
+    }
+  }
+
+  /**
+   * Moves up to {@code max} events from the queue into the batch buffers.
+   *
+   * @param max
+   *          The maximum amount of events to take.
+   *
+   * @return The amount of events taken.
+   */
+  private synchronized int takeBatch(int max) {
+    int count = Math.min(size, max);
+    for (int i = 0; i < count; i++) {
+      batchOffsets[i] = offsets[first];
+      batchEndOffsets[i] = endOffsets[first];
+      batchEvents[i] = events[first];
+      events[first] = null;
+      first = (first + 1) % events.length;
+    }
+    size -= count;
+
+    if (count > 0) {
+      // Wake up logging threads blocked on a full queue
+      notifyAll();
+    }
+
+    return count;
+  }
+}
@@ -0,0 +1,401 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A rolled over log file compressed in independent blocks, kept next to it
+ * with the {@link #SUFFIX} added, e.g. <code>server.log.1.blz</code>.
+ * <p>
+ * The log is cut into blocks of a fixed amount of bytes, the last one
+ * shorter, and every block is deflated on its own. After a 24 byte header
+ * (magic number, {@link #SCHEMA_VERSION}, block size, block count and the
+ * size of the log) comes a table with the file offset of every compressed
+ * block plus one for the end of the last, then the compressed blocks. The
+ * offsets indexed for the log stay valid: the block holding offset <i>n</i>
+ * is <code>n / blockSize</code>, so a reader only inflates the blocks holding
+ * the log statements it needs.
+ * <p>
+ * Instances are opened for reading and can be shared by threads.
+ */
+public final class BlockCompressedLog {
+
+  /**
+   * Added to the log file name to form the compressed file name.
+   */
+  public static final String SUFFIX = ".blz";
+
+  /**
+   * The file layout written by this version.
+   */
+  public static final int SCHEMA_VERSION = 1;
+
+  /**
+   * The default amount of log bytes compressed together.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Added to the compressed file name while it is being written.
+   */
+  private static final String TMP_SUFFIX = ".tmp";
+
+  /**
+   * Identifies the file, "LLBZ".
+   */
+  private static final int MAGIC = 0x4c4c425a;
+
+  /**
+   * The size of the header in bytes.
+   */
+  private static final int HEADER_SIZE = 24;
+
+  /**
+   * The file being read.
+   */
+  private final RandomAccessFile file;
+
+  /**
+   * The amount of log bytes in every block but the last.
+   */
+  private final int blockSize;
+
+  /**
+   * The size of the log.
+   */
+  private final long size;
+
+  /**
+   * Where every compressed block starts, plus where the last one ends.
+   */
+  private final long[] offsets;
+
+  /**
+   * Creates a BlockCompressedLog.
+   *
+   * @param file
+   *          The file being read.
+   * @param blockSize
+   *          The amount of log bytes in every block but the last.
+   * @param size
+   *          The size of the log.
+   * @param offsets
+   *          Where every compressed block starts, plus where the last one
+   *          ends.
+   */
+  private BlockCompressedLog(RandomAccessFile file, int blockSize, long size,
+      long[] offsets) {
+    this.file = file;
+    this.blockSize = blockSize;
+    this.size = size;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Returns the compressed file of a log file.
+   *
+   * @param log
+   *          The log file.
+   *
+   * @return the compressed file, which may not exist.
+   */
+  public static File getCompressedFile(File log) {
+    return new File(log.getPath() + SUFFIX);
+  }
+
+  /**
+   * Returns the name of the log file a compressed file, or one being written,
+   * was made from.
+   *
+   * @param name
+   *          A file name.
+   *
+   * @return the log file name, or {@code name} itself if it is not a
+   *         compressed file name.
+   */
+  static String getLogName(String name) {
+    if (name.endsWith(SUFFIX + TMP_SUFFIX)) {
+      return name.substring(0, name.length() - SUFFIX.length()
+          - TMP_SUFFIX.length());
+    } else if (name.endsWith(SUFFIX)) {
+      return name.substring(0, name.length() - SUFFIX.length());
+    }
+
+    return name;
+  }
+
+  /**
+   * Compresses a log file that is not written anymore. The compressed file
+   * is written under a temporary name and renamed once complete; the log file
+   * is left for the caller to delete.
+   *
+   * @param log
+   *          The log file.
+   * @param blockSize
+   *          The amount of log bytes compressed together.
+   *
+   * @throws IOException
+   *           If the log file cannot be read or the compressed file written.
+   */
+  public static void compress(File log, int blockSize) throws IOException {
+    compress(log, blockSize, null);
+  }
+
+  /**
+   * Compresses a log file that is not written anymore, giving up as soon as
+   * the compressor is paused.
+   *
+   * @param log
+   *          The log file.
+   * @param blockSize
+   *          The amount of log bytes compressed together.
+   * @param compressor
+   *          The compressor to check between blocks, or null.
+   *
+   * @throws IOException
+   *           If the log file cannot be read, the compressed file written or
+   *           the compressor was paused.
+   */
+  static void compress(File log, int blockSize, LogCompressor compressor)
+      throws IOException {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size " + blockSize);
+    }
+
+    File compressed = getCompressedFile(log);
+    File tmp = new File(compressed.getPath() + TMP_SUFFIX);
+    boolean complete = false;
+    RandomAccessFile in = new RandomAccessFile(log, "r");
+    try {
+      RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+      try {
+        write(in, out, blockSize, compressor);
+        // The log file goes once renamed, so the blocks must be on disk
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+
+      // Windows does not rename over an existing file
+      compressed.delete();
+      if (!tmp.renameTo(compressed)) {
+        throw new IOException("Could not rename " + tmp + " to " + compressed);
+      }
+      complete = true;
+    } finally {
+      in.close();
+      if (!complete) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes the compressed blocks of a log file and their table.
+   *
+   * @param in
+   *          The log file.
+   * @param out
+   *          The compressed file, overwritten.
+   * @param blockSize
+   *          The amount of log bytes compressed together.
+   * @param compressor
+   *          The compressor to check between blocks, or null.
+   *
+   * @throws IOException
+   *           If the log file cannot be read, the compressed file written or
+   *           the compressor was paused.
+   */
+  private static void write(RandomAccessFile in, RandomAccessFile out,
+      int blockSize, LogCompressor compressor) throws IOException {
+    long size = in.length();
+    int blockCount = (int) ((size + blockSize - 1) / blockSize);
+    long[] offsets = new long[blockCount + 1];
+
+    out.setLength(0);
+    long position = HEADER_SIZE + 8L * offsets.length;
+    out.seek(position);
+
+    byte[] block = new byte[blockSize];
+    byte[] deflated = new byte[blockSize];
+    Deflater deflater = new Deflater();
+    try {
+      for (int i = 0; i < blockCount; i++) {
+        if (compressor != null) {
+          compressor.checkAborted();
+        }
+
+        int length = (int) Math.min(blockSize, size - (long) i * blockSize);
+        in.readFully(block, 0, length);
+
+        offsets[i] = position;
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+          int count = deflater.deflate(deflated);
+          out.write(deflated, 0, count);
+          position += count;
+        }
+      }
+      offsets[blockCount] = position;
+    } finally {
+      deflater.end();
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8 * offsets.length);
+    header.putInt(MAGIC);
+    header.putInt(SCHEMA_VERSION);
+    header.putInt(blockSize);
+    header.putInt(blockCount);
+    header.putLong(size);
+    for (int i = 0; i < offsets.length; i++) {
+      header.putLong(offsets[i]);
+    }
+    out.seek(0);
+    out.write(header.array());
+  }
+
+  /**
+   * Opens a compressed log file for reading.
+   *
+   * @param compressed
+   *          The compressed file.
+   *
+   * @return the opened file, to be closed by the caller.
+   *
+   * @throws IOException
+   *           If the file cannot be read or is not a compressed log.
+   */
+  public static BlockCompressedLog open(File compressed) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(compressed, "r");
+    try {
+      if (file.length() < HEADER_SIZE || file.readInt() != MAGIC
+          || file.readInt() != SCHEMA_VERSION) {
+        throw new IOException("Not a compressed log: " + compressed);
+      }
+
+      int blockSize = file.readInt();
+      int blockCount = file.readInt();
+      long size = file.readLong();
+      if (blockSize <= 0 || blockCount < 0
+          || (long) blockCount * blockSize < size) {
+        throw new IOException("Corrupt compressed log: " + compressed);
+      }
+
+      long[] offsets = new long[blockCount + 1];
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = file.readLong();
+      }
+
+      return new BlockCompressedLog(file, blockSize, size, offsets);
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the size of the log.
+   *
+   * @return the amount of log bytes.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the amount of log bytes in every block but the last.
+   *
+   * @return the block size.
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Returns the amount of blocks.
+   *
+   * @return the block count.
+   */
+  public int getBlockCount() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Returns the amount of log bytes in a block.
+   *
+   * @param block
+   *          The block, from 0 to {@link #getBlockCount()} excluded.
+   *
+   * @return the length of the block.
+   */
+  public int getBlockLength(int block) {
+    return (int) Math.min(blockSize, size - (long) block * blockSize);
+  }
+
+  /**
+   * Inflates a block.
+   *
+   * @param block
+   *          The block, from 0 to {@link #getBlockCount()} excluded.
+   * @param dst
+   *          Receives the log bytes, at least {@link #getBlockLength(int)}
+   *          long.
+   *
+   * @return the amount of log bytes.
+   *
+   * @throws IOException
+   *           If the block cannot be read or is corrupt.
+   */
+  public int readBlock(int block, byte[] dst) throws IOException {
+    int length = getBlockLength(block);
+    ByteBuffer deflated = ByteBuffer.allocate((int) (offsets[block + 1]
+        - offsets[block]));
+    FileChannel channel = file.getChannel();
+    while (deflated.hasRemaining()) {
+      if (channel.read(deflated, offsets[block] + deflated.position()) < 0) {
+        throw new IOException("Truncated compressed log at block " + block);
+      }
+    }
+
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated.array());
+      int inflated = 0;
+      while (inflated < length && !inflater.finished()) {
+        int count = inflater.inflate(dst, inflated, length - inflated);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (inflated != length) {
+        throw new IOException("Corrupt compressed log at block " + block);
+      }
+
+      return length;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed log at block " + block + ": "
+          + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Closes the file.
+   *
+   * @throws IOException
+   *           If the file cannot be closed.
+   */
+  public void close() throws IOException {
+    file.close();
+  }
+}
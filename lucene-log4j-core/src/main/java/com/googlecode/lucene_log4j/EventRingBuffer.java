@@ -0,0 +1,281 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * EventRingBuffer takes file writing off the logging threads of a
+ * {@link FilePosTrackingRollingFileAppender} without a lock on the way in.
+ * A logging thread claims a sequence number with one atomic increment,
+ * stores its event in the matching slot and publishes it. A single writer
+ * thread takes published events in sequence order and appends them in
+ * batches, so the log file, and the offsets indexed for it, follow the claim
+ * order exactly.
+ * <p>
+ * Logging threads only wait when the ring is full, i.e. the writer thread is
+ * a whole ring behind. The writer thread hands the written statements to the
+ * {@link AsyncIndexer}, the second consumer, in the same order.
+ * <p>
+ * Closing sets the {@link #CLOSED} bit of the claim counter in the same
+ * atomic step that reads it, so every event is either claimed before and
+ * written by the writer thread, or turned away and appended by its logging
+ * thread.
+ */
+final class EventRingBuffer implements Runnable {
+
+  /**
+   * How long a logging thread waits for a slot before checking again, in
+   * nanoseconds.
+   */
+  private static final long FULL_WAIT = 10000;
+
+  /**
+   * How long the writer thread sleeps without being woken up, in
+   * nanoseconds.
+   */
+  private static final long IDLE_WAIT = 100000000;
+
+  /**
+   * Set in {@link #next} once closed. Sequence numbers claimed afterwards are
+   * not used.
+   */
+  private static final long CLOSED = 1L << 62;
+
+  /**
+   * The appender the events are written to.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * Whether logging threads capture the caller location of their events.
+   */
+  private final boolean locationInfo;
+
+  /**
+   * The slots, a power of two of them.
+   */
+  private final LoggingEvent[] events;
+
+  /**
+   * The sequence number last published in every slot, -1 if none.
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * Maps a sequence number to its slot.
+   */
+  private final int mask;
+
+  /**
+   * The next sequence number to claim, along with the {@link #CLOSED} bit.
+   */
+  private final AtomicLong next = new AtomicLong();
+
+  /**
+   * The last sequence number taken out of its slot, which may be claimed
+   * again one ring later.
+   */
+  private volatile long consumed = -1;
+
+  /**
+   * The last sequence number written to the log file.
+   */
+  private volatile long written = -1;
+
+  /**
+   * The events of the batch being written. Only used by the writer thread.
+   */
+  private final LoggingEvent[] batch;
+
+  /**
+   * The writer thread.
+   */
+  private final Thread writer;
+
+  /**
+   * Set while the writer thread sleeps, so logging threads wake it up.
+   */
+  private volatile boolean idle;
+
+  /**
+   * The sequence number claimed last before closing, plus one. The writer
+   * thread stops once it has written up to it.
+   */
+  private volatile long closedAt = Long.MAX_VALUE;
+
+  /**
+   * Creates and starts an EventRingBuffer.
+   *
+   * @param appender
+   *          The appender the events are written to.
+   * @param size
+   *          The least amount of slots, rounded up to a power of two.
+   * @param batchSize
+   *          The maximum amount of events written in one go.
+   * @param locationInfo
+   *          Whether logging threads capture the caller location of their
+   *          events.
+   */
+  EventRingBuffer(FilePosTrackingRollingFileAppender appender, int size,
+      int batchSize, boolean locationInfo) {
+    this.appender = appender;
+    this.locationInfo = locationInfo;
+
+    int capacity = 1;
+    while (capacity < size) {
+      capacity <<= 1;
+    }
+    events = new LoggingEvent[capacity];
+    published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.set(i, -1);
+    }
+    mask = capacity - 1;
+    batch = new LoggingEvent[Math.max(1, Math.min(batchSize, capacity))];
+
+    writer = new Thread(this, "FilePosTrackingRollingFileAppender-writer-"
+        + appender.getName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues an event for writing. Everything the layout and the index might
+   * need from the logging thread's context is captured before returning.
+   *
+   * @param event
+   *          The {@link LoggingEvent} to be written.
+   *
+   * @return false if the ring is closed, or the writer thread is gone, and
+   *         the event was not queued.
+   */
+  boolean publish(LoggingEvent event) {
+    if ((next.get() & CLOSED) != 0 || !writer.isAlive()) {
+      return false;
+    }
+
+    // Same snapshot as AsyncAppender: these are resolved lazily from the
+    // current thread
+    event.getThreadName();
+    event.getNDC();
+    event.getMDCCopy();
+    event.getRenderedMessage();
+    if (locationInfo) {
+      event.getLocationInformation();
+    }
+
+    long sequence = next.getAndIncrement();
+    if ((sequence & CLOSED) != 0) {
+      // Closed since checked, the writer thread does not wait for it
+      return false;
+    }
+
+    int slot = (int) sequence & mask;
+    while (sequence - events.length > consumed) {
+      if (!writer.isAlive()) {
+        // Nobody frees the slot any more
+        return false;
+      }
+
+      // A whole ring behind, wait for the writer thread
+      LockSupport.parkNanos(FULL_WAIT);
+    }
+
+    events[slot] = event;
+    published.set(slot, sequence);
+    if (idle) {
+      LockSupport.unpark(writer);
+    }
+
+    return true;
+  }
+
+  /**
+   * Waits until every event queued so far has been written to the log file,
+   * and handed over for indexing. Must not be called holding the appender
+   * lock, which the writer thread needs.
+   */
+  void drain() {
+    long last = (next.get() & ~CLOSED) - 1;
+    while (written < last && writer.isAlive()) {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(FULL_WAIT);
+    }
+  }
+
+  /**
+   * Stops the writer thread once every queued event has been written. Must
+   * not be called holding the appender lock, which the writer thread needs.
+   */
+  void close() {
+    long claimed = next.get();
+    while ((claimed & CLOSED) == 0
+        && !next.compareAndSet(claimed, claimed | CLOSED)) {
+      claimed = next.get();
+    }
+    if ((claimed & CLOSED) == 0) {
+      closedAt = claimed;
+    }
+
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the amount of events waiting to be written.
+   *
+   * @return the ring depth.
+   */
+  int size() {
+    return (int) Math.max(0, (next.get() & ~CLOSED) - 1 - written);
+  }
+
+  /**
+   * The writer thread loop.
+   */
+  public void run() {
+    long sequence = 0;
+    while (true) {
+      // Take the events published in sequence, freeing their slots
+      int count = 0;
+      while (count < batch.length) {
+        int slot = (int) (sequence + count) & mask;
+        if (published.get(slot) != sequence + count) {
+          break;
+        }
+        batch[count++] = events[slot];
+        events[slot] = null;
+      }
+
+      if (count > 0) {
+        consumed = sequence + count - 1;
+        appender.appendBatch(batch, count);
+        for (int i = 0; i < count; i++) {
+          batch[i] = null;
+        }
+        sequence += count;
+        written = sequence - 1;
+
+        continue;
+      }
+
+      if (sequence >= closedAt) {
+        // Every event claimed before closing is written
+        return;
+      }
+
+      idle = true;
+      if (published.get((int) sequence & mask) != sequence) {
+        LockSupport.parkNanos(IDLE_WAIT);
+      }
+      idle = false;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.lucene.document.Document;
+
+/**
+ * FieldExtractor copies one value of a {@link LoggingEvent} to one field of
+ * its {@link LogDocument}, as configured with the <code>FieldMapping</code>
+ * option of {@link FilePosTrackingRollingFileAppender}. The mapping is parsed
+ * once when the appender is activated, so indexing a log statement only runs
+ * through the extractors.
+ * <p>
+ * A mapping is a comma separated list of <code>field=source[:kind]</code>
+ * entries, e.g. <code>uuid=mdc.JSESSION, message=message:text</code>. The
+ * sources are:
+ * <ul>
+ * <li>thread: the thread name</li>
+ * <li>logger: the logger name</li>
+ * <li>level: the level, e.g. ERROR</li>
+ * <li>message: the rendered message</li>
+ * <li>ndc: the NDC</li>
+ * <li>mdc.<i>key</i>: the MDC value under <i>key</i></li>
+ * </ul>
+ * The kinds are keyword (stored, indexed as one term, the default), text
+ * (stored and tokenized), unstored (tokenized only) and unindexed (stored
+ * only). Only a known kind after the last colon is taken as the kind, so MDC
+ * keys may contain colons, e.g. <code>mdc.a:b</code>. Log statements without
+ * a value, e.g. no MDC value under the key, get no field.
+ */
+final class FieldExtractor {
+
+  /**
+   * The thread name source.
+   */
+  private static final int SOURCE_THREAD = 0;
+
+  /**
+   * The logger name source.
+   */
+  private static final int SOURCE_LOGGER = 1;
+
+  /**
+   * The level source.
+   */
+  private static final int SOURCE_LEVEL = 2;
+
+  /**
+   * The rendered message source.
+   */
+  private static final int SOURCE_MESSAGE = 3;
+
+  /**
+   * The NDC source.
+   */
+  private static final int SOURCE_NDC = 4;
+
+  /**
+   * The MDC source.
+   */
+  private static final int SOURCE_MDC = 5;
+
+  /**
+   * The prefix of MDC sources.
+   */
+  private static final String MDC_PREFIX = "mdc.";
+
+  /**
+   * The field name.
+   */
+  private final String field;
+
+  /**
+   * One of the <code>SOURCE_</code> constants.
+   */
+  private final int source;
+
+  /**
+   * The MDC key, null for other sources.
+   */
+  private final String key;
+
+  /**
+   * One of the {@link LogDocument} kind constants.
+   */
+  private final int kind;
+
+  /**
+   * Creates a FieldExtractor.
+   *
+   * @param field
+   *          The field name.
+   * @param source
+   *          One of the <code>SOURCE_</code> constants.
+   * @param key
+   *          The MDC key, null for other sources.
+   * @param kind
+   *          One of the {@link LogDocument} kind constants.
+   */
+  private FieldExtractor(String field, int source, String key, int kind) {
+    this.field = field;
+    this.source = source;
+    this.key = key;
+    this.kind = kind;
+  }
+
+  /**
+   * Parses a field mapping. Malformed entries are reported and left out.
+   *
+   * @param mapping
+   *          The field mapping, as described above.
+   *
+   * @return the extractors, in the order of the mapping.
+   */
+  static FieldExtractor[] parse(String mapping) {
+    List extractors = new ArrayList();
+    StringTokenizer entries = new StringTokenizer(mapping, ",");
+    while (entries.hasMoreTokens()) {
+      String entry = entries.nextToken().trim();
+      if (entry.length() == 0) {
+        continue;
+      }
+
+      FieldExtractor extractor = parseEntry(entry);
+      if (extractor == null) {
+        LogLog.warn("Ignoring malformed FieldMapping entry " + entry);
+      } else {
+        extractors.add(extractor);
+      }
+    }
+
+    return (FieldExtractor[]) extractors
+        .toArray(new FieldExtractor[extractors.size()]);
+  }
+
+  /**
+   * Parses one <code>field=source[:kind]</code> entry.
+   *
+   * @param entry
+   *          The entry, trimmed.
+   *
+   * @return the extractor, or null if the entry is malformed.
+   */
+  private static FieldExtractor parseEntry(String entry) {
+    int equals = entry.indexOf('=');
+    if (equals <= 0) {
+      return null;
+    }
+    String field = entry.substring(0, equals).trim();
+    String source = entry.substring(equals + 1).trim();
+
+    int kind = LogDocument.KEYWORD;
+    int colon = source.lastIndexOf(':');
+    if (colon >= 0) {
+      // Otherwise the colon belongs to the source, e.g. an MDC key
+      int suffixKind = parseKind(source.substring(colon + 1).trim());
+      if (suffixKind >= 0) {
+        kind = suffixKind;
+        source = source.substring(0, colon).trim();
+      }
+    }
+    if (field.length() == 0) {
+      return null;
+    }
+
+    if (source.startsWith(MDC_PREFIX)
+        && source.length() > MDC_PREFIX.length()) {
+      return new FieldExtractor(field, SOURCE_MDC, source
+          .substring(MDC_PREFIX.length()), kind);
+    } else if ("thread".equals(source)) {
+      return new FieldExtractor(field, SOURCE_THREAD, null, kind);
+    } else if ("logger".equals(source)) {
+      return new FieldExtractor(field, SOURCE_LOGGER, null, kind);
+    } else if ("level".equals(source)) {
+      return new FieldExtractor(field, SOURCE_LEVEL, null, kind);
+    } else if ("message".equals(source)) {
+      return new FieldExtractor(field, SOURCE_MESSAGE, null, kind);
+    } else if ("ndc".equals(source)) {
+      return new FieldExtractor(field, SOURCE_NDC, null, kind);
+    }
+
+    return null;
+  }
+
+  /**
+   * Parses a field kind.
+   *
+   * @param kind
+   *          One of keyword, text, unstored or unindexed.
+   *
+   * @return one of the {@link LogDocument} kind constants, -1 if unknown.
+   */
+  private static int parseKind(String kind) {
+    if ("keyword".equalsIgnoreCase(kind)) {
+      return LogDocument.KEYWORD;
+    } else if ("text".equalsIgnoreCase(kind)) {
+      return LogDocument.TEXT;
+    } else if ("unstored".equalsIgnoreCase(kind)) {
+      return LogDocument.UN_STORED;
+    } else if ("unindexed".equalsIgnoreCase(kind)) {
+      return LogDocument.UN_INDEXED;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Adds the field of a log statement to its document, unless the log
+   * statement has no value for it.
+   *
+   * @param event
+   *          The log statement.
+   * @param doc
+   *          Its document.
+   */
+  void extract(LoggingEvent event, LogDocument doc) {
+    String value = getValue(event);
+    if (value != null) {
+      doc.add(field, kind, value);
+    }
+  }
+
+  /**
+   * Adds the field of a log statement to a plain {@link Document}, for
+   * subclasses still populating documents the former way.
+   *
+   * @param event
+   *          The log statement.
+   * @param doc
+   *          Its document.
+   */
+  void extract(LoggingEvent event, Document doc) {
+    String value = getValue(event);
+    if (value != null) {
+      doc.add(LogDocument.createField(field, kind, value));
+    }
+  }
+
+  /**
+   * Returns the value of the field for a log statement.
+   *
+   * @param event
+   *          The log statement.
+   *
+   * @return the value, null if the log statement has none.
+   */
+  private String getValue(LoggingEvent event) {
+    String value;
+    switch (source) {
+    case SOURCE_THREAD:
+      value = event.getThreadName();
+      break;
+    case SOURCE_LOGGER:
+      value = event.getLoggerName();
+      break;
+    case SOURCE_LEVEL:
+      value = event.getLevel().toString();
+      break;
+    case SOURCE_MESSAGE:
+      value = event.getRenderedMessage();
+      break;
+    case SOURCE_NDC:
+      value = event.getNDC();
+      break;
+    default:
+      Object mdc = event.getMDC(key);
+      value = mdc == null ? null : mdc.toString();
+      break;
+    }
+
+    return value;
+  }
+}
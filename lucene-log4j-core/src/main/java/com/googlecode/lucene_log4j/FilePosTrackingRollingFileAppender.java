@@ -1,25 +1,25 @@
 package com.googlecode.lucene_log4j;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.MDC;
+import org.apache.log4j.Priority;
 import org.apache.log4j.RollingFileAppender;
 import org.apache.log4j.helpers.CountingQuietWriter;
 import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.DateField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 /**
  * FilePosTrackingRollingFileAppender extends RollingFileAppender by also
@@ -30,149 +30,289 @@ import org.apache.lucene.store.FSDirectory;
 public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
 
   /**
-   * Represents the default flush interval for the Lucene index.
+   * The stored field holding the position of the log statement in the log
+   * file.
    */
-  private static final int DEFAULT_INDEX_FLUSH_INTERVAL = 5000;
+  public static final String FILE_OFFSET_FIELD = "fileOffset";
 
   /**
-   * This is the suffix that will be added to the {@link #filename} set by
-   * {@link #setFile(String)} to form the final directory name of the Lucene
-   * index.
+   * The stored field holding the position right after the log statement in
+   * the log file.
    */
-  private static final String LUCENE_SUFFIX = "_lucene";
+  public static final String FILE_END_OFFSET_FIELD = "fileEndOffset";
 
   /**
-   * The Lucene {@link Directory} where the index will be stored.
+   * The indexed field holding the time of the log statement, encoded with
+   * {@link DateField#timeToString(long)} so that terms sort in time order and
+   * can be range filtered. It replaces the <code>currentTimeMillis</code>
+   * keyword of former indexes, which searchers still fall back on.
    */
-  private Directory directory;
+  public static final String TIMESTAMP_FIELD = "timestamp";
 
   /**
-   * The Lucene {@link IndexWriter} used for adding {@link Document}s to index.
+   * Represents the default flush interval for the Lucene index.
    */
-  private IndexWriter indexWriter;
+  private static final int DEFAULT_INDEX_FLUSH_INTERVAL = 5000;
 
   /**
-   * This is the fully qualified name of the Lucene analyzer to use. It must
-   * extend {@link Analyzer}.
+   * Represents the default fields added besides the file offsets and
+   * timestamps: the thread name as <code>uuid</code>.
    */
-  private String analyzerClass;
+  private static final String DEFAULT_FIELD_MAPPING = "uuid=thread";
 
   /**
    * Represents the milliseconds to wait before committing changes to Lucene
-   * index.
+   * index. Zero disables time based flushing.
    */
   private int indexFlushInterval = DEFAULT_INDEX_FLUSH_INTERVAL;
 
+  /**
+   * Commits the index every {@link #indexFlushInterval}, null until the
+   * appender is activated.
+   */
+  private volatile IndexFlusher flusher;
+
+  /**
+   * Guards the {@link LogIndex}, which is used from logging threads, the flush
+   * thread and the {@link AsyncIndexer} thread.
+   */
+  private final Object indexLock = new Object();
+
+  /**
+   * The index of the live generation. Guarded by {@link #indexLock}.
+   */
+  private final LogIndex index = new LogIndex(this, indexLock);
+
+  /**
+   * Tells where the generations live and rolls them over.
+   */
+  private final GenerationRoller roller = new GenerationRoller(this, indexLock);
+
+  /**
+   * Optimizes and compresses the rolled over generations.
+   */
+  private final GenerationMaintenance maintenance = new GenerationMaintenance(
+      this, roller);
+
+  /**
+   * Opens and closes indexes in the background in sequence mode.
+   */
+  private final StandbyIndexes standbys = new StandbyIndexes(this, indexLock,
+      maintenance);
+
+  /**
+   * Decides which log statements are indexed and on which thread.
+   */
+  private final IndexingPipeline pipeline = new IndexingPipeline(this);
+
+  /**
+   * The log statement being written, indexed once its end offset is known.
+   */
+  private LoggingEvent pendingEvent;
+
+  /**
+   * The position of {@link #pendingEvent} in the log file.
+   */
+  private long pendingOffset;
+
+  /**
+   * Reused for every log statement indexed. Guarded by {@link #indexLock}.
+   */
+  private final LogDocument logDocument = new LogDocument();
+
+  /**
+   * Which values of a log statement go to which fields, as described in
+   * {@link FieldExtractor}.
+   */
+  private String fieldMapping = DEFAULT_FIELD_MAPPING;
+
+  /**
+   * The {@link #fieldMapping} parsed by {@link #activateOptions()}.
+   */
+  private volatile FieldExtractor[] fieldExtractors = FieldExtractor
+      .parse(DEFAULT_FIELD_MAPPING);
+
+  /**
+   * Whether a subclass overrides
+   * {@link #populateDocument(long, LoggingEvent, Document)}, which then
+   * populates the documents instead of the default fields.
+   */
+  private final boolean legacyPopulate = overridesPopulateDocument();
+
   /**
    * A {@link List} of {@link RollOverListener}s to notify after
-   * {@link #rollOver()} event.
+   * {@link #rollOver()} event. Copied on write, since listeners come and go
+   * with the webapps while appenders roll over.
+   */
+  private static List rollOverListeners = new CopyOnWriteArrayList();
+
+  /**
+   * The activated appenders in this JVM, so {@link #signalFlush()} can reach
+   * them.
    */
-  private static List rollOverListeners = new ArrayList();
+  private static List instances = new ArrayList();
+
+  /**
+   * The amount of rollovers started in this JVM.
+   */
+  private static final AtomicLong rollOversStarted = new AtomicLong();
+
+  /**
+   * The amount of rollovers finished in this JVM.
+   */
+  private static final AtomicLong rollOversFinished = new AtomicLong();
+
+  /**
+   * The metrics of this appender.
+   */
+  private final AppenderMetrics metrics = new AppenderMetrics(this, roller,
+      pipeline);
+
+  /**
+   * Whether {@link #metrics} are registered over JMX.
+   */
+  private boolean jmx = true;
+
+  /**
+   * {@inheritDoc}
+   */
+  public void activateOptions() {
+    fieldExtractors = FieldExtractor.parse(fieldMapping);
+
+    super.activateOptions();
+
+    pipeline.start(indexLock);
+    if (flusher == null) {
+      flusher = new IndexFlusher(this, indexLock, index, pipeline,
+          indexFlushInterval);
+    }
+
+    synchronized (instances) {
+      if (!instances.contains(this)) {
+        instances.add(this);
+      }
+    }
+
+    maintenance.start(index.getAnalyzer());
+
+    if (jmx) {
+      metrics.register();
+    }
+  }
 
   /**
-   * Default constructor.
+   * Same as {@link org.apache.log4j.AppenderSkeleton#doAppend(LoggingEvent)},
+   * also measuring how long logging threads wait for the appender. When
+   * <code>RingBufferSize</code> is set the event is only queued, and written
+   * by the {@link EventRingBuffer} thread. Log statements logged while
+   * indexing, e.g. from <code>populateDocument</code>, are dropped and
+   * reported, as explained in {@link AsyncIndexer}.
+   *
+   * @param event
+   *          The {@link LoggingEvent} to be logged.
    */
-  public FilePosTrackingRollingFileAppender() {
-    Thread flushThread = new Thread(new Runnable() {
+  public void doAppend(LoggingEvent event) {
+    if (Thread.holdsLock(indexLock)) {
+      errorHandler.error("Dropped log statement logged while indexing for "
+          + "appender " + getName(), null, ErrorCode.WRITE_FAILURE, event);
+      return;
+    }
+    EventRingBuffer ring = pipeline.getRingBuffer();
+    if (ring != null) {
+      if (!isAsSevereAsThreshold(event.getLevel())) {
+        return;
+      }
+      if (ring.publish(event)) {
+        return;
+      }
+      // Closing, the appender tells whether it is still open
+    }
 
-      public void run() {
+    long start = System.nanoTime();
+    synchronized (this) {
+      metrics.monitorWaited(System.nanoTime() - start);
+      super.doAppend(event);
+    }
+  }
+
+  /**
+   * Writes events taken from the {@link EventRingBuffer}, in order, holding
+   * the appender lock once for the whole batch. An event that cannot be
+   * written is reported to the {@link org.apache.log4j.spi.ErrorHandler} and
+   * skipped, so the writer thread carries on with the others.
+   *
+   * @param events
+   *          The events to be written.
+   * @param count
+   *          The amount of events in {@code events}.
+   */
+  void appendBatch(LoggingEvent[] events, int count) {
+    long start = System.nanoTime();
+    synchronized (this) {
+      metrics.monitorWaited(System.nanoTime() - start);
+      for (int i = 0; i < count; i++) {
         try {
-          while (true) {
-            Thread.sleep(indexFlushInterval);
-
-            synchronized (FilePosTrackingRollingFileAppender.this) {
-              // Flush index to disk
-              closeIndex();
-
-              init();
-            }
-          }
-        } catch (InterruptedException e) {
-          // Do nothing since close() will relase all resources
+          super.doAppend(events[i]);
+        } catch (RuntimeException e) {
+          // Keep the writer thread alive, or logging threads wait for it
+          pendingEvent = null;
+          errorHandler.error("Could not write log statement for appender "
+              + getName(), e, ErrorCode.WRITE_FAILURE, events[i]);
         }
       }
+    }
+  }
 
-    });
-
-    // Kick off flush thread
-    flushThread.start();
+  /**
+   * {@inheritDoc}
+   */
+  public void setFile(String file) {
+    super.setFile(file);
+    roller.setBaseFileName(fileName);
   }
 
   /**
    * {@inheritDoc}
+   * <p>
+   * In sequence mode {@code fileName} is the configured log file name, the
+   * log file of the current generation is opened instead.
    */
   public synchronized void setFile(String fileName, boolean append,
       boolean bufferedIO, int bufferSize) throws IOException {
+    fileName = roller.resolveFileName(fileName);
     super.setFile(fileName, append, bufferedIO, bufferSize);
     init();
+    roller.publishSequence();
   }
 
   /**
-   * Initializes the {@link #indexWriter} by either reading an existing Lucene
-   * index or creating a new, empty one.
+   * Opens the {@link LogIndex} of the live generation, taking over the index
+   * prepared for it in the background, if any.
    */
   private void init() {
-    Analyzer analyzer = getAnalyzer();
-
-    String path = fileName + LUCENE_SUFFIX;
-
-    boolean shouldCreate = checkOrCreateLuceneDir(path);
-
-    while (indexWriter == null) {
-      try {
-        // Create an empty index
-        directory = FSDirectory.getDirectory(path, shouldCreate);
-
-        indexWriter = new IndexWriter(directory, analyzer, shouldCreate);
-      } catch (FileNotFoundException e) {
-        // Check if it's related to corrupt index (segment not found)
-        String message = e.getMessage();
-        if (message != null && message.indexOf("segment") != -1) {
-          // Force re-creation of index
-          shouldCreate = true;
-        }
-      } catch (IOException e) {
-        // Check if it's related to write lock, release if so
-        String message = e.getMessage();
-        if (message != null && message.indexOf("Lock obtain timed out") != -1) {
-          String lockFile = getLockFile(path);
-          if (!new File(lockFile).delete()) {
-            LogLog
-                .error(
-                    "Unable to delete lucene write lock file for FilePosTrackingRollingFileAppender with name "
-                        + name, e);
-
-            return;
-          }
-
-          // Do not allow overwriting of index
-          shouldCreate = false;
-        }
-      }
+    synchronized (indexLock) {
+      StandbyIndexes.Standby standby = standbys.adopt(roller.getSequence());
+      index.open(roller.getIndexDirName(0), standby, roller
+          .nextGenerationId(index.getGenerationId()));
     }
   }
 
   /**
-   * Returns the {@link Analyzer} to be used.
-   * 
-   * @return a {@link Analyzer}
+   * Starts preparing the index of the next generation in the background, once
+   * the log file is <code>StandbyThreshold</code> full.
    */
-  private Analyzer getAnalyzer() {
-    if (analyzerClass != null) {
-      try {
-        return (Analyzer) Class.forName(analyzerClass).newInstance();
-      } catch (ClassNotFoundException e) {
-        // Do nothing
-      } catch (InstantiationException e) {
-        LogLog.error("Could not use the specified analyzerClass"
-            + analyzerClass);
-      } catch (IllegalAccessException e) {
-        LogLog.error("Could not use the specified analyzerClass"
-            + analyzerClass);
-      }
+  private void prepareStandby() {
+    if (!roller.isSequence()
+        || !standbys.isDue(((CountingQuietWriter) qw).getCount(), maxFileSize)) {
+      return;
     }
 
-    return new WhitespaceAnalyzer();
+    synchronized (indexLock) {
+      if (index.isOpen()) {
+        standbys.prepare(roller.getIndexDirName(-1), roller.getSequence() + 1,
+            index.getAnalyzer(), index.getMaxBufferedDocs());
+      }
+    }
   }
 
   /**
@@ -183,65 +323,46 @@ public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
    *          The fully qualified name.
    */
   public void setAnalyzerClass(String clazz) {
-    analyzerClass = clazz;
+    index.setAnalyzerClass(clazz);
   }
 
   /**
-   * Obtains the Lucene lock file so we can delete it after a crash.
-   * 
-   * @param path
-   *          The directory where we are storing the Lucene index.
-   * 
-   * @return The path to the lock file.
+   * This method differentiates FilePosTrackingRollingFileAppender from its
+   * super class.
    */
-  private String getLockFile(String path) {
-    File luceneIndexDir = new File(path);
-    String luceneIndexDirPath = luceneIndexDir.getAbsolutePath();
-
-    String lockFileDir = System.getProperty("org.apache.lucene.lockdir", System
-        .getProperty("java.io.tmpdir"));
+  protected synchronized void subAppend(LoggingEvent event) {
+    // Keep track of the file offset at the beginning of the log statement
+    pendingOffset = ((CountingQuietWriter) qw).getCount();
+    pendingEvent = event;
 
-    String lockFile = lockFileDir + File.separatorChar + "lucene-"
-        + DigestUtils.md5Hex(luceneIndexDirPath) + "-write.lock";
+    // Call super class method, which might roll over right after writing
+    super.subAppend(event);
 
-    return lockFile;
+    indexPendingEvent();
+    prepareStandby();
   }
 
   /**
-   * Attempts to create a directory for storing Lucene index.
-   * 
-   * @param path
-   *          the directory name at which we want to create the index.
-   * 
-   * @return True if successful
+   * Indexes the log statement just written, now that the file offset right
+   * after it is known. Called before the file rolls over, so the statement
+   * goes to the index of the file it was written to. Statements the
+   * {@link IndexAdmission} leaves out are only counted.
    */
-  private boolean checkOrCreateLuceneDir(String path) {
-    File file = new File(path);
-
-    boolean isBrandNewDir = false;
-    if (!file.exists()) {
-      isBrandNewDir = file.mkdir();
-      if (!isBrandNewDir) {
-        throw new RuntimeException("Unable to create lucene index dir at: "
-            + path);
-      }
+  private void indexPendingEvent() {
+    if (pendingEvent == null) {
+      return;
     }
 
-    return isBrandNewDir;
-  }
+    if (!pipeline.admits(pendingEvent)) {
+      metrics.documentNotAdmitted();
+      pendingEvent = null;
 
-  /**
-   * This method differentiates FilePosTrackingRollingFileAppender from its
-   * super class.
-   */
-  protected synchronized void subAppend(LoggingEvent event) {
-    // Keep track of the file offset at the beginning of the log statement
-    long fileLen = ((CountingQuietWriter) qw).getCount();
-    // MDC.put("fileOffset", fileLen);
-    writeToLucene(fileLen, event);
+      return;
+    }
 
-    // Call super class method
-    super.subAppend(event);
+    long endOffset = ((CountingQuietWriter) qw).getCount();
+    pipeline.index(pendingOffset, endOffset, pendingEvent);
+    pendingEvent = null;
   }
 
   /**
@@ -258,101 +379,137 @@ public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
    * <p>
    * If <code>MaxBackupIndex</code> is equal to zero, then the <code>File</code>
    * is truncated with no backup files created.
+   * 
+   * <p>
+   * In sequence mode nothing is renamed: a new generation is created with the
+   * next sequence number, the {@link SequenceManifest} is pointed at it and
+   * the generation falling out of <code>MaxBackupIndex</code> is deleted in the
+   * background.
+   * 
+   * <p>
+   * Searchers in the same JVM can tell whether a rollover overlapped their
+   * access to a generation through {@link #getRollOversStarted()} and
+   * {@link #getRollOversFinished()}.
    */
   public// synchronization not necessary since doAppend is already synched
   void rollOver() {
+    rollOversStarted.incrementAndGet();
+
+    maintenance.pause(!roller.isSequence());
+    try {
+      rotate();
+    } finally {
+      maintenance.resume();
+      rollOversFinished.incrementAndGet();
+    }
+  }
+
+  /**
+   * Rotates the log files and the lucene index directories.
+   */
+  private void rotate() {
+    long start = System.nanoTime();
+    indexPendingEvent();
+
     // Notify listeners to release file lock
     for (Iterator iterator = rollOverListeners.iterator(); iterator.hasNext();) {
       RollOverListener listener = (RollOverListener) iterator.next();
       listener.signalRollOver();
     }
 
-    File target;
-    File file;
-
     LogLog.debug("rolling over count=" + ((CountingQuietWriter) qw).getCount());
     LogLog.debug("maxBackupIndex=" + maxBackupIndex);
 
+    if (roller.isSequence()) {
+      switchSequence();
+    } else {
+      renameGenerations();
+    }
+
+    metrics.rolledOver(System.nanoTime() - start);
+  }
+
+  /**
+   * Renames the live generation to ".1", shifting the older ones, and opens a
+   * new one under the live names.
+   */
+  private void renameGenerations() {
+    String dirName = roller.getIndexDirName(0);
+
     // If maxBackups <= 0, then there is no file renaming to be done.
-    String dirName = fileName + LUCENE_SUFFIX;
     if (maxBackupIndex > 0) {
-      // Delete the oldest file, to keep Windows happy.
-      file = new File(dirName + '.' + maxBackupIndex);
-      if (file.exists()) {
-        // Recursively delete directory content
-        deleteRecursively(file);
-      }
+      roller.shiftIndexDirs();
 
-      // Map {(maxBackupIndex - 1), ..., 2, 1} to {maxBackupIndex, ..., 3, 2}
-      for (int i = maxBackupIndex - 1; i >= 1; i--) {
-        file = new File(dirName + "." + i);
-        if (file.exists()) {
-          target = new File(dirName + '.' + (i + 1));
-          LogLog.debug("Renaming directory " + file + " to " + target);
-          file.renameTo(target);
-        }
+      // Close index before moving, once queued statements have made it
+      pipeline.drainIndexQueue();
+      synchronized (indexLock) {
+        index.close(true);
       }
 
       // Rename fileName to fileName.1
-      target = new File(dirName + "." + 1);
-
-      // Close index before moving
-      closeIndex();
-
-      file = new File(dirName);
+      File file = new File(dirName);
+      File target = new File(roller.getIndexDirName(1));
       LogLog.debug("Renaming directory " + file + " to " + target);
       file.renameTo(target);
     }
 
     // Create directory for Lucene
-    file = new File(dirName);
-    file.mkdir();
+    new File(dirName).mkdir();
 
     // Create an Lucene index in the above dir
     init();
 
-    // Call parent method
+    // The parent method only shifts the uncompressed log files
+    roller.shiftCompressedLogs();
     super.rollOver();
   }
 
   /**
-   * Delete file or directory recursively.
-   * 
-   * @param file
-   *          The {@link File} representing the location to delete
+   * Finalizes the current generation and switches to the next sequence
+   * number. Nothing is renamed or deleted on the logging thread, and the
+   * index of the finalized generation is closed in the background.
    */
-  private void deleteRecursively(File file) {
-    if (file.isFile()) {
-      file.delete();
+  private void switchSequence() {
+    // Hand the index over, once queued statements have made it
+    pipeline.drainIndexQueue();
+    synchronized (indexLock) {
+      IndexWriter writer = index.detach();
+      if (writer != null) {
+        standbys.closeInBackground(writer, roller.getIndexDirName(0));
+      }
 
-      return;
+      roller.nextSequence();
     }
 
-    // file argument is a directory
-    File[] list = file.listFiles();
-    for (int i = 0; i < list.length; i++) {
-      deleteRecursively(list[i]);
+    try {
+      // Opens the log file and index of the new sequence number
+      setFile(roller.getBaseFileName(), false, bufferedIO, bufferSize);
+    } catch (IOException e) {
+      LogLog.error("setFile(" + roller.getBaseFileName()
+          + ", false) call failed.", e);
     }
-
-    // By the the directory should be empty so delete it
-    file.delete();
   }
 
   /**
-   * Writes to Lucene index.
+   * Writes to Lucene index. Called from the logging thread or, when
+   * <code>AsyncIndexing</code> is on, from the {@link AsyncIndexer}.
    * 
    * @param fileLen
    *          The current position at log file.
+   * @param endOffset
+   *          The position at log file right after the log statement.
    * @param event
    *          The {@link LoggingEvent} to be logged.
    */
-  private void writeToLucene(long fileLen, LoggingEvent event) {
-    Document doc = new Document();
-    if (populateDocument(fileLen, event, doc)) {
-      try {
-        indexWriter.addDocument(doc);
-      } catch (IOException e) {
-        LogLog.error("Could not add doc to index ", e);
+  void writeToLucene(long fileLen, long endOffset, LoggingEvent event) {
+    synchronized (indexLock) {
+      LogDocument doc = logDocument.reset();
+      if (populateDocument(fileLen, event, doc)) {
+        doc.addUnIndexed(FILE_END_OFFSET_FIELD, endOffset);
+        doc.addDate(TIMESTAMP_FIELD, event.timeStamp);
+        index.add(doc.getDocument(), fileLen, endOffset, event.timeStamp);
+      } else {
+        metrics.documentRejected();
       }
     }
   }
@@ -361,6 +518,50 @@ public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
    * This is the override point. You should populate the Lucene document using
    * your own business needs. One possible way is to use {@link MDC} to pass on
    * debugging context to this appender.
+   * <p>
+   * When <code>AsyncIndexing</code> is on this runs on the indexer thread, so
+   * read the context through {@link LoggingEvent#getMDC(String)} rather than
+   * {@link MDC#get(String)}. It is called holding the index lock, one log
+   * statement at a time.
+   * <p>
+   * By default the fields of the <code>FieldMapping</code> are added, along
+   * with the {@link #FILE_OFFSET_FIELD}. Add fields through the
+   * {@link LogDocument} methods, which reuse the fields of the previous log
+   * statement whose value did not change. The
+   * {@link #FILE_END_OFFSET_FIELD} and {@link #TIMESTAMP_FIELD} are added by
+   * the appender afterwards.
+   * 
+   * @param fileLen
+   *          This is the position where the log statement will be recorded.
+   * @param event
+   *          This is the {@link LoggingEvent}.
+   * @param doc
+   *          This is the {@link LogDocument} where you should add your fields.
+   * 
+   * @return true if the {@code doc} passed in as argument should be updated,
+   *         i.e. create a new document in Lucene index.
+   */
+  public boolean populateDocument(long fileLen, LoggingEvent event,
+      LogDocument doc) {
+    if (legacyPopulate) {
+      return populateDocument(fileLen, event, doc.getDocument());
+    }
+
+    doc.addUnIndexed(FILE_OFFSET_FIELD, fileLen);
+
+    FieldExtractor[] extractors = fieldExtractors;
+    for (int i = 0; i < extractors.length; i++) {
+      extractors[i].extract(event, doc);
+    }
+
+    return true;
+  }
+
+  /**
+   * The former override point, still called instead of the default fields
+   * when a subclass overrides it. By default it adds the same fields as
+   * {@link #populateDocument(long, LoggingEvent, LogDocument)}, following the
+   * <code>FieldMapping</code>, only without reusing them.
    * 
    * @param fileLen
    *          This is the position where the log statement will be recorded.
@@ -371,42 +572,109 @@ public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
    * 
    * @return true if the {@code doc} passed in as argument should be updated,
    *         i.e. create a new document in Lucene index.
+   * 
+   * @deprecated Override
+   *             {@link #populateDocument(long, LoggingEvent, LogDocument)},
+   *             which creates fewer objects per log statement.
    */
+  @Deprecated
   public boolean populateDocument(long fileLen, LoggingEvent event, Document doc) {
-    doc.add(Field.Keyword("uuid", "" + event.getThreadName()));
-    doc.add(Field.UnIndexed("fileOffset", "" + fileLen));
-    doc
-        .add(Field
-            .Keyword("currentTimeMillis", "" + System.currentTimeMillis()));
+    doc.add(Field.UnIndexed(FILE_OFFSET_FIELD, String.valueOf(fileLen)));
+
+    FieldExtractor[] extractors = fieldExtractors;
+    for (int i = 0; i < extractors.length; i++) {
+      extractors[i].extract(event, doc);
+    }
 
     return true;
   }
 
+  /**
+   * Tells whether a subclass overrides
+   * {@link #populateDocument(long, LoggingEvent, Document)}.
+   * 
+   * @return true if the documents are populated the former way.
+   */
+  private boolean overridesPopulateDocument() {
+    try {
+      return getClass().getMethod("populateDocument",
+          new Class[] { Long.TYPE, LoggingEvent.class, Document.class })
+          .getDeclaringClass() != FilePosTrackingRollingFileAppender.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
   /**
    * Close any previously opened file and call the parent's <code>reset</code>.
    */
   protected void reset() {
-    closeIndex();
+    pipeline.drainIndexQueue();
+    synchronized (indexLock) {
+      index.close(false);
+    }
 
     super.reset();
   }
 
   /**
-   * Closes Lucene index.
+   * Closes the appender and stops the {@link EventRingBuffer} and
+   * {@link AsyncIndexer} threads, if any.
    */
-  private void closeIndex() {
-    try {
-      if (indexWriter != null) {
-        indexWriter.close();
-        indexWriter = null;
-      }
-    } catch (IOException e) {
-      // Exceptionally, it does not make sense to delegate to an
-      // ErrorHandler. Since a closed appender is basically dead.
-      LogLog.error("Could not close " + indexWriter, e);
+  public void close() {
+    // The ring thread needs the appender lock to write what is left
+    pipeline.closeRingBuffer();
+
+    synchronized (this) {
+      closeLocked();
     }
   }
 
+  /**
+   * Closes the appender once the {@link EventRingBuffer} is stopped.
+   */
+  private void closeLocked() {
+    synchronized (instances) {
+      instances.remove(this);
+    }
+
+    if (flusher != null) {
+      flusher.close();
+      flusher = null;
+    }
+
+    pipeline.closeIndexer();
+
+    metrics.unregister();
+
+    super.close();
+    standbys.stop();
+    maintenance.close();
+    roller.close();
+  }
+
+  /**
+   * Returns the amount of rollovers started in this JVM. Incremented before
+   * anything is renamed.
+   * 
+   * @return the started rollover count.
+   */
+  public static long getRollOversStarted() {
+    return rollOversStarted.get();
+  }
+
+  /**
+   * Returns the amount of rollovers finished in this JVM. Incremented once
+   * everything is renamed. A rollover is in progress while it differs from
+   * {@link #getRollOversStarted()}; reading the finished count first and the
+   * started count last tells whether one began in between.
+   * 
+   * @return the finished rollover count.
+   */
+  public static long getRollOversFinished() {
+    return rollOversFinished.get();
+  }
+
   /**
    * Adds a {@link RollOverListener} to be notified of {@link #rollOver()}
    * events.
@@ -418,16 +686,49 @@ public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
     rollOverListeners.add(listener);
   }
 
+  /**
+   * Removes a {@link RollOverListener} added by
+   * {@link #addRollOverListener(RollOverListener)}, e.g. when the webapp
+   * holding it is stopped.
+   * 
+   * @param listener
+   *          a {@link RollOverListener}.
+   */
+  public static void removeRollOverListener(RollOverListener listener) {
+    rollOverListeners.remove(listener);
+  }
+
   /**
    * This is used to signal a flush of Lucene index to disk so searchers in
-   * other VMs or systems can see the changes.
+   * this VM, or other VMs or systems, can see the changes right away. Indexes
+   * with nothing pending are left alone.
    */
-  public synchronized static void signalFlush() {
-    // FilePosTrackingRollingFileAppender instance =
-    // (FilePosTrackingRollingFileAppender) instanceStaticRef.get();
-    //    
-    // // We only close Lucene indexes (no need to close log file)
-    // instance.closeIndex();
+  public static void signalFlush() {
+    signalFlush(0);
+  }
+
+  /**
+   * Like {@link #signalFlush()}, but only flushes the indexes last flushed
+   * more than {@code maxAge} milliseconds ago. Lets frequent callers, such as
+   * searches, bound how stale the indexes are without closing and reopening
+   * the index writers on every call.
+   * 
+   * @param maxAge
+   *          The time in milliseconds an index may go without a flush.
+   */
+  public static void signalFlush(long maxAge) {
+    Object[] appenders;
+    synchronized (instances) {
+      appenders = instances.toArray();
+    }
+
+    for (int i = 0; i < appenders.length; i++) {
+      IndexFlusher indexFlusher =
+          ((FilePosTrackingRollingFileAppender) appenders[i]).flusher;
+      if (indexFlusher != null) {
+        indexFlusher.flush(maxAge);
+      }
+    }
   }
 
   /**
@@ -435,9 +736,265 @@ public class FilePosTrackingRollingFileAppender extends RollingFileAppender {
    * wait before committing changes to Lucene index.
    * 
    * @param indexFlushInterval
-   *          The time in milliseconds
+   *          The time in milliseconds, zero to only flush on
+   *          <code>IndexFlushBytes</code> or {@link #signalFlush()}.
    */
   public void setIndexFlushInterval(int indexFlushInterval) {
     this.indexFlushInterval = indexFlushInterval;
   }
+
+  /**
+   * Sets the amount of documents the {@link IndexWriter} buffers in memory
+   * before committing them to disk by itself, without waiting for the flush
+   * thread. Defaults to Lucene's own default.
+   * 
+   * @param maxBufferedDocs
+   *          The amount of documents.
+   */
+  public void setMaxBufferedDocs(int maxBufferedDocs) {
+    index.setMaxBufferedDocs(Math.max(2, maxBufferedDocs));
+  }
+
+  /**
+   * Sets the amount of log bytes covered by uncommitted documents that
+   * triggers a flush before <code>IndexFlushInterval</code> elapses.
+   * 
+   * @param indexFlushBytes
+   *          The amount of bytes, zero to disable.
+   */
+  public void setIndexFlushBytes(long indexFlushBytes) {
+    index.setFlushBytes(indexFlushBytes);
+  }
+
+  /**
+   * Sets which values of a log statement are indexed under which fields, as a
+   * comma separated list of <code>field=source[:kind]</code> entries, e.g.
+   * <code>uuid=mdc.JSESSION, message=message:text</code>. The sources are
+   * thread, logger, level, message, ndc and mdc.<i>key</i>; the kinds are
+   * keyword (default), text, unstored and unindexed. Defaults to
+   * <code>uuid=thread</code>. Applies to subclasses only if they leave
+   * <code>populateDocument</code> alone or call it.
+   * 
+   * @param fieldMapping
+   *          The field mapping.
+   */
+  public void setFieldMapping(String fieldMapping) {
+    this.fieldMapping = fieldMapping == null ? "" : fieldMapping;
+  }
+
+  /**
+   * Sets the least level of the log statements indexed. Statements below it
+   * are still written to the log file.
+   * 
+   * @param indexThreshold
+   *          The level, null to index all levels.
+   */
+  public void setIndexThreshold(Priority indexThreshold) {
+    pipeline.setIndexThreshold(indexThreshold);
+  }
+
+  /**
+   * Only indexes the log statements of loggers whose name starts with one of
+   * these prefixes. The others are still written to the log file.
+   * 
+   * @param indexLoggers
+   *          The comma separated prefixes, null to index all loggers.
+   */
+  public void setIndexLoggers(String indexLoggers) {
+    pipeline.setIndexLoggers(indexLoggers);
+  }
+
+  /**
+   * Leaves the log statements of loggers whose name starts with one of these
+   * prefixes out of the index. They are still written to the log file.
+   * 
+   * @param indexExcludedLoggers
+   *          The comma separated prefixes, null to exclude none.
+   */
+  public void setIndexExcludedLoggers(String indexExcludedLoggers) {
+    pipeline.setIndexExcludedLoggers(indexExcludedLoggers);
+  }
+
+  /**
+   * Only indexes the log statements with an MDC value under this key, e.g.
+   * the session id searched by. The others are still written to the log
+   * file.
+   * 
+   * @param indexRequiredMdcKey
+   *          The MDC key, null to index statements without MDC as well.
+   */
+  public void setIndexRequiredMdcKey(String indexRequiredMdcKey) {
+    pipeline.setIndexRequiredMdcKey(indexRequiredMdcKey);
+  }
+
+  /**
+   * Turns on indexing of log statements on a dedicated thread, so logging
+   * threads only pay for queuing them.
+   * 
+   * @param asyncIndexing
+   *          true to index asynchronously.
+   */
+  public void setAsyncIndexing(boolean asyncIndexing) {
+    pipeline.setAsyncIndexing(asyncIndexing);
+  }
+
+  /**
+   * Sets the maximum amount of log statements waiting to be indexed when
+   * <code>AsyncIndexing</code> is on.
+   * 
+   * @param indexQueueSize
+   *          The queue capacity.
+   */
+  public void setIndexQueueSize(int indexQueueSize) {
+    pipeline.setIndexQueueSize(indexQueueSize);
+  }
+
+  /**
+   * Sets the maximum amount of log statements the indexer thread adds to the
+   * index in one go.
+   * 
+   * @param indexBatchSize
+   *          The batch size.
+   */
+  public void setIndexBatchSize(int indexBatchSize) {
+    pipeline.setIndexBatchSize(indexBatchSize);
+  }
+
+  /**
+   * Turns on writing log statements on a dedicated thread: logging threads
+   * only claim a slot in a ring buffer of this size, rounded up to a power of
+   * two, and wait only when it is full. Implies <code>AsyncIndexing</code>.
+   * The layout sees the thread name, NDC, MDC and message as they were when
+   * logging, but no caller location unless
+   * <code>RingBufferLocationInfo</code> is set.
+   * 
+   * @param ringBufferSize
+   *          The amount of slots, zero to write on the logging threads.
+   */
+  public void setRingBufferSize(int ringBufferSize) {
+    pipeline.setRingBufferSize(ringBufferSize);
+  }
+
+  /**
+   * Makes logging threads capture the caller location of their statements
+   * before handing them to the ring buffer, for layouts printing it. This
+   * walks the stack on every statement.
+   * 
+   * @param ringBufferLocationInfo
+   *          true to capture the caller location.
+   */
+  public void setRingBufferLocationInfo(boolean ringBufferLocationInfo) {
+    pipeline.setRingBufferLocationInfo(ringBufferLocationInfo);
+  }
+
+  /**
+   * Sets what to do with a log statement when the index queue is full:
+   * <ul>
+   * <li>block: wait until the indexer thread catches up (default)</li>
+   * <li>drop: write it to the log file but leave it out of the index</li>
+   * <li>inline: index the queue and the statement on the logging thread</li>
+   * </ul>
+   * 
+   * @param policy
+   *          One of block, drop or inline.
+   */
+  public void setIndexQueueFullPolicy(String policy) {
+    pipeline.setIndexQueueFullPolicy(policy);
+  }
+
+  /**
+   * Sets how generations are rolled over:
+   * <ul>
+   * <li>rename: the live log file and index directory are renamed to ".1" and
+   * the older ones shifted up to <code>MaxBackupIndex</code> (default)</li>
+   * <li>sequence: every generation keeps the names it was created with, e.g.
+   * ".000123", and a rollover only switches to the next one. The live
+   * generation is listed in a {@link SequenceManifest} and expired ones are
+   * deleted in the background</li>
+   * </ul>
+   * 
+   * @param mode
+   *          One of rename or sequence.
+   */
+  public void setRollOverMode(String mode) {
+    roller.setMode(mode);
+  }
+
+  /**
+   * Sets the fraction of <code>MaxFileSize</code> the log file reaches before
+   * the index of the next generation is created in the background, so a
+   * rollover only has to switch to it. Only applies in sequence mode.
+   * 
+   * @param standbyThreshold
+   *          The fraction, e.g. 0.9 (default), zero to create the index on
+   *          rollover.
+   */
+  public void setStandbyThreshold(String standbyThreshold) {
+    standbys.setThreshold(standbyThreshold);
+  }
+
+  /**
+   * Sets whether the indexes of rolled over generations are merged down to
+   * one segment in the background, at low priority. On by default.
+   * 
+   * @param optimize
+   *          False to leave rolled over indexes as they are.
+   */
+  public void setOptimize(boolean optimize) {
+    maintenance.setOptimize(optimize);
+  }
+
+  /**
+   * Sets how many bytes per second optimizing rolled over indexes may read
+   * and write, which also bounds the CPU time it takes.
+   * 
+   * @param optimizeBytesPerSecond
+   *          The amount of bytes, 10MB by default, zero for unlimited.
+   */
+  public void setOptimizeBytesPerSecond(long optimizeBytesPerSecond) {
+    maintenance.setOptimizeBytesPerSecond(optimizeBytesPerSecond);
+  }
+
+  /**
+   * Sets whether the log files of rolled over generations are compressed in
+   * the background, at low priority, into {@link BlockCompressedLog}s. The
+   * LuceneLogSearchServlet reads them in place. Off by default.
+   * 
+   * @param compressRotated
+   *          True to compress rolled over log files.
+   */
+  public void setCompressRotated(boolean compressRotated) {
+    maintenance.setCompressRotated(compressRotated);
+  }
+
+  /**
+   * Sets how many log bytes are compressed together. Larger blocks compress
+   * better, smaller ones cost less to read for a single log statement.
+   * 
+   * @param compressBlockSize
+   *          The amount of bytes, 64KB by default.
+   */
+  public void setCompressBlockSize(int compressBlockSize) {
+    maintenance.setCompressBlockSize(compressBlockSize);
+  }
+
+  /**
+   * Sets whether the {@link AppenderMetrics} are registered with the platform
+   * MBean server. On by default.
+   * 
+   * @param jmx
+   *          False to keep the metrics off JMX.
+   */
+  public void setJmx(boolean jmx) {
+    this.jmx = jmx;
+  }
+
+  /**
+   * Returns the metrics of this appender.
+   * 
+   * @return the {@link AppenderMetrics}.
+   */
+  public AppenderMetrics getMetrics() {
+    return metrics;
+  }
 }
@@ -0,0 +1,234 @@
+package com.googlecode.lucene_log4j;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.lucene.analysis.Analyzer;
+
+/**
+ * GenerationMaintenance schedules the background work on the generations a
+ * {@link FilePosTrackingRollingFileAppender} rolled over: optimizing their
+ * indexes through an {@link IndexOptimizer} and compressing their log files
+ * through a {@link LogCompressor}. Both are paused while a rollover moves
+ * the generations around.
+ * <p>
+ * It is configured before the appender is activated and started, paused and
+ * resumed from the appender lock.
+ */
+final class GenerationMaintenance {
+
+  /**
+   * Represents the default bytes per second read and written when optimizing
+   * rolled over indexes.
+   */
+  private static final long DEFAULT_OPTIMIZE_BYTES_PER_SECOND = 10 * 1024 * 1024;
+
+  /**
+   * The appender whose generations are maintained.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * Tells which generations are rolled over.
+   */
+  private final GenerationRoller roller;
+
+  /**
+   * If true, the indexes of rolled over generations are merged down to one
+   * segment in the background.
+   */
+  private boolean optimize = true;
+
+  /**
+   * The bytes per second read and written when optimizing, zero for
+   * unlimited.
+   */
+  private long optimizeBytesPerSecond = DEFAULT_OPTIMIZE_BYTES_PER_SECOND;
+
+  /**
+   * Optimizes the indexes of rolled over generations when {@link #optimize}
+   * is on, null otherwise.
+   */
+  private volatile IndexOptimizer optimizer;
+
+  /**
+   * If true, the log files of rolled over generations are compressed into
+   * {@link BlockCompressedLog}s in the background.
+   */
+  private boolean compressRotated;
+
+  /**
+   * The amount of log bytes compressed together when {@link #compressRotated}
+   * is on.
+   */
+  private int compressBlockSize = BlockCompressedLog.DEFAULT_BLOCK_SIZE;
+
+  /**
+   * Compresses the log files of rolled over generations when
+   * {@link #compressRotated} is on, null otherwise.
+   */
+  private volatile LogCompressor compressor;
+
+  /**
+   * The optimizer paused by the rollover in progress, if any.
+   */
+  private IndexOptimizer pausedOptimizer;
+
+  /**
+   * The compressor paused by the rollover in progress, if any.
+   */
+  private LogCompressor pausedCompressor;
+
+  /**
+   * Creates the GenerationMaintenance of an appender, started later.
+   *
+   * @param appender
+   *          The appender whose generations are maintained.
+   * @param roller
+   *          Tells which generations are rolled over.
+   */
+  GenerationMaintenance(FilePosTrackingRollingFileAppender appender,
+      GenerationRoller roller) {
+    this.appender = appender;
+    this.roller = roller;
+  }
+
+  /**
+   * Starts the {@link IndexOptimizer} and {@link LogCompressor} that are
+   * turned on, which also catch up on generations rolled over before a
+   * shutdown.
+   *
+   * @param analyzer
+   *          The analyzer of the appender.
+   */
+  void start(Analyzer analyzer) {
+    if (optimize && optimizer == null) {
+      optimizer = new IndexOptimizer(appender, roller, analyzer,
+          optimizeBytesPerSecond);
+    }
+
+    if (compressRotated && compressor == null) {
+      compressor = new LogCompressor(appender, roller, compressBlockSize);
+    }
+  }
+
+  /**
+   * Pauses the background work before a rollover.
+   *
+   * @param renaming
+   *          True if directories are about to be renamed under the optimizer.
+   *          The compressor is paused in sequence mode as well, where the
+   *          rolled over log file is not closed until the next one is opened.
+   */
+  void pause(boolean renaming) {
+    pausedOptimizer = renaming ? optimizer : null;
+    if (pausedOptimizer != null) {
+      pausedOptimizer.pause();
+    }
+
+    pausedCompressor = compressor;
+    if (pausedCompressor != null) {
+      pausedCompressor.pause();
+    }
+  }
+
+  /**
+   * Resumes the background work paused by {@link #pause(boolean)}.
+   */
+  void resume() {
+    if (pausedCompressor != null) {
+      pausedCompressor.resume();
+      pausedCompressor = null;
+    }
+    if (pausedOptimizer != null) {
+      pausedOptimizer.resume();
+      pausedOptimizer = null;
+    }
+  }
+
+  /**
+   * Keeps the optimizer off a rolled over generation whose index is still
+   * being closed.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   */
+  void closing(String indexDir) {
+    IndexOptimizer indexOptimizer = optimizer;
+    if (indexOptimizer != null) {
+      indexOptimizer.closing(indexDir);
+    }
+  }
+
+  /**
+   * Has a rolled over generation optimized, if on, now that its index is
+   * closed.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   */
+  void closed(String indexDir) {
+    IndexOptimizer indexOptimizer = optimizer;
+    if (indexOptimizer != null) {
+      indexOptimizer.closed(indexDir);
+    }
+  }
+
+  /**
+   * Stops the {@link IndexOptimizer} and {@link LogCompressor}, if started.
+   */
+  void close() {
+    if (optimizer != null) {
+      optimizer.close();
+      optimizer = null;
+    }
+
+    if (compressor != null) {
+      compressor.close();
+      compressor = null;
+    }
+  }
+
+  /**
+   * Sets whether the indexes of rolled over generations are optimized.
+   *
+   * @param optimize
+   *          False to leave rolled over indexes as they are.
+   */
+  void setOptimize(boolean optimize) {
+    this.optimize = optimize;
+  }
+
+  /**
+   * Sets how many bytes per second optimizing may read and write.
+   *
+   * @param optimizeBytesPerSecond
+   *          The amount of bytes, zero for unlimited.
+   */
+  void setOptimizeBytesPerSecond(long optimizeBytesPerSecond) {
+    this.optimizeBytesPerSecond = optimizeBytesPerSecond;
+  }
+
+  /**
+   * Sets whether the log files of rolled over generations are compressed.
+   *
+   * @param compressRotated
+   *          True to compress rolled over log files.
+   */
+  void setCompressRotated(boolean compressRotated) {
+    this.compressRotated = compressRotated;
+  }
+
+  /**
+   * Sets how many log bytes are compressed together.
+   *
+   * @param compressBlockSize
+   *          The amount of bytes, the default if not positive.
+   */
+  void setCompressBlockSize(int compressBlockSize) {
+    if (compressBlockSize <= 0) {
+      LogLog.warn("Invalid CompressBlockSize " + compressBlockSize
+          + ", using " + BlockCompressedLog.DEFAULT_BLOCK_SIZE);
+      compressBlockSize = BlockCompressedLog.DEFAULT_BLOCK_SIZE;
+    }
+    this.compressBlockSize = compressBlockSize;
+  }
+}
@@ -0,0 +1,321 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Summarizes the log statements of one log generation: their time range, how
+ * many there are and the part of the log file they cover. It is kept next to
+ * the Lucene index of the generation, so searchers can rule a generation out
+ * without opening its index.
+ * <p>
+ * {@link FilePosTrackingRollingFileAppender} rewrites the manifest right
+ * before it commits the index and finalizes it on rollover. Its
+ * {@link #getEndOffset() end offset} is thus a high-water mark: the log file
+ * is complete up to it and no committed document ends past it, so readers
+ * need no file lock as long as they do not read beyond it.
+ */
+public final class GenerationManifest {
+
+  /**
+   * The name of the manifest file inside the index directory.
+   */
+  public static final String FILE_NAME = "manifest.properties";
+
+  /**
+   * The manifest layout written by this version.
+   */
+  public static final int SCHEMA_VERSION = 3;
+
+  /**
+   * The manifest layout.
+   */
+  private int schemaVersion = SCHEMA_VERSION;
+
+  /**
+   * The identifier of the generation, 0 if unknown.
+   */
+  private long generationId;
+
+  /**
+   * The time of the oldest log statement.
+   */
+  private long minTimestamp = Long.MAX_VALUE;
+
+  /**
+   * The time of the newest log statement.
+   */
+  private long maxTimestamp = Long.MIN_VALUE;
+
+  /**
+   * The amount of log statements.
+   */
+  private int docCount;
+
+  /**
+   * The log file offset of the first log statement.
+   */
+  private long startOffset = Long.MAX_VALUE;
+
+  /**
+   * The log file offset right after the last log statement.
+   */
+  private long endOffset;
+
+  /**
+   * True once the generation has been rolled over and will not change again.
+   */
+  private boolean finalized;
+
+  /**
+   * True once the index of the finalized generation has been merged down to
+   * one segment.
+   */
+  private boolean optimized;
+
+  /**
+   * Reads the manifest of a generation.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   *
+   * @return the manifest, or null if it is missing or unreadable.
+   */
+  public static GenerationManifest read(File indexDir) {
+    File file = new File(indexDir, FILE_NAME);
+    if (!file.exists()) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+
+      GenerationManifest manifest = new GenerationManifest();
+      manifest.schemaVersion = Integer.parseInt(properties
+          .getProperty("schemaVersion"));
+      // Absent from schema version 1
+      manifest.generationId = Long.parseLong(properties.getProperty(
+          "generationId", "0"));
+      manifest.minTimestamp = Long.parseLong(properties
+          .getProperty("minTimestamp"));
+      manifest.maxTimestamp = Long.parseLong(properties
+          .getProperty("maxTimestamp"));
+      manifest.docCount = Integer.parseInt(properties.getProperty("docCount"));
+      manifest.startOffset = Long.parseLong(properties
+          .getProperty("startOffset"));
+      manifest.endOffset = Long.parseLong(properties.getProperty("endOffset"));
+      manifest.finalized = Boolean.valueOf(properties.getProperty("finalized"))
+          .booleanValue();
+      // Absent before schema version 3
+      manifest.optimized = Boolean.valueOf(
+          properties.getProperty("optimized")).booleanValue();
+
+      return manifest;
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      // Covers missing properties too
+      return null;
+    }
+  }
+
+  /**
+   * Writes the manifest of a generation. The manifest is written aside and
+   * then renamed so readers never see a partial one.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   *
+   * @throws IOException
+   *           If the manifest cannot be written.
+   */
+  void write(File indexDir) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("schemaVersion", "" + schemaVersion);
+    properties.setProperty("generationId", "" + generationId);
+    properties.setProperty("minTimestamp", "" + minTimestamp);
+    properties.setProperty("maxTimestamp", "" + maxTimestamp);
+    properties.setProperty("docCount", "" + docCount);
+    properties.setProperty("startOffset", "" + startOffset);
+    properties.setProperty("endOffset", "" + endOffset);
+    properties.setProperty("finalized", "" + finalized);
+    properties.setProperty("optimized", "" + optimized);
+
+    File tmp = new File(indexDir, FILE_NAME + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      properties.store(out, "Log generation manifest");
+    } finally {
+      out.close();
+    }
+
+    File file = new File(indexDir, FILE_NAME);
+    // Windows does not rename onto an existing file
+    if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+      throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * Accounts for a log statement added to the generation.
+   *
+   * @param timestamp
+   *          The time of the log statement.
+   * @param fileOffset
+   *          Where the log statement starts in the log file.
+   * @param fileEndOffset
+   *          Where the log statement ends in the log file.
+   */
+  void add(long timestamp, long fileOffset, long fileEndOffset) {
+    minTimestamp = Math.min(minTimestamp, timestamp);
+    maxTimestamp = Math.max(maxTimestamp, timestamp);
+    startOffset = Math.min(startOffset, fileOffset);
+    endOffset = Math.max(endOffset, fileEndOffset);
+    docCount++;
+  }
+
+  /**
+   * Sets the identifier of the generation.
+   *
+   * @param generationId
+   *          The identifier, greater than those of older generations.
+   */
+  void setGenerationId(long generationId) {
+    this.generationId = generationId;
+  }
+
+  /**
+   * Marks the generation as rolled over.
+   */
+  void setFinalized() {
+    finalized = true;
+  }
+
+  /**
+   * Marks the index of the generation as merged down to one segment.
+   */
+  void setOptimized() {
+    optimized = true;
+  }
+
+  /**
+   * Tells whether the generation may hold log statements logged within a time
+   * window. A generation still being written may receive newer statements, so
+   * it is only ruled out if all its statements are newer than the window.
+   *
+   * @param from
+   *          The start of the window in milliseconds since epoch, inclusive.
+   * @param to
+   *          The end of the window in milliseconds since epoch, inclusive.
+   *
+   * @return false if no log statement of the generation can be in the window.
+   */
+  public boolean mayContain(long from, long to) {
+    if (docCount == 0) {
+      return !finalized;
+    }
+
+    if (minTimestamp > to) {
+      return false;
+    }
+
+    return !finalized || maxTimestamp >= from;
+  }
+
+  /**
+   * Returns the manifest layout.
+   *
+   * @return the schema version.
+   */
+  public int getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  /**
+   * Returns the identifier of the generation. It does not change when the
+   * generation is rolled over and renamed, and newer generations have greater
+   * identifiers.
+   *
+   * @return the generation identifier, 0 if written before identifiers
+   *         existed.
+   */
+  public long getGenerationId() {
+    return generationId;
+  }
+
+  /**
+   * Returns the time of the oldest log statement.
+   *
+   * @return milliseconds since epoch, {@link Long#MAX_VALUE} if empty.
+   */
+  public long getMinTimestamp() {
+    return minTimestamp;
+  }
+
+  /**
+   * Returns the time of the newest log statement.
+   *
+   * @return milliseconds since epoch, {@link Long#MIN_VALUE} if empty.
+   */
+  public long getMaxTimestamp() {
+    return maxTimestamp;
+  }
+
+  /**
+   * Returns the amount of log statements.
+   *
+   * @return the document count.
+   */
+  public int getDocCount() {
+    return docCount;
+  }
+
+  /**
+   * Returns the log file offset of the first log statement.
+   *
+   * @return the start offset, {@link Long#MAX_VALUE} if empty.
+   */
+  public long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * Returns the log file offset right after the last log statement, up to
+   * which the log file can be read safely.
+   *
+   * @return the end offset.
+   */
+  public long getEndOffset() {
+    return endOffset;
+  }
+
+  /**
+   * Tells whether the generation has been rolled over.
+   *
+   * @return true if the generation will not change again.
+   */
+  public boolean isFinalized() {
+    return finalized;
+  }
+
+  /**
+   * Tells whether the index of the generation has been merged down to one
+   * segment. Such an index is read-only: nothing writes to it again.
+   *
+   * @return true if the index is optimized.
+   */
+  public boolean isOptimized() {
+    return optimized;
+  }
+}
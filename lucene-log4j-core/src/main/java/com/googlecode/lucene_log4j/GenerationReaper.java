@@ -0,0 +1,176 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * GenerationReaper deletes the expired generations of a log rolled over in
+ * sequence mode on a dedicated thread, so rollovers do not spend the
+ * appender lock on recursive deletes.
+ * <p>
+ * Every pass scans the log directory for sequence-numbered log files,
+ * compressed or not, and index directories older than the oldest generation
+ * kept, so files left behind by a crash or still open elsewhere (Windows
+ * does not delete open files) are picked up by a later pass.
+ */
+final class GenerationReaper implements Runnable {
+
+  /**
+   * The log file name, as configured on the appender.
+   */
+  private final File logFile;
+
+  /**
+   * The index directory name the sequence suffixes are added to.
+   */
+  private final File indexDir;
+
+  /**
+   * Generations with a smaller sequence number are expired. Guarded by this.
+   */
+  private long oldest;
+
+  /**
+   * Set when {@link #oldest} moved since the last pass. Guarded by this.
+   */
+  private boolean pending;
+
+  /**
+   * Set when the appender is closed, to stop the reaper thread. Guarded by
+   * this.
+   */
+  private boolean closed;
+
+  /**
+   * Creates and starts a GenerationReaper.
+   *
+   * @param appenderName
+   *          The name of the appender, to name the thread after.
+   * @param logFileName
+   *          The log file name, as configured on the appender.
+   * @param indexDirName
+   *          The index directory name the sequence suffixes are added to.
+   */
+  GenerationReaper(String appenderName, String logFileName,
+      String indexDirName) {
+    logFile = new File(logFileName).getAbsoluteFile();
+    indexDir = new File(indexDirName).getAbsoluteFile();
+
+    Thread thread = new Thread(this, "FilePosTrackingRollingFileAppender-reaper-"
+        + appenderName);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Schedules the deletion of the generations older than the oldest one
+   * kept. Returns right away.
+   *
+   * @param oldest
+   *          The sequence number of the oldest generation kept.
+   */
+  synchronized void expire(long oldest) {
+    this.oldest = Math.max(this.oldest, oldest);
+    pending = true;
+    notifyAll();
+  }
+
+  /**
+   * Stops the reaper thread. Expired generations not deleted yet are left for
+   * the next appender.
+   */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * The reaper thread loop.
+   */
+  public void run() {
+    while (true) {
+      long expired;
+      synchronized (this) {
+        while (!pending && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+
+        expired = oldest;
+        pending = false;
+      }
+
+      deleteExpired(logFile, expired);
+      if (!indexDir.getParentFile().equals(logFile.getParentFile())) {
+        deleteExpired(indexDir, expired);
+      }
+    }
+  }
+
+  /**
+   * Deletes the generations older than {@code oldest} from the directory of
+   * a log file or index directory.
+   *
+   * @param prefix
+   *          The log file or index directory name the sequence suffixes are
+   *          added to.
+   * @param oldest
+   *          The sequence number of the oldest generation kept.
+   */
+  private void deleteExpired(File prefix, long oldest) {
+    File[] files = prefix.getParentFile().listFiles();
+    if (files == null) {
+      return;
+    }
+
+    String logName = logFile.getName();
+    String indexName = indexDir.getName();
+    for (int i = 0; i < files.length; i++) {
+      String name = files[i].getName();
+      long sequence = SequenceManifest.parseSequence(BlockCompressedLog
+          .getLogName(name), logName);
+      if (sequence < 0) {
+        sequence = SequenceManifest.parseSequence(name, indexName);
+      }
+
+      if (sequence >= 0 && sequence < oldest) {
+        LogLog.debug("Deleting expired generation " + files[i]);
+        deleteRecursively(files[i]);
+        if (files[i].exists()) {
+          LogLog.warn("Could not delete expired generation " + files[i]
+              + ", will retry on next rollover");
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete file or directory recursively.
+   *
+   * @param file
+   *          The {@link File} representing the location to delete
+   */
+  static void deleteRecursively(File file) {
+    if (file.isFile()) {
+      file.delete();
+
+      return;
+    }
+
+    // file argument is a directory
+    File[] list = file.listFiles();
+    for (int i = 0; list != null && i < list.length; i++) {
+      deleteRecursively(list[i]);
+    }
+
+    // By the the directory should be empty so delete it
+    file.delete();
+  }
+}
@@ -0,0 +1,419 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * GenerationRoller tells where the generations of a
+ * {@link FilePosTrackingRollingFileAppender} live and moves them along on
+ * rollover: in rename mode it shifts the rotated index directories and
+ * compressed log files up to <code>MaxBackupIndex</code>, in sequence mode it
+ * keeps the sequence number of the live generation, publishes it in the
+ * {@link SequenceManifest} and has the expired generations deleted by a
+ * {@link GenerationReaper}.
+ * <p>
+ * The sequence number is guarded by the index lock of the appender, which
+ * rollovers hold while switching to the next generation.
+ */
+final class GenerationRoller {
+
+  /**
+   * This is the suffix that will be added to the log file name to form the
+   * final directory name of the Lucene index.
+   */
+  private static final String LUCENE_SUFFIX = "_lucene";
+
+  /**
+   * Roll over by renaming the live generation to ".1" and shifting the older
+   * ones.
+   */
+  private static final int ROLL_OVER_RENAME = 0;
+
+  /**
+   * Roll over by switching to a new sequence-numbered generation.
+   */
+  private static final int ROLL_OVER_SEQUENCE = 1;
+
+  /**
+   * The appender whose generations are rolled over.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The index lock of the appender, guarding {@link #sequence}.
+   */
+  private final Object indexLock;
+
+  /**
+   * How generations are rolled over: one of the <code>ROLL_OVER_</code>
+   * constants.
+   */
+  private int rollOverMode = ROLL_OVER_RENAME;
+
+  /**
+   * The log file name as configured. In sequence mode the log file of the
+   * live generation has the sequence suffix added.
+   */
+  private String baseFileName;
+
+  /**
+   * The sequence number of the live generation in sequence mode, 0 until
+   * known. Guarded by {@link #indexLock}.
+   */
+  private long sequence;
+
+  /**
+   * Deletes expired generations in sequence mode, null until the first
+   * generation is opened.
+   */
+  private GenerationReaper reaper;
+
+  /**
+   * Creates a GenerationRoller in rename mode.
+   *
+   * @param appender
+   *          The appender whose generations are rolled over.
+   * @param indexLock
+   *          The index lock of the appender.
+   */
+  GenerationRoller(FilePosTrackingRollingFileAppender appender,
+      Object indexLock) {
+    this.appender = appender;
+    this.indexLock = indexLock;
+  }
+
+  /**
+   * Sets how generations are rolled over.
+   *
+   * @param mode
+   *          One of rename or sequence.
+   */
+  void setMode(String mode) {
+    if ("sequence".equalsIgnoreCase(mode)) {
+      rollOverMode = ROLL_OVER_SEQUENCE;
+    } else {
+      if (!"rename".equalsIgnoreCase(mode)) {
+        LogLog.warn("Unknown RollOverMode " + mode + ", using rename");
+      }
+      rollOverMode = ROLL_OVER_RENAME;
+    }
+  }
+
+  /**
+   * Tells whether generations are rolled over in sequence mode.
+   *
+   * @return true in sequence mode, false in rename mode.
+   */
+  boolean isSequence() {
+    return rollOverMode == ROLL_OVER_SEQUENCE;
+  }
+
+  /**
+   * Sets the log file name as configured.
+   *
+   * @param fileName
+   *          The log file name.
+   */
+  void setBaseFileName(String fileName) {
+    baseFileName = fileName;
+  }
+
+  /**
+   * Returns the log file name as configured.
+   *
+   * @return the log file name.
+   */
+  String getBaseFileName() {
+    return baseFileName;
+  }
+
+  /**
+   * Returns the log file to open for the live generation. In sequence mode
+   * it carries on with the generation that was live last time, if the
+   * sequence number is not known yet.
+   *
+   * @param fileName
+   *          The log file name being set.
+   *
+   * @return the log file name of the live generation.
+   */
+  String resolveFileName(String fileName) {
+    if (rollOverMode != ROLL_OVER_SEQUENCE) {
+      return fileName;
+    }
+
+    if (baseFileName == null) {
+      baseFileName = fileName;
+    }
+    synchronized (indexLock) {
+      if (sequence == 0) {
+        SequenceManifest sequenceManifest = SequenceManifest
+            .read(baseFileName);
+        sequence = sequenceManifest == null ? 1 : sequenceManifest
+            .getCurrent();
+      }
+
+      return baseFileName + SequenceManifest.getSuffix(sequence);
+    }
+  }
+
+  /**
+   * Points the {@link SequenceManifest} at the live generation, once it
+   * exists, and has the generations that fell out of it deleted in the
+   * background. Does nothing in rename mode.
+   */
+  void publishSequence() {
+    if (rollOverMode != ROLL_OVER_SEQUENCE) {
+      return;
+    }
+
+    long current;
+    synchronized (indexLock) {
+      current = sequence;
+    }
+    long oldest = Math.max(1, current
+        - Math.max(0, appender.getMaxBackupIndex()));
+
+    try {
+      new SequenceManifest(current, oldest).write(baseFileName);
+    } catch (IOException e) {
+      LogLog.error("Could not write generations of appender "
+          + appender.getName(), e);
+    }
+
+    if (reaper == null) {
+      reaper = new GenerationReaper(appender.getName(), baseFileName,
+          baseFileName + LUCENE_SUFFIX);
+    }
+    reaper.expire(oldest);
+  }
+
+  /**
+   * Moves on to the next sequence number. Must be called holding the index
+   * lock.
+   */
+  void nextSequence() {
+    sequence++;
+  }
+
+  /**
+   * Returns the sequence number of the live generation. Must be called
+   * holding the index lock.
+   *
+   * @return the sequence number, 0 in rename mode.
+   */
+  long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Returns the identifier of a new generation: one more than the current
+   * one, or than the newest rotated one on startup. In sequence mode it is
+   * the sequence number. Must be called holding the index lock.
+   *
+   * @param currentId
+   *          The identifier of the current generation, 0 if unknown.
+   *
+   * @return the generation identifier.
+   */
+  long nextGenerationId(long currentId) {
+    if (rollOverMode == ROLL_OVER_SEQUENCE) {
+      return sequence;
+    }
+
+    String dirName = getIndexDirName(0);
+    long lastId = currentId;
+    for (int i = 1; lastId == 0 && i <= appender.getMaxBackupIndex(); i++) {
+      GenerationManifest rotated = GenerationManifest.read(new File(dirName
+          + "." + i));
+      if (rotated != null) {
+        lastId = rotated.getGenerationId();
+      }
+    }
+
+    return lastId + 1;
+  }
+
+  /**
+   * Returns the index directory of a generation. Must be called holding the
+   * index lock in sequence mode.
+   *
+   * @param position
+   *          The position of the generation, 0 for the live one, -1 for the
+   *          next one in sequence mode.
+   *
+   * @return the index directory path.
+   */
+  String getIndexDirName(int position) {
+    if (rollOverMode == ROLL_OVER_SEQUENCE) {
+      return baseFileName + LUCENE_SUFFIX
+          + SequenceManifest.getSuffix(sequence - position);
+    }
+
+    String dirName = appender.getFile() + LUCENE_SUFFIX;
+
+    return position == 0 ? dirName : dirName + "." + position;
+  }
+
+  /**
+   * Deletes the oldest rotated index directory and shifts the others up by
+   * one, making room for the live one. Only applies in rename mode.
+   */
+  void shiftIndexDirs() {
+    int maxBackupIndex = appender.getMaxBackupIndex();
+
+    // Delete the oldest file, to keep Windows happy.
+    File file = new File(getIndexDirName(maxBackupIndex));
+    if (file.exists()) {
+      // Recursively delete directory content
+      GenerationReaper.deleteRecursively(file);
+    }
+
+    // Map {(maxBackupIndex - 1), ..., 2, 1} to {maxBackupIndex, ..., 3, 2}
+    for (int i = maxBackupIndex - 1; i >= 1; i--) {
+      file = new File(getIndexDirName(i));
+      if (file.exists()) {
+        File target = new File(getIndexDirName(i + 1));
+        LogLog.debug("Renaming directory " + file + " to " + target);
+        file.renameTo(target);
+      }
+    }
+  }
+
+  /**
+   * Shifts the compressed log files of the rolled over generations, the way
+   * {@link org.apache.log4j.RollingFileAppender#rollOver()} shifts the
+   * uncompressed ones. Only applies in rename mode.
+   */
+  void shiftCompressedLogs() {
+    int maxBackupIndex = appender.getMaxBackupIndex();
+    if (maxBackupIndex <= 0) {
+      return;
+    }
+
+    String fileName = appender.getFile();
+    File file = BlockCompressedLog.getCompressedFile(new File(fileName + '.'
+        + maxBackupIndex));
+    if (file.exists()) {
+      file.delete();
+    }
+
+    for (int i = maxBackupIndex - 1; i >= 1; i--) {
+      file = BlockCompressedLog.getCompressedFile(new File(fileName + "." + i));
+      if (file.exists()) {
+        File target = BlockCompressedLog.getCompressedFile(new File(fileName
+            + '.' + (i + 1)));
+        LogLog.debug("Renaming file " + file + " to " + target);
+        file.renameTo(target);
+      }
+    }
+  }
+
+  /**
+   * Returns the size on disk of the index of every generation.
+   *
+   * @return bytes per generation, the live one first.
+   */
+  long[] getIndexSizes() {
+    int maxBackupIndex = appender.getMaxBackupIndex();
+    String[] dirNames = new String[Math.max(0, maxBackupIndex) + 1];
+    synchronized (indexLock) {
+      for (int i = 0; i < dirNames.length; i++) {
+        if (rollOverMode != ROLL_OVER_SEQUENCE || i < sequence) {
+          dirNames[i] = getIndexDirName(i);
+        }
+      }
+    }
+
+    long[] sizes = new long[dirNames.length];
+    for (int i = 0; i < sizes.length; i++) {
+      if (dirNames[i] != null) {
+        sizes[i] = sizeOf(new File(dirNames[i]));
+      }
+    }
+
+    return sizes;
+  }
+
+  /**
+   * Returns the index directories of the rolled over generations that exist.
+   *
+   * @return the index directory paths, the newest generation first.
+   */
+  String[] getRotatedIndexDirs() {
+    List dirNames = new ArrayList();
+    synchronized (indexLock) {
+      for (int i = 1; i <= appender.getMaxBackupIndex(); i++) {
+        if (rollOverMode != ROLL_OVER_SEQUENCE || i < sequence) {
+          String dirName = getIndexDirName(i);
+          if (new File(dirName).exists()) {
+            dirNames.add(dirName);
+          }
+        }
+      }
+    }
+
+    return (String[]) dirNames.toArray(new String[dirNames.size()]);
+  }
+
+  /**
+   * Returns the uncompressed log files of the rolled over generations that
+   * exist.
+   *
+   * @return the log file paths, the newest generation first.
+   */
+  String[] getRotatedLogFiles() {
+    List logFiles = new ArrayList();
+    synchronized (indexLock) {
+      for (int i = 1; i <= appender.getMaxBackupIndex(); i++) {
+        String logFile = null;
+        if (rollOverMode != ROLL_OVER_SEQUENCE) {
+          logFile = appender.getFile() + "." + i;
+        } else if (i < sequence) {
+          logFile = baseFileName + SequenceManifest.getSuffix(sequence - i);
+        }
+        if (logFile != null && new File(logFile).exists()) {
+          logFiles.add(logFile);
+        }
+      }
+    }
+
+    return (String[]) logFiles.toArray(new String[logFiles.size()]);
+  }
+
+  /**
+   * Stops the {@link GenerationReaper}, if any.
+   */
+  void close() {
+    if (reaper != null) {
+      reaper.close();
+      reaper = null;
+    }
+  }
+
+  /**
+   * Sums the size of the files in a directory.
+   *
+   * @param dir
+   *          The directory.
+   *
+   * @return bytes, 0 if the directory is missing.
+   */
+  private static long sizeOf(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return 0;
+    }
+
+    long size = 0;
+    for (int i = 0; i < files.length; i++) {
+      size += files[i].isDirectory() ? sizeOf(files[i]) : files[i].length();
+    }
+
+    return size;
+  }
+}
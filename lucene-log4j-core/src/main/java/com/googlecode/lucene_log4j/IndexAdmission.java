@@ -0,0 +1,150 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * IndexAdmission decides which log statements of a
+ * {@link FilePosTrackingRollingFileAppender} are worth indexing, before
+ * anything is queued or populated for them. Log statements left out are
+ * still written to the log file; since every indexed statement records where
+ * it ends, search results are not affected by the gaps.
+ * <p>
+ * A log statement is admitted if all of these hold:
+ * <ul>
+ * <li>its level is at least the <code>IndexThreshold</code></li>
+ * <li>its logger name starts with one of the <code>IndexLoggers</code>
+ * prefixes, if any</li>
+ * <li>its logger name starts with none of the
+ * <code>IndexExcludedLoggers</code> prefixes</li>
+ * <li>it has an MDC value under the <code>IndexRequiredMdcKey</code>, if
+ * any</li>
+ * </ul>
+ */
+final class IndexAdmission {
+
+  /**
+   * The least level indexed, null for all.
+   */
+  private final Priority threshold;
+
+  /**
+   * The logger name prefixes indexed, empty for all.
+   */
+  private final String[] loggers;
+
+  /**
+   * The logger name prefixes not indexed.
+   */
+  private final String[] excludedLoggers;
+
+  /**
+   * The MDC key indexed log statements must have, null for none.
+   */
+  private final String requiredMdcKey;
+
+  /**
+   * Creates an IndexAdmission.
+   *
+   * @param threshold
+   *          The least level indexed, null for all.
+   * @param loggers
+   *          The comma separated logger name prefixes indexed, null for all.
+   * @param excludedLoggers
+   *          The comma separated logger name prefixes not indexed, null for
+   *          none.
+   * @param requiredMdcKey
+   *          The MDC key indexed log statements must have, null for none.
+   */
+  IndexAdmission(Priority threshold, String loggers, String excludedLoggers,
+      String requiredMdcKey) {
+    this.threshold = threshold;
+    this.loggers = parsePrefixes(loggers);
+    this.excludedLoggers = parsePrefixes(excludedLoggers);
+    this.requiredMdcKey = requiredMdcKey == null
+        || requiredMdcKey.trim().length() == 0 ? null : requiredMdcKey.trim();
+  }
+
+  /**
+   * Splits a comma separated list of logger name prefixes.
+   *
+   * @param prefixes
+   *          The list, null for none.
+   *
+   * @return the prefixes.
+   */
+  private static String[] parsePrefixes(String prefixes) {
+    List list = new ArrayList();
+    if (prefixes != null) {
+      StringTokenizer tokens = new StringTokenizer(prefixes, ",");
+      while (tokens.hasMoreTokens()) {
+        String prefix = tokens.nextToken().trim();
+        if (prefix.length() > 0) {
+          list.add(prefix);
+        }
+      }
+    }
+
+    return (String[]) list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Tells whether admitting is a no-op, so the appender can skip it.
+   *
+   * @return true if every log statement is admitted.
+   */
+  boolean admitsAll() {
+    return threshold == null && loggers.length == 0
+        && excludedLoggers.length == 0 && requiredMdcKey == null;
+  }
+
+  /**
+   * Tells whether a log statement is indexed.
+   *
+   * @param event
+   *          The log statement.
+   *
+   * @return true if admitted.
+   */
+  boolean admits(LoggingEvent event) {
+    if (threshold != null && !event.getLevel().isGreaterOrEqual(threshold)) {
+      return false;
+    }
+
+    if (loggers.length > 0 || excludedLoggers.length > 0) {
+      String logger = event.getLoggerName();
+      if (loggers.length > 0 && !startsWithAny(logger, loggers)) {
+        return false;
+      }
+      if (startsWithAny(logger, excludedLoggers)) {
+        return false;
+      }
+    }
+
+    return requiredMdcKey == null || event.getMDC(requiredMdcKey) != null;
+  }
+
+  /**
+   * Tells whether a logger name starts with one of the prefixes.
+   *
+   * @param logger
+   *          The logger name.
+   * @param prefixes
+   *          The prefixes.
+   *
+   * @return true if one matches.
+   */
+  private static boolean startsWithAny(String logger, String[] prefixes) {
+    for (int i = 0; i < prefixes.length; i++) {
+      if (logger.startsWith(prefixes[i])) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
@@ -0,0 +1,129 @@
+package com.googlecode.lucene_log4j;
+
+/**
+ * IndexFlusher commits the {@link LogIndex} of a
+ * {@link FilePosTrackingRollingFileAppender} on a dedicated thread every
+ * <code>IndexFlushInterval</code>, or sooner when the index wakes it up
+ * because <code>IndexFlushBytes</code> worth of log is waiting. It also
+ * serves {@link FilePosTrackingRollingFileAppender#signalFlush(long)}.
+ * <p>
+ * The flush thread waits on the index lock of the appender, which it holds
+ * while flushing.
+ */
+final class IndexFlusher implements Runnable {
+
+  /**
+   * The index lock of the appender.
+   */
+  private final Object indexLock;
+
+  /**
+   * The index flushed.
+   */
+  private final LogIndex index;
+
+  /**
+   * Drains the statements waiting to be written or indexed before a flush.
+   */
+  private final IndexingPipeline pipeline;
+
+  /**
+   * The milliseconds between two flushes, zero to only flush when woken up.
+   */
+  private final int interval;
+
+  /**
+   * Set when the appender is closed, to stop the flush thread. Guarded by
+   * {@link #indexLock}.
+   */
+  private boolean closed;
+
+  /**
+   * Creates and starts an IndexFlusher.
+   *
+   * @param appender
+   *          The appender whose index is flushed.
+   * @param indexLock
+   *          The index lock of the appender.
+   * @param index
+   *          The index flushed.
+   * @param pipeline
+   *          The pipeline feeding the index.
+   * @param interval
+   *          The milliseconds between two flushes, zero to only flush when
+   *          woken up.
+   */
+  IndexFlusher(FilePosTrackingRollingFileAppender appender, Object indexLock,
+      LogIndex index, IndexingPipeline pipeline, int interval) {
+    this.indexLock = indexLock;
+    this.index = index;
+    this.pipeline = pipeline;
+    this.interval = interval;
+
+    Thread thread = new Thread(this, "FilePosTrackingRollingFileAppender-flush-"
+        + appender.getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Commits the index, once the statements waiting at the
+   * {@link AsyncIndexer} have made it. It does nothing while the index is
+   * clean.
+   */
+  void flush() {
+    synchronized (indexLock) {
+      pipeline.drainIndexQueue();
+      index.flush();
+    }
+  }
+
+  /**
+   * Commits the index if it was last flushed long enough ago, once the
+   * statements waiting in the {@link EventRingBuffer} are written. Must not
+   * be called holding the appender lock or the index lock.
+   *
+   * @param maxAge
+   *          The time in milliseconds the index may go without a flush.
+   */
+  void flush(long maxAge) {
+    synchronized (indexLock) {
+      if (!index.isFlushDue(maxAge)) {
+        return;
+      }
+    }
+
+    pipeline.drainRingBuffer();
+    flush();
+  }
+
+  /**
+   * Stops the flush thread.
+   */
+  void close() {
+    synchronized (indexLock) {
+      closed = true;
+      indexLock.notifyAll();
+    }
+  }
+
+  /**
+   * The flush thread loop.
+   */
+  public void run() {
+    synchronized (indexLock) {
+      while (!closed) {
+        try {
+          indexLock.wait(interval);
+        } catch (InterruptedException e) {
+          // Do nothing since close() will relase all resources
+          return;
+        }
+
+        if (!closed) {
+          flush();
+        }
+      }
+    }
+  }
+}
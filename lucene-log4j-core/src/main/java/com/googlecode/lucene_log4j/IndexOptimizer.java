@@ -0,0 +1,431 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * IndexOptimizer merges the index of every rolled over generation of a
+ * {@link FilePosTrackingRollingFileAppender} down to one segment on a low
+ * priority thread, so searches on older generations do not pay for the
+ * segments left by the flush cycle. Reads and writes are limited to a
+ * configurable amount of bytes per second.
+ * <p>
+ * Each pass looks at all rolled over generations and skips those whose
+ * {@link GenerationManifest} already says optimized, so generations missed
+ * because of a shutdown are picked up on the next start. A pass is aborted
+ * while {@link #pause() paused}, which the rename mode needs since directory
+ * names move under the optimizer.
+ * <p>
+ * A generation is only optimized once its index is closed: in rename mode it
+ * is closed before the rollover resumes the optimizer, in sequence mode it is
+ * left alone from {@link #closing(String)} to {@link #closed(String)}. An
+ * index whose write lock is still held anyway is tried again after
+ * {@link #RETRY_DELAY}. If still held then, the lock was left by a crash, as
+ * nothing else writes to rolled over generations, and it is deleted.
+ */
+final class IndexOptimizer implements Runnable {
+
+  /**
+   * The longest pause between two throttled reads or writes, in
+   * milliseconds, so an abort is noticed quickly.
+   */
+  private static final long MAX_THROTTLE_WAIT = 100;
+
+  /**
+   * How long to wait before trying again a generation whose write lock was
+   * held, in milliseconds.
+   */
+  private static final long RETRY_DELAY = 10000;
+
+  /**
+   * The appender whose generations are optimized.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * Tells which generations are rolled over.
+   */
+  private final GenerationRoller roller;
+
+  /**
+   * The analyzer of the appender.
+   */
+  private final Analyzer analyzer;
+
+  /**
+   * The bytes read and written per second, zero for unlimited.
+   */
+  private final long bytesPerSecond;
+
+  /**
+   * When the throttled bytes so far are allowed, in nanoseconds. Only used by
+   * the optimizer thread.
+   */
+  private long allowedAt;
+
+  /**
+   * Set when generations were rolled over since the last pass. Guarded by
+   * this.
+   */
+  private boolean pending;
+
+  /**
+   * The amount of unmatched {@link #pause()} calls. Guarded by this.
+   */
+  private int paused;
+
+  /**
+   * Set while the optimizer thread has a generation open. Guarded by this.
+   */
+  private boolean busy;
+
+  /**
+   * Set when a generation of the last pass could not be locked, so another
+   * pass is made after {@link #RETRY_DELAY}. Guarded by this.
+   */
+  private boolean deferred;
+
+  /**
+   * Maps the index directories found locked to when they were first found
+   * locked, in milliseconds. Only used by the optimizer thread.
+   */
+  private final Map locked = new HashMap();
+
+  /**
+   * The index directories of the rolled over generations whose index is
+   * still being closed. Guarded by this.
+   */
+  private final Set closing = new HashSet();
+
+  /**
+   * Set when the appender is closed, to stop the optimizer thread. Guarded by
+   * this.
+   */
+  private boolean closed;
+
+  /**
+   * Creates and starts an IndexOptimizer, which makes a first pass right
+   * away.
+   *
+   * @param appender
+   *          The appender whose generations are optimized.
+   * @param roller
+   *          Tells which generations are rolled over.
+   * @param analyzer
+   *          The analyzer of the appender.
+   * @param bytesPerSecond
+   *          The bytes read and written per second, zero for unlimited.
+   */
+  IndexOptimizer(FilePosTrackingRollingFileAppender appender,
+      GenerationRoller roller, Analyzer analyzer, long bytesPerSecond) {
+    this.appender = appender;
+    this.roller = roller;
+    this.analyzer = analyzer;
+    this.bytesPerSecond = bytesPerSecond;
+    pending = true;
+
+    Thread thread = new Thread(this,
+        "FilePosTrackingRollingFileAppender-optimizer-" + appender.getName());
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Schedules a pass over the rolled over generations. Returns right away.
+   */
+  synchronized void schedule() {
+    pending = true;
+    notifyAll();
+  }
+
+  /**
+   * Leaves a rolled over generation alone until {@link #closed(String)}.
+   *
+   * @param indexDir
+   *          The index directory of the generation, whose index is being
+   *          closed.
+   */
+  synchronized void closing(String indexDir) {
+    closing.add(indexDir);
+  }
+
+  /**
+   * Schedules a pass now that the index of a rolled over generation is
+   * closed.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   */
+  synchronized void closed(String indexDir) {
+    closing.remove(indexDir);
+    schedule();
+  }
+
+  /**
+   * Aborts the generation being optimized, if any, and holds off the next
+   * ones until {@link #resume()}. Returns once no generation is open.
+   */
+  synchronized void pause() {
+    paused++;
+    notifyAll();
+    while (busy) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        return;
+      }
+    }
+  }
+
+  /**
+   * Undoes a {@link #pause()} and schedules a pass, since the aborted
+   * generation still needs optimizing.
+   */
+  synchronized void resume() {
+    paused--;
+    schedule();
+  }
+
+  /**
+   * Stops the optimizer thread, aborting the generation being optimized.
+   * Returns once no generation is open.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    pause();
+  }
+
+  /**
+   * The optimizer thread loop.
+   */
+  public void run() {
+    while (awaitPass()) {
+      String[] indexDirs = roller.getRotatedIndexDirs();
+      for (int i = 0; i < indexDirs.length; i++) {
+        if (!optimize(new File(indexDirs[i]))) {
+          // Aborted, resumed later
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until a pass is scheduled, or the retry delay of a deferred
+   * generation is over.
+   *
+   * @return false if the optimizer has been closed.
+   */
+  private synchronized boolean awaitPass() {
+    long retryAt = deferred ? System.currentTimeMillis() + RETRY_DELAY
+        : Long.MAX_VALUE;
+    deferred = false;
+    while (!closed && (!pending || paused > 0)) {
+      long delay = retryAt - System.currentTimeMillis();
+      if (delay <= 0) {
+        pending = true;
+        retryAt = Long.MAX_VALUE;
+        continue;
+      }
+
+      try {
+        wait(retryAt == Long.MAX_VALUE ? 0 : delay);
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    if (closed) {
+      return false;
+    }
+
+    pending = false;
+
+    return true;
+  }
+
+  /**
+   * Merges the index of a rolled over generation down to one segment and
+   * records it in its manifest.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   *
+   * @return false if aborted.
+   */
+  private boolean optimize(File indexDir) {
+    synchronized (this) {
+      if (paused > 0 || closed) {
+        return false;
+      }
+      if (closing.contains(indexDir.getPath())) {
+        // Scheduled again once closed
+        return true;
+      }
+      busy = true;
+    }
+
+    try {
+      GenerationManifest manifest = GenerationManifest.read(indexDir);
+      if (manifest == null || !manifest.isFinalized()
+          || manifest.isOptimized()) {
+        // Still written, predates manifests or already done
+        return true;
+      }
+
+      long start = System.nanoTime();
+      merge(indexDir, start);
+      locked.remove(indexDir.getPath());
+
+      manifest.setOptimized();
+      manifest.write(indexDir);
+      appender.getMetrics().optimized(System.nanoTime() - start);
+      LogLog.debug("Optimized " + indexDir);
+
+      return true;
+    } catch (IOException e) {
+      return failed(indexDir, e);
+    } finally {
+      synchronized (this) {
+        busy = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Handles a generation that could not be optimized.
+   *
+   * @param indexDir
+   *          The index directory of the generation.
+   * @param e
+   *          The failure.
+   *
+   * @return false if aborted.
+   */
+  private boolean failed(File indexDir, IOException e) {
+    if (isAborted()) {
+      LogLog.debug("Aborted optimizing " + indexDir);
+
+      return false;
+    }
+
+    String message = e.getMessage();
+    if (message != null && message.indexOf("Lock obtain timed out") != -1) {
+      // Still written to, tried again later
+      LogLog.debug("Deferred optimizing " + indexDir + ": " + message);
+      if (!locked.containsKey(indexDir.getPath())) {
+        locked.put(indexDir.getPath(), new Long(System.currentTimeMillis()));
+      }
+      synchronized (this) {
+        deferred = true;
+      }
+    } else if (indexDir.exists()) {
+      // Expired meanwhile, or broken, either way left as it is
+      LogLog.warn("Could not optimize " + indexDir, e);
+    }
+
+    return true;
+  }
+
+  /**
+   * Merges an index down to one segment, at the throttled pace.
+   *
+   * @param indexDir
+   *          The index directory.
+   * @param start
+   *          When the merge started, in nanoseconds.
+   *
+   * @throws IOException
+   *           If the index could not be merged, or the merge was aborted.
+   */
+  private void merge(File indexDir, long start) throws IOException {
+    allowedAt = start;
+    FSDirectory directory = FSDirectory.getDirectory(indexDir, false);
+    try {
+      Long lockedAt = (Long) locked.get(indexDir.getPath());
+      if (lockedAt != null
+          && System.currentTimeMillis() - lockedAt.longValue() >= RETRY_DELAY) {
+        locked.remove(indexDir.getPath());
+        if (IndexReader.isLocked(directory)) {
+          LogLog.warn("Deleting stale write lock of " + indexDir);
+          IndexReader.unlock(directory);
+        }
+      }
+
+      IndexWriter writer = new IndexWriter(new ThrottledDirectory(directory,
+          this), analyzer, false);
+      try {
+        writer.optimize();
+      } finally {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          // An aborted writer cannot flush, and then keeps its write lock,
+          // which nobody else takes on a rolled over generation
+          IndexReader.unlock(directory);
+          throw e;
+        }
+      }
+    } finally {
+      directory.close();
+    }
+  }
+
+  /**
+   * Tells whether the generation being optimized should be given up.
+   *
+   * @return true if paused or closed.
+   */
+  private synchronized boolean isAborted() {
+    return paused > 0 || closed;
+  }
+
+  /**
+   * Waits until {@code bytes} more bytes may be read or written. Called by
+   * the {@link ThrottledDirectory} before every read and write.
+   *
+   * @param bytes
+   *          The amount of bytes about to be read or written.
+   *
+   * @throws IOException
+   *           If aborted, so the merge stops right away.
+   */
+  void throttle(int bytes) throws IOException {
+    if (bytesPerSecond > 0) {
+      allowedAt += bytes * 1000000000L / bytesPerSecond;
+      long wait;
+      while ((wait = (allowedAt - System.nanoTime()) / 1000000) > 0) {
+        synchronized (this) {
+          if (paused > 0 || closed) {
+            break;
+          }
+
+          try {
+            wait(Math.min(wait, MAX_THROTTLE_WAIT));
+          } catch (InterruptedException e) {
+            throw new IOException("Interrupted while optimizing");
+          }
+        }
+      }
+    }
+
+    if (isAborted()) {
+      throw new IOException("Optimize aborted");
+    }
+  }
+}
@@ -0,0 +1,374 @@
+package com.googlecode.lucene_log4j;
+
+import org.apache.log4j.Priority;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * IndexingPipeline decides which log statements of a
+ * {@link FilePosTrackingRollingFileAppender} are indexed and on which thread:
+ * the {@link IndexAdmission} leaves statements out, the {@link AsyncIndexer}
+ * takes indexing off the logging threads and the {@link EventRingBuffer}
+ * takes writing off them as well.
+ * <p>
+ * It is configured before the appender is activated and started by
+ * {@link #start(Object)}.
+ */
+final class IndexingPipeline {
+
+  /**
+   * Represents the default amount of events waiting to be indexed when
+   * {@link #asyncIndexing} is on.
+   */
+  private static final int DEFAULT_INDEX_QUEUE_SIZE = 1024;
+
+  /**
+   * Represents the default amount of events the indexer thread adds to the
+   * index in one go.
+   */
+  private static final int DEFAULT_INDEX_BATCH_SIZE = 128;
+
+  /**
+   * The appender whose log statements are indexed.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The least level indexed, null for all.
+   */
+  private Priority indexThreshold;
+
+  /**
+   * The comma separated logger name prefixes indexed, null for all.
+   */
+  private String indexLoggers;
+
+  /**
+   * The comma separated logger name prefixes not indexed, null for none.
+   */
+  private String indexExcludedLoggers;
+
+  /**
+   * The MDC key indexed log statements must have, null for none.
+   */
+  private String indexRequiredMdcKey;
+
+  /**
+   * Decides which log statements are indexed, null to index all. Built by
+   * {@link #start(Object)}.
+   */
+  private volatile IndexAdmission indexAdmission;
+
+  /**
+   * If true, log statements are indexed by a dedicated thread instead of the
+   * logging thread.
+   */
+  private boolean asyncIndexing;
+
+  /**
+   * The maximum amount of events waiting to be indexed when
+   * {@link #asyncIndexing} is on.
+   */
+  private int indexQueueSize = DEFAULT_INDEX_QUEUE_SIZE;
+
+  /**
+   * The maximum amount of events the indexer thread adds to the index in one
+   * go.
+   */
+  private int indexBatchSize = DEFAULT_INDEX_BATCH_SIZE;
+
+  /**
+   * What to do when the index queue is full: one of the
+   * <code>AsyncIndexer.POLICY_</code> constants.
+   */
+  private int indexQueueFullPolicy = AsyncIndexer.POLICY_BLOCK;
+
+  /**
+   * The indexer used when {@link #asyncIndexing} is on, null otherwise.
+   */
+  private volatile AsyncIndexer asyncIndexer;
+
+  /**
+   * The least amount of slots of the {@link EventRingBuffer}, zero to write on
+   * the logging threads.
+   */
+  private int ringBufferSize;
+
+  /**
+   * Whether logging threads capture the caller location of their events
+   * before handing them to the {@link EventRingBuffer}.
+   */
+  private boolean ringBufferLocationInfo;
+
+  /**
+   * The ring buffer used when {@link #ringBufferSize} is set, null otherwise.
+   */
+  private volatile EventRingBuffer ringBuffer;
+
+  /**
+   * Creates the IndexingPipeline of an appender, started later.
+   *
+   * @param appender
+   *          The appender whose log statements are indexed.
+   */
+  IndexingPipeline(FilePosTrackingRollingFileAppender appender) {
+    this.appender = appender;
+  }
+
+  /**
+   * Builds the {@link IndexAdmission} and starts the {@link AsyncIndexer} and
+   * {@link EventRingBuffer} threads, if turned on.
+   *
+   * @param indexLock
+   *          The index lock of the appender.
+   */
+  void start(Object indexLock) {
+    IndexAdmission admission = new IndexAdmission(indexThreshold,
+        indexLoggers, indexExcludedLoggers, indexRequiredMdcKey);
+    indexAdmission = admission.admitsAll() ? null : admission;
+
+    if ((asyncIndexing || ringBufferSize > 0) && asyncIndexer == null) {
+      asyncIndexer = new AsyncIndexer(appender, indexLock, indexQueueSize,
+          indexBatchSize, indexQueueFullPolicy);
+    }
+
+    if (ringBufferSize > 0 && ringBuffer == null) {
+      ringBuffer = new EventRingBuffer(appender, ringBufferSize,
+          indexBatchSize, ringBufferLocationInfo);
+    }
+  }
+
+  /**
+   * Returns the ring buffer logging threads hand their events to.
+   *
+   * @return the {@link EventRingBuffer}, null when writing on the logging
+   *         threads.
+   */
+  EventRingBuffer getRingBuffer() {
+    return ringBuffer;
+  }
+
+  /**
+   * Tells whether a log statement is indexed.
+   *
+   * @param event
+   *          The log statement.
+   *
+   * @return false if the {@link IndexAdmission} leaves it out.
+   */
+  boolean admits(LoggingEvent event) {
+    IndexAdmission admission = indexAdmission;
+
+    return admission == null || admission.admits(event);
+  }
+
+  /**
+   * Indexes a log statement written to the log file, on the indexer thread
+   * when {@link #asyncIndexing} is on.
+   *
+   * @param fileOffset
+   *          The position of the log statement.
+   * @param endOffset
+   *          The position right after the log statement.
+   * @param event
+   *          The log statement.
+   */
+  void index(long fileOffset, long endOffset, LoggingEvent event) {
+    AsyncIndexer indexer = asyncIndexer;
+    if (indexer != null) {
+      indexer.enqueue(fileOffset, endOffset, event);
+    } else {
+      appender.writeToLucene(fileOffset, endOffset, event);
+    }
+  }
+
+  /**
+   * Indexes the statements waiting at the {@link AsyncIndexer}, if any, so
+   * they end up in the current index.
+   */
+  void drainIndexQueue() {
+    AsyncIndexer indexer = asyncIndexer;
+    if (indexer != null) {
+      indexer.drain();
+    }
+  }
+
+  /**
+   * Writes the events waiting in the {@link EventRingBuffer}, if any. Must not
+   * be called holding the appender lock or the index lock.
+   */
+  void drainRingBuffer() {
+    EventRingBuffer ring = ringBuffer;
+    if (ring != null) {
+      ring.drain();
+    }
+  }
+
+  /**
+   * Stops the {@link EventRingBuffer} thread once it wrote what is left. Must
+   * not be called holding the appender lock.
+   */
+  void closeRingBuffer() {
+    EventRingBuffer ring = ringBuffer;
+    if (ring != null) {
+      ring.close();
+      ringBuffer = null;
+    }
+  }
+
+  /**
+   * Stops the {@link AsyncIndexer} thread once it indexed what is left.
+   */
+  void closeIndexer() {
+    AsyncIndexer indexer = asyncIndexer;
+    if (indexer != null) {
+      indexer.close();
+      asyncIndexer = null;
+    }
+  }
+
+  /**
+   * Returns the amount of log statements waiting at the {@link AsyncIndexer}.
+   *
+   * @return the queue depth, 0 when indexing synchronously.
+   */
+  int getIndexQueueDepth() {
+    AsyncIndexer indexer = asyncIndexer;
+
+    return indexer == null ? 0 : indexer.size();
+  }
+
+  /**
+   * Returns the amount of log statements the {@link AsyncIndexer} dropped.
+   *
+   * @return the dropped count, 0 when indexing synchronously.
+   */
+  long getIndexQueueDropped() {
+    AsyncIndexer indexer = asyncIndexer;
+
+    return indexer == null ? 0 : indexer.getDropped();
+  }
+
+  /**
+   * Returns the amount of log statements waiting in the
+   * {@link EventRingBuffer}.
+   *
+   * @return the ring depth, 0 when writing on the logging threads.
+   */
+  int getRingBufferDepth() {
+    EventRingBuffer ring = ringBuffer;
+
+    return ring == null ? 0 : ring.size();
+  }
+
+  /**
+   * Sets the least level of the log statements indexed.
+   *
+   * @param indexThreshold
+   *          The level, null to index all levels.
+   */
+  void setIndexThreshold(Priority indexThreshold) {
+    this.indexThreshold = indexThreshold;
+  }
+
+  /**
+   * Sets the logger name prefixes of the log statements indexed.
+   *
+   * @param indexLoggers
+   *          The comma separated prefixes, null to index all loggers.
+   */
+  void setIndexLoggers(String indexLoggers) {
+    this.indexLoggers = indexLoggers;
+  }
+
+  /**
+   * Sets the logger name prefixes of the log statements left out.
+   *
+   * @param indexExcludedLoggers
+   *          The comma separated prefixes, null to exclude none.
+   */
+  void setIndexExcludedLoggers(String indexExcludedLoggers) {
+    this.indexExcludedLoggers = indexExcludedLoggers;
+  }
+
+  /**
+   * Sets the MDC key indexed log statements must have.
+   *
+   * @param indexRequiredMdcKey
+   *          The MDC key, null for none.
+   */
+  void setIndexRequiredMdcKey(String indexRequiredMdcKey) {
+    this.indexRequiredMdcKey = indexRequiredMdcKey;
+  }
+
+  /**
+   * Turns on indexing on a dedicated thread.
+   *
+   * @param asyncIndexing
+   *          true to index asynchronously.
+   */
+  void setAsyncIndexing(boolean asyncIndexing) {
+    this.asyncIndexing = asyncIndexing;
+  }
+
+  /**
+   * Sets the maximum amount of log statements waiting to be indexed.
+   *
+   * @param indexQueueSize
+   *          The queue capacity.
+   */
+  void setIndexQueueSize(int indexQueueSize) {
+    this.indexQueueSize = indexQueueSize;
+  }
+
+  /**
+   * Sets the maximum amount of log statements indexed or written in one go.
+   *
+   * @param indexBatchSize
+   *          The batch size.
+   */
+  void setIndexBatchSize(int indexBatchSize) {
+    this.indexBatchSize = indexBatchSize;
+  }
+
+  /**
+   * Sets what to do with a log statement when the index queue is full.
+   *
+   * @param policy
+   *          One of block, drop or inline.
+   */
+  void setIndexQueueFullPolicy(String policy) {
+    if ("drop".equalsIgnoreCase(policy)) {
+      indexQueueFullPolicy = AsyncIndexer.POLICY_DROP;
+    } else if ("inline".equalsIgnoreCase(policy)) {
+      indexQueueFullPolicy = AsyncIndexer.POLICY_INLINE;
+    } else {
+      if (!"block".equalsIgnoreCase(policy)) {
+        LogLog.warn("Unknown IndexQueueFullPolicy " + policy
+            + ", using block");
+      }
+      indexQueueFullPolicy = AsyncIndexer.POLICY_BLOCK;
+    }
+  }
+
+  /**
+   * Sets the least amount of slots of the {@link EventRingBuffer}.
+   *
+   * @param ringBufferSize
+   *          The amount of slots, zero to write on the logging threads.
+   */
+  void setRingBufferSize(int ringBufferSize) {
+    this.ringBufferSize = Math.max(0, ringBufferSize);
+  }
+
+  /**
+   * Sets whether logging threads capture the caller location of their
+   * events.
+   *
+   * @param ringBufferLocationInfo
+   *          true to capture the caller location.
+   */
+  void setRingBufferLocationInfo(boolean ringBufferLocationInfo) {
+    this.ringBufferLocationInfo = ringBufferLocationInfo;
+  }
+}
@@ -0,0 +1,134 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations into power of two microsecond buckets, so percentiles can
+ * be estimated without keeping samples. Recording does not allocate.
+ */
+public final class LatencyHistogram {
+
+  /**
+   * The amount of buckets. The last one holds everything from about 36
+   * minutes on.
+   */
+  private static final int BUCKETS = 32;
+
+  /**
+   * The amount of durations in each bucket. Bucket <i>i</i> holds durations
+   * below 2<sup><i>i</i></sup> microseconds.
+   */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The amount of recorded durations.
+   */
+  private final StripedCounter count = new StripedCounter();
+
+  /**
+   * The sum of the recorded durations in nanoseconds.
+   */
+  private final StripedCounter totalNanos = new StripedCounter();
+
+  /**
+   * The longest recorded duration in nanoseconds.
+   */
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos
+   *          The duration in nanoseconds.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    long micros = nanos / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    count.increment();
+    totalNanos.add(nanos);
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * Returns the amount of recorded durations.
+   *
+   * @return the count.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Returns the sum of the recorded durations.
+   *
+   * @return the total in microseconds.
+   */
+  public long getTotalMicros() {
+    return totalNanos.sum() / 1000;
+  }
+
+  /**
+   * Returns the mean recorded duration.
+   *
+   * @return the mean in microseconds, 0 if nothing was recorded.
+   */
+  public double getMeanMicros() {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+
+    return totalNanos.sum() / 1000d / count;
+  }
+
+  /**
+   * Returns the longest recorded duration.
+   *
+   * @return the maximum in microseconds.
+   */
+  public long getMaxMicros() {
+    return maxNanos.get() / 1000;
+  }
+
+  /**
+   * Estimates a percentile of the recorded durations as the upper bound of the
+   * bucket it falls in.
+   *
+   * @param percentile
+   *          The percentile, between 0 and 100.
+   *
+   * @return the duration in microseconds, 0 if nothing was recorded.
+   */
+  public long getPercentileMicros(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(1L << i, getMaxMicros());
+      }
+    }
+
+    return getMaxMicros();
+  }
+}
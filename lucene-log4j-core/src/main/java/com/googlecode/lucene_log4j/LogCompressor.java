@@ -0,0 +1,229 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * LogCompressor turns the log files of rolled over generations of a
+ * {@link FilePosTrackingRollingFileAppender} into {@link BlockCompressedLog}s
+ * on a low priority thread, deleting each log file once its compressed file
+ * is complete.
+ * <p>
+ * Each pass looks at all rolled over log files still there, so those missed
+ * because of a shutdown, or not deleted because a searcher still had them
+ * open on Windows, are picked up by a later pass. A pass is aborted while
+ * {@link #pause() paused}, which rollovers need since file names move under
+ * the compressor in rename mode, and the log file of the generation being
+ * rolled over is only closed halfway in sequence mode.
+ */
+final class LogCompressor implements Runnable {
+
+  /**
+   * The appender whose log files are compressed.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * Tells which log files are rolled over.
+   */
+  private final GenerationRoller roller;
+
+  /**
+   * The amount of log bytes compressed together.
+   */
+  private final int blockSize;
+
+  /**
+   * Set when generations were rolled over since the last pass. Guarded by
+   * this.
+   */
+  private boolean pending;
+
+  /**
+   * The amount of unmatched {@link #pause()} calls. Guarded by this.
+   */
+  private int paused;
+
+  /**
+   * Set while the compressor thread has a log file open. Guarded by this.
+   */
+  private boolean busy;
+
+  /**
+   * Set when the appender is closed, to stop the compressor thread. Guarded
+   * by this.
+   */
+  private boolean closed;
+
+  /**
+   * Creates and starts a LogCompressor, which makes a first pass right away.
+   *
+   * @param appender
+   *          The appender whose log files are compressed.
+   * @param roller
+   *          Tells which log files are rolled over.
+   * @param blockSize
+   *          The amount of log bytes compressed together.
+   */
+  LogCompressor(FilePosTrackingRollingFileAppender appender,
+      GenerationRoller roller, int blockSize) {
+    this.appender = appender;
+    this.roller = roller;
+    this.blockSize = blockSize;
+    pending = true;
+
+    Thread thread = new Thread(this,
+        "FilePosTrackingRollingFileAppender-compressor-" + appender.getName());
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Schedules a pass over the rolled over log files. Returns right away.
+   */
+  synchronized void schedule() {
+    pending = true;
+    notifyAll();
+  }
+
+  /**
+   * Aborts the log file being compressed, if any, and holds off the next
+   * ones until {@link #resume()}. Returns once no log file is open.
+   */
+  synchronized void pause() {
+    paused++;
+    notifyAll();
+    while (busy) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        return;
+      }
+    }
+  }
+
+  /**
+   * Undoes a {@link #pause()} and schedules a pass, for the log file just
+   * rolled over and the aborted one.
+   */
+  synchronized void resume() {
+    paused--;
+    schedule();
+  }
+
+  /**
+   * Stops the compressor thread, aborting the log file being compressed.
+   * Returns once no log file is open.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    pause();
+  }
+
+  /**
+   * The compressor thread loop.
+   */
+  public void run() {
+    while (true) {
+      synchronized (this) {
+        while (!closed && (!pending || paused > 0)) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+
+        pending = false;
+      }
+
+      String[] logFiles = roller.getRotatedLogFiles();
+      for (int i = 0; i < logFiles.length; i++) {
+        if (!compress(new File(logFiles[i]))) {
+          // Aborted, resumed later
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Compresses the log file of a rolled over generation and deletes it.
+   *
+   * @param log
+   *          The log file.
+   *
+   * @return false if aborted.
+   */
+  private boolean compress(File log) {
+    synchronized (this) {
+      if (paused > 0 || closed) {
+        return false;
+      }
+      busy = true;
+    }
+
+    try {
+      if (!BlockCompressedLog.getCompressedFile(log).exists()) {
+        BlockCompressedLog.compress(log, blockSize, this);
+        LogLog.debug("Compressed " + log);
+      }
+
+      if (!log.delete() && log.exists()) {
+        LogLog.debug("Could not delete compressed log " + log
+            + ", will retry on next rollover");
+      }
+
+      return true;
+    } catch (IOException e) {
+      if (isAborted()) {
+        LogLog.debug("Aborted compressing " + log);
+
+        return false;
+      }
+
+      // Expired meanwhile, or unreadable, either way left as it is
+      if (log.exists()) {
+        LogLog.warn("Could not compress " + log, e);
+      }
+
+      return true;
+    } finally {
+      synchronized (this) {
+        busy = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Tells whether the log file being compressed should be given up.
+   *
+   * @return true if paused or closed.
+   */
+  private synchronized boolean isAborted() {
+    return paused > 0 || closed;
+  }
+
+  /**
+   * Called by {@link BlockCompressedLog} before every block.
+   *
+   * @throws IOException
+   *           If aborted, so compressing stops right away.
+   */
+  void checkAborted() throws IOException {
+    if (isAborted()) {
+      throw new IOException("Compression aborted");
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.document.DateField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+
+/**
+ * The {@link Document} of a log statement being indexed, filled in by
+ * {@link FilePosTrackingRollingFileAppender#populateDocument(long,
+ * org.apache.log4j.spi.LoggingEvent, LogDocument)}.
+ * <p>
+ * Lucene fields cannot change their value, but they can be added to any
+ * number of documents. A LogDocument remembers the last field added under
+ * every name and adds it again as long as the value stays the same, e.g. the
+ * thread name or a timestamp within the same millisecond, so those cost no new
+ * field. Numbers are compared before they are turned into strings. A new
+ * {@link Document} is still created for every log statement, since Lucene
+ * documents cannot be emptied, and so are the fields whose value changes,
+ * such as the file offsets.
+ * <p>
+ * The appender has a single LogDocument, only used holding its index lock.
+ * It must not be kept past <code>populateDocument</code>.
+ */
+public final class LogDocument {
+
+  /**
+   * A stored, indexed and untokenized field.
+   */
+  static final int KEYWORD = 0;
+
+  /**
+   * A stored field, neither indexed nor tokenized.
+   */
+  static final int UN_INDEXED = 1;
+
+  /**
+   * A stored, indexed and tokenized field.
+   */
+  static final int TEXT = 2;
+
+  /**
+   * An indexed and tokenized field, not stored.
+   */
+  static final int UN_STORED = 3;
+
+  /**
+   * A keyword field holding a time encoded with {@link DateField}.
+   */
+  private static final int DATE = 4;
+
+  /**
+   * The document being filled in.
+   */
+  private Document document = new Document();
+
+  /**
+   * The last field added under every name, by name.
+   */
+  private final Map lastFields = new HashMap();
+
+  /**
+   * Creates a LogDocument. The appender keeps a single one.
+   */
+  LogDocument() {
+  }
+
+  /**
+   * Starts the document of the next log statement.
+   *
+   * @return this LogDocument.
+   */
+  LogDocument reset() {
+    // Lucene documents have no way to remove their fields
+    document = new Document();
+
+    return this;
+  }
+
+  /**
+   * Returns the Lucene document, for fields the add methods do not cover.
+   *
+   * @return the document being filled in.
+   */
+  public Document getDocument() {
+    return document;
+  }
+
+  /**
+   * Adds a field that is stored and indexed as a single term, like
+   * {@link Field#Keyword(String, String)}.
+   *
+   * @param name
+   *          The field name.
+   * @param value
+   *          The field value.
+   */
+  public void addKeyword(String name, String value) {
+    add(name, KEYWORD, value);
+  }
+
+  /**
+   * Adds a number that is stored and indexed as a single term.
+   *
+   * @param name
+   *          The field name.
+   * @param value
+   *          The field value, in decimal.
+   */
+  public void addKeyword(String name, long value) {
+    add(name, KEYWORD, value);
+  }
+
+  /**
+   * Adds a field that is only stored, like
+   * {@link Field#UnIndexed(String, String)}.
+   *
+   * @param name
+   *          The field name.
+   * @param value
+   *          The field value.
+   */
+  public void addUnIndexed(String name, String value) {
+    add(name, UN_INDEXED, value);
+  }
+
+  /**
+   * Adds a number that is only stored.
+   *
+   * @param name
+   *          The field name.
+   * @param value
+   *          The field value, in decimal.
+   */
+  public void addUnIndexed(String name, long value) {
+    add(name, UN_INDEXED, value);
+  }
+
+  /**
+   * Adds a field that is stored and tokenized, like
+   * {@link Field#Text(String, String)}.
+   *
+   * @param name
+   *          The field name.
+   * @param value
+   *          The field value.
+   */
+  public void addText(String name, String value) {
+    add(name, TEXT, value);
+  }
+
+  /**
+   * Adds a field that is tokenized but not stored, like
+   * {@link Field#UnStored(String, String)}.
+   *
+   * @param name
+   *          The field name.
+   * @param value
+   *          The field value.
+   */
+  public void addUnStored(String name, String value) {
+    add(name, UN_STORED, value);
+  }
+
+  /**
+   * Adds a time that is stored and indexed as a single term encoded with
+   * {@link DateField#timeToString(long)}, so terms sort in time order.
+   *
+   * @param name
+   *          The field name.
+   * @param millis
+   *          The time in milliseconds since the epoch.
+   */
+  public void addDate(String name, long millis) {
+    add(name, DATE, millis);
+  }
+
+  /**
+   * Adds a field, reusing the last one added under its name if it has the
+   * same kind and value.
+   *
+   * @param name
+   *          The field name.
+   * @param kind
+   *          One of the kind constants.
+   * @param value
+   *          The field value.
+   */
+  void add(String name, int kind, String value) {
+    LastField last = (LastField) lastFields.get(name);
+    if (last != null && last.kind == kind && last.value != null
+        && last.value.equals(value)) {
+      document.add(last.field);
+
+      return;
+    }
+
+    // Created first, Lucene rejects null values
+    Field field = createField(name, kind, value);
+    if (last == null) {
+      last = new LastField();
+      lastFields.put(name, last);
+    }
+    last.kind = kind;
+    last.value = value;
+    last.field = field;
+    document.add(field);
+  }
+
+  /**
+   * Adds a number field, reusing the last one added under its name if it has
+   * the same kind and value.
+   *
+   * @param name
+   *          The field name.
+   * @param kind
+   *          One of the kind constants.
+   * @param value
+   *          The field value.
+   */
+  private void add(String name, int kind, long value) {
+    LastField last = (LastField) lastFields.get(name);
+    if (last != null && last.kind == kind && last.value == null
+        && last.number == value) {
+      document.add(last.field);
+
+      return;
+    }
+
+    Field field = createField(name, kind, kind == DATE ? DateField
+        .timeToString(value) : String.valueOf(value));
+    if (last == null) {
+      last = new LastField();
+      lastFields.put(name, last);
+    }
+    last.kind = kind;
+    last.value = null;
+    last.number = value;
+    last.field = field;
+    document.add(field);
+  }
+
+  /**
+   * Creates a Lucene field.
+   *
+   * @param name
+   *          The field name.
+   * @param kind
+   *          One of the kind constants.
+   * @param value
+   *          The field value.
+   *
+   * @return the field.
+   */
+  static Field createField(String name, int kind, String value) {
+    switch (kind) {
+    case UN_INDEXED:
+      return Field.UnIndexed(name, value);
+    case TEXT:
+      return Field.Text(name, value);
+    case UN_STORED:
+      return Field.UnStored(name, value);
+    default:
+      return Field.Keyword(name, value);
+    }
+  }
+
+  /**
+   * The last field added under a name.
+   */
+  private static final class LastField {
+
+    /**
+     * One of the kind constants.
+     */
+    private int kind;
+
+    /**
+     * The string value, null for numbers.
+     */
+    private String value;
+
+    /**
+     * The number value, if {@link #value} is null.
+     */
+    private long number;
+
+    /**
+     * The field, added again while the kind and value stay the same.
+     */
+    private Field field;
+  }
+}
@@ -0,0 +1,630 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * LogIndex is the Lucene index of the live generation of a
+ * {@link FilePosTrackingRollingFileAppender}: its {@link IndexWriter}, along
+ * with the {@link GenerationManifest} and the {@link RecordFile} kept next to
+ * it.
+ * <p>
+ * Lucene 1.4 only commits the documents an IndexWriter buffers when it is
+ * closed, so {@link #flush()} closes and reopens it. The manifest and the
+ * record file are written before every commit, so a searcher never sees
+ * documents ending past the high-water mark of the manifest it reads
+ * afterwards.
+ * <p>
+ * Every method must be called holding the index lock of the appender, which
+ * logging threads, the flush thread and the {@link AsyncIndexer} thread
+ * share, except for the setters called while the appender is configured.
+ */
+final class LogIndex {
+
+  /**
+   * The amount of times opening the {@link IndexWriter} is tried before the
+   * index is given up on until the next rollover.
+   */
+  private static final int MAX_OPEN_ATTEMPTS = 3;
+
+  /**
+   * The appender whose log statements are indexed.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The index lock of the appender, notified when a flush is due.
+   */
+  private final Object indexLock;
+
+  /**
+   * This is the fully qualified name of the Lucene analyzer to use. It must
+   * extend {@link Analyzer}.
+   */
+  private String analyzerClass;
+
+  /**
+   * The {@link Analyzer} built from {@link #analyzerClass}, reused every time
+   * the index is opened.
+   */
+  private Analyzer analyzer;
+
+  /**
+   * The amount of documents the {@link IndexWriter} buffers in memory before
+   * committing them to disk by itself.
+   */
+  private int maxBufferedDocs = IndexWriter.DEFAULT_MIN_MERGE_DOCS;
+
+  /**
+   * The amount of log bytes covered by uncommitted documents that triggers a
+   * flush before the flush interval elapses. Zero disables it.
+   */
+  private long flushBytes;
+
+  /**
+   * The index directory of the live generation.
+   */
+  private String path;
+
+  /**
+   * The Lucene {@link Directory} where the index will be stored.
+   */
+  private Directory directory;
+
+  /**
+   * The Lucene {@link IndexWriter} used for adding {@link Document}s to index,
+   * null if it could not be opened.
+   */
+  private IndexWriter indexWriter;
+
+  /**
+   * The amount of documents added since the index was last flushed.
+   */
+  private int unflushedDocs;
+
+  /**
+   * The log file offset of the oldest uncommitted document.
+   */
+  private long unflushedOffset;
+
+  /**
+   * When the index was last opened or flushed, in milliseconds.
+   */
+  private long lastFlushed;
+
+  /**
+   * The manifest of the live generation, null if it cannot be tracked because
+   * the index predates manifests.
+   */
+  private GenerationManifest manifest;
+
+  /**
+   * The identifier of the live generation, 0 until known.
+   */
+  private long generationId;
+
+  /**
+   * The extents of the documents of the live generation, null if the record
+   * file could not be opened.
+   */
+  private RecordFile records;
+
+  /**
+   * Creates a LogIndex, opened later.
+   *
+   * @param appender
+   *          The appender whose log statements are indexed.
+   * @param indexLock
+   *          The index lock of the appender.
+   */
+  LogIndex(FilePosTrackingRollingFileAppender appender, Object indexLock) {
+    this.appender = appender;
+    this.indexLock = indexLock;
+  }
+
+  /**
+   * Opens the index of the live generation, either reading an existing Lucene
+   * index or creating a new, empty one.
+   *
+   * @param dir
+   *          The index directory.
+   * @param standby
+   *          The index prepared for the generation ahead of time, brand new as
+   *          if just created, or null.
+   * @param nextGenerationId
+   *          The identifier given to the generation if its manifest has none.
+   */
+  void open(String dir, StandbyIndexes.Standby standby, long nextGenerationId) {
+    path = dir;
+    boolean shouldCreate;
+    if (standby != null) {
+      directory = standby.getDirectory();
+      indexWriter = standby.getIndexWriter();
+      shouldCreate = true;
+    } else {
+      shouldCreate = checkOrCreateLuceneDir(path);
+    }
+
+    shouldCreate = openWriter(shouldCreate);
+    if (indexWriter == null) {
+      return;
+    }
+
+    // Pick up where the generation was left, if it can be told
+    manifest = null;
+    if (!shouldCreate) {
+      manifest = GenerationManifest.read(new File(path));
+    }
+    if (manifest == null && (shouldCreate || indexWriter.docCount() == 0)) {
+      manifest = new GenerationManifest();
+    }
+    if (manifest != null) {
+      if (manifest.getGenerationId() == 0) {
+        manifest.setGenerationId(nextGenerationId);
+      }
+      generationId = manifest.getGenerationId();
+    }
+
+    openRecords();
+    lastFlushed = System.currentTimeMillis();
+  }
+
+  /**
+   * Opens the {@link #indexWriter} unless already open, recreating a corrupt
+   * index and deleting the write lock left by a crash. It gives up after
+   * {@link #MAX_OPEN_ATTEMPTS}, reporting to the appender's
+   * {@link org.apache.log4j.spi.ErrorHandler}: it runs holding the index lock,
+   * which logging threads wait for, so a persistent failure must not keep it.
+   * The log file still gets the statements while the index is not open.
+   *
+   * @param shouldCreate
+   *          True if a new, empty index should be created.
+   *
+   * @return true if the index was created, false if it was read.
+   */
+  private boolean openWriter(boolean shouldCreate) {
+    AppenderMetrics metrics = appender.getMetrics();
+    IOException failure = null;
+    for (int i = 0; indexWriter == null && i < MAX_OPEN_ATTEMPTS; i++) {
+      try {
+        // Create an empty index
+        directory = FSDirectory.getDirectory(path, shouldCreate);
+
+        indexWriter = new IndexWriter(directory, getAnalyzer(), shouldCreate);
+        indexWriter.minMergeDocs = maxBufferedDocs;
+      } catch (FileNotFoundException e) {
+        failure = e;
+        // Check if it's related to corrupt index (segment not found)
+        String message = e.getMessage();
+        if (message != null && message.indexOf("segment") != -1) {
+          // Force re-creation of index
+          shouldCreate = true;
+          metrics.indexRecreated();
+        }
+        metrics.indexOpenRetried();
+      } catch (IOException e) {
+        failure = e;
+        // Check if it's related to write lock, release if so
+        String message = e.getMessage();
+        if (message != null && message.indexOf("Lock obtain timed out") != -1) {
+          if (!new File(getLockFile(path)).delete()) {
+            LogLog.error("Unable to delete lucene write lock file for "
+                + "FilePosTrackingRollingFileAppender with name "
+                + appender.getName(), e);
+
+            return shouldCreate;
+          }
+          metrics.lockFileDeleted();
+
+          // Do not allow overwriting of index
+          shouldCreate = false;
+        }
+        metrics.indexOpenRetried();
+      }
+    }
+
+    if (indexWriter == null) {
+      appender.getErrorHandler().error("Could not open index " + path
+          + " for appender " + appender.getName()
+          + ", not indexing until it rolls over", failure,
+          ErrorCode.FILE_OPEN_FAILURE);
+    }
+
+    return shouldCreate;
+  }
+
+  /**
+   * Adds the document of a log statement and records where it lies in the
+   * log file.
+   *
+   * @param doc
+   *          The document.
+   * @param fileLen
+   *          The position of the log statement.
+   * @param endOffset
+   *          The position right after the log statement.
+   * @param timeStamp
+   *          The time of the log statement.
+   */
+  void add(Document doc, long fileLen, long endOffset, long timeStamp) {
+    AppenderMetrics metrics = appender.getMetrics();
+    if (indexWriter == null) {
+      // The index could not be opened, the log file still gets it
+      metrics.indexingFailed();
+
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      indexWriter.addDocument(doc);
+      metrics.documentIndexed(System.nanoTime() - start);
+      recordExtent(fileLen, endOffset);
+      if (manifest != null) {
+        manifest.add(timeStamp, fileLen, endOffset);
+      }
+    } catch (IOException e) {
+      metrics.indexingFailed();
+      LogLog.error("Could not add doc to index ", e);
+    }
+
+    trackUnflushed(fileLen);
+  }
+
+  /**
+   * Keeps count of the documents added since the last flush and wakes up the
+   * flush thread when they cover {@link #flushBytes} of log.
+   *
+   * @param fileLen
+   *          The position of the log statement just indexed.
+   */
+  private void trackUnflushed(long fileLen) {
+    if (unflushedDocs++ == 0) {
+      unflushedOffset = fileLen;
+    }
+
+    if (flushBytes > 0 && fileLen - unflushedOffset >= flushBytes) {
+      indexLock.notifyAll();
+    }
+  }
+
+  /**
+   * Commits the documents buffered by the {@link IndexWriter} so searchers
+   * can see them. The writer commits every {@link #maxBufferedDocs} documents
+   * by itself but only commits the rest when closed, so it is closed and
+   * reopened on the same {@link Directory} and {@link Analyzer}. When nothing
+   * was added since the last flush this costs nothing.
+   */
+  void flush() {
+    if (indexWriter == null || unflushedDocs == 0) {
+      return;
+    }
+
+    writeManifest();
+    flushRecords();
+
+    long start = System.nanoTime();
+    try {
+      indexWriter.close();
+      indexWriter = null;
+      indexWriter = new IndexWriter(directory, analyzer, false);
+      indexWriter.minMergeDocs = maxBufferedDocs;
+      appender.getMetrics().flushed(System.nanoTime() - start);
+      lastFlushed = System.currentTimeMillis();
+    } catch (IOException e) {
+      LogLog.error("Could not flush index for appender " + appender.getName(),
+          e);
+
+      // Go through the full open, which recovers from stale locks. The
+      // generation stays the same, so does its manifest
+      indexWriter = null;
+      openWriter(checkOrCreateLuceneDir(path));
+      if (indexWriter != null) {
+        openRecords();
+      }
+    }
+    unflushedDocs = 0;
+  }
+
+  /**
+   * Tells whether the index was last flushed long enough ago.
+   *
+   * @param maxAge
+   *          The time in milliseconds the index may go without a flush.
+   *
+   * @return true if the index was last flushed at least {@code maxAge}
+   *         milliseconds ago.
+   */
+  boolean isFlushDue(long maxAge) {
+    return System.currentTimeMillis() - lastFlushed >= maxAge;
+  }
+
+  /**
+   * Finalizes the live generation and hands its {@link IndexWriter} over, for
+   * the caller to close. The final high-water mark goes before the commit, as
+   * on flush.
+   *
+   * @return the writer, or null if the index is not open.
+   */
+  IndexWriter detach() {
+    IndexWriter writer = indexWriter;
+    if (writer != null) {
+      if (manifest != null) {
+        manifest.setFinalized();
+      }
+      writeManifest();
+      manifest = null;
+      closeRecords();
+
+      indexWriter = null;
+      unflushedDocs = 0;
+    }
+
+    return writer;
+  }
+
+  /**
+   * Writes the manifest of the generation and closes the Lucene index.
+   *
+   * @param finalized
+   *          True if the generation is rolled over, so nothing gets added to
+   *          it anymore.
+   */
+  void close(boolean finalized) {
+    if (finalized && manifest != null) {
+      manifest.setFinalized();
+    }
+
+    try {
+      if (indexWriter != null) {
+        writeManifest();
+        manifest = null;
+        closeRecords();
+
+        indexWriter.close();
+        indexWriter = null;
+        unflushedDocs = 0;
+      }
+    } catch (IOException e) {
+      // Exceptionally, it does not make sense to delegate to an
+      // ErrorHandler. Since a closed appender is basically dead.
+      LogLog.error("Could not close " + indexWriter, e);
+    }
+  }
+
+  /**
+   * Tells whether the index is open.
+   *
+   * @return false if it could not be opened or is closed.
+   */
+  boolean isOpen() {
+    return indexWriter != null;
+  }
+
+  /**
+   * Returns the identifier of the live generation.
+   *
+   * @return the generation identifier, 0 until known.
+   */
+  long getGenerationId() {
+    return generationId;
+  }
+
+  /**
+   * Writes the {@link #manifest} of the live generation, if tracked.
+   */
+  private void writeManifest() {
+    if (manifest == null) {
+      return;
+    }
+
+    try {
+      manifest.write(new File(path));
+    } catch (IOException e) {
+      LogLog.warn("Could not write manifest for appender "
+          + appender.getName(), e);
+    }
+  }
+
+  /**
+   * Opens the {@link RecordFile} of the index just opened, lined up with its
+   * documents.
+   */
+  private void openRecords() {
+    closeRecords();
+    try {
+      records = RecordFile.open(new File(path), indexWriter.docCount());
+    } catch (IOException e) {
+      LogLog.warn("Could not open record file of appender "
+          + appender.getName() + ", searchers will use stored fields", e);
+    }
+  }
+
+  /**
+   * Appends the extent of the document just added to the {@link RecordFile}.
+   *
+   * @param fileLen
+   *          The position of the log statement.
+   * @param endOffset
+   *          The position right after the log statement.
+   */
+  private void recordExtent(long fileLen, long endOffset) {
+    if (records != null) {
+      try {
+        records.append(fileLen, endOffset);
+      } catch (IOException e) {
+        // Searchers read the rest of the generation from stored fields
+        LogLog.warn("Could not write record file of appender "
+            + appender.getName(), e);
+        closeRecords();
+      }
+    }
+  }
+
+  /**
+   * Writes the buffered {@link RecordFile} entries, so they are on disk
+   * before the documents are committed.
+   */
+  private void flushRecords() {
+    if (records != null) {
+      try {
+        records.flush();
+      } catch (IOException e) {
+        LogLog.warn("Could not write record file of appender "
+            + appender.getName(), e);
+        closeRecords();
+      }
+    }
+  }
+
+  /**
+   * Closes the {@link RecordFile}, if open.
+   */
+  private void closeRecords() {
+    if (records != null) {
+      try {
+        records.close();
+      } catch (IOException e) {
+        LogLog.warn("Could not close record file of appender "
+            + appender.getName(), e);
+      }
+      records = null;
+    }
+  }
+
+  /**
+   * Returns the {@link Analyzer} to be used, built once from
+   * {@link #analyzerClass}.
+   *
+   * @return a {@link Analyzer}
+   */
+  Analyzer getAnalyzer() {
+    if (analyzer == null) {
+      analyzer = createAnalyzer();
+    }
+
+    return analyzer;
+  }
+
+  /**
+   * Builds the {@link Analyzer} named by {@link #analyzerClass}.
+   *
+   * @return a {@link Analyzer}, the {@link WhitespaceAnalyzer} by default.
+   */
+  private Analyzer createAnalyzer() {
+    if (analyzerClass != null) {
+      try {
+        return (Analyzer) Class.forName(analyzerClass).newInstance();
+      } catch (ClassNotFoundException e) {
+        // Do nothing
+      } catch (InstantiationException e) {
+        LogLog.error("Could not use the specified analyzerClass"
+            + analyzerClass);
+      } catch (IllegalAccessException e) {
+        LogLog.error("Could not use the specified analyzerClass"
+            + analyzerClass);
+      }
+    }
+
+    return new WhitespaceAnalyzer();
+  }
+
+  /**
+   * Sets the fully qualified class name of the {@link Analyzer}, used from
+   * the next time the index is opened.
+   *
+   * @param clazz
+   *          The fully qualified name.
+   */
+  void setAnalyzerClass(String clazz) {
+    analyzerClass = clazz;
+    analyzer = null;
+  }
+
+  /**
+   * Returns the amount of documents the {@link IndexWriter} buffers before
+   * committing them by itself.
+   *
+   * @return the amount of documents.
+   */
+  int getMaxBufferedDocs() {
+    return maxBufferedDocs;
+  }
+
+  /**
+   * Sets the amount of documents the {@link IndexWriter} buffers before
+   * committing them by itself.
+   *
+   * @param maxBufferedDocs
+   *          The amount of documents.
+   */
+  void setMaxBufferedDocs(int maxBufferedDocs) {
+    this.maxBufferedDocs = maxBufferedDocs;
+  }
+
+  /**
+   * Sets the amount of log bytes covered by uncommitted documents that
+   * triggers a flush.
+   *
+   * @param flushBytes
+   *          The amount of bytes, zero to disable.
+   */
+  void setFlushBytes(long flushBytes) {
+    this.flushBytes = flushBytes;
+  }
+
+  /**
+   * Obtains the Lucene lock file so we can delete it after a crash.
+   *
+   * @param dir
+   *          The directory where we are storing the Lucene index.
+   *
+   * @return The path to the lock file.
+   */
+  private static String getLockFile(String dir) {
+    File luceneIndexDir = new File(dir);
+    String luceneIndexDirPath = luceneIndexDir.getAbsolutePath();
+
+    String lockFileDir = System.getProperty("org.apache.lucene.lockdir", System
+        .getProperty("java.io.tmpdir"));
+
+    String lockFile = lockFileDir + File.separatorChar + "lucene-"
+        + DigestUtils.md5Hex(luceneIndexDirPath) + "-write.lock";
+
+    return lockFile;
+  }
+
+  /**
+   * Attempts to create a directory for storing Lucene index.
+   *
+   * @param dir
+   *          the directory name at which we want to create the index.
+   *
+   * @return True if successful
+   */
+  private static boolean checkOrCreateLuceneDir(String dir) {
+    File file = new File(dir);
+
+    boolean isBrandNewDir = false;
+    if (!file.exists()) {
+      isBrandNewDir = file.mkdir();
+      if (!isBrandNewDir) {
+        throw new RuntimeException("Unable to create lucene index dir at: "
+            + dir);
+      }
+    }
+
+    return isBrandNewDir;
+  }
+}
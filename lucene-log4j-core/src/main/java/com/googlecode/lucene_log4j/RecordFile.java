@@ -0,0 +1,263 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The extent in the log file of every log statement in an index, kept next to
+ * the index as <code>records</code> so searchers find where a hit starts and
+ * ends without loading stored fields.
+ * <p>
+ * After an 8 byte header (magic number and {@link #SCHEMA_VERSION}) comes
+ * one 12 byte entry per document, in document ID order: the start offset as a
+ * long and the length as an int, big-endian. The fixed width makes entry
+ * <i>n</i> a direct read at <code>8 + 12 * n</code>, and the file can be
+ * memory mapped. Documents the appender could not record, e.g. those indexed
+ * before the file existed, have a start offset of {@link #UNKNOWN}.
+ * <p>
+ * Entries are appended as documents are added and flushed before every index
+ * commit, but the {@link org.apache.lucene.index.IndexWriter} also commits by
+ * itself every <code>MaxBufferedDocs</code> documents, so the file may lag
+ * behind the committed documents. Searchers load the few missing ones from
+ * the stored fields.
+ */
+public final class RecordFile {
+
+  /**
+   * The name of the file in the index directory.
+   */
+  public static final String FILE_NAME = "records";
+
+  /**
+   * The file layout written by this version.
+   */
+  public static final int SCHEMA_VERSION = 1;
+
+  /**
+   * The start offset of a document that was not recorded.
+   */
+  public static final long UNKNOWN = -1;
+
+  /**
+   * Identifies the file, "LLRF".
+   */
+  private static final int MAGIC = 0x4c4c5246;
+
+  /**
+   * The size of the header in bytes.
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * The size of an entry in bytes.
+   */
+  private static final int ENTRY_SIZE = 12;
+
+  /**
+   * The amount of entries read or written in one go.
+   */
+  private static final int BUFFER_ENTRIES = 512;
+
+  /**
+   * The file being appended to.
+   */
+  private final RandomAccessFile file;
+
+  /**
+   * The entries not written yet.
+   */
+  private final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE
+      * BUFFER_ENTRIES);
+
+  /**
+   * Creates a RecordFile.
+   *
+   * @param file
+   *          The file being appended to, positioned after the last entry.
+   */
+  private RecordFile(RandomAccessFile file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens the record file of an index for appending, lined up with its
+   * documents: entries past the committed documents, written before a crash,
+   * are cut off, and documents without an entry get an {@link #UNKNOWN} one.
+   *
+   * @param indexDir
+   *          The index directory.
+   * @param docCount
+   *          The amount of documents in the index.
+   *
+   * @return the record file.
+   *
+   * @throws IOException
+   *           If the file cannot be opened.
+   */
+  static RecordFile open(File indexDir, int docCount) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(new File(indexDir, FILE_NAME),
+        "rw");
+    try {
+      if (!hasHeader(file)) {
+        file.setLength(0);
+        file.writeInt(MAGIC);
+        file.writeInt(SCHEMA_VERSION);
+      }
+
+      long entries = Math.min(docCount, (file.length() - HEADER_SIZE)
+          / ENTRY_SIZE);
+      file.setLength(HEADER_SIZE + entries * ENTRY_SIZE);
+      file.seek(file.length());
+
+      RecordFile records = new RecordFile(file);
+      for (long i = entries; i < docCount; i++) {
+        records.append(UNKNOWN, UNKNOWN);
+      }
+      records.flush();
+
+      return records;
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Tells whether a file starts with the header of this version.
+   *
+   * @param file
+   *          The file, positioned at its start.
+   *
+   * @return true if the header matches.
+   *
+   * @throws IOException
+   *           If the file cannot be read.
+   */
+  private static boolean hasHeader(RandomAccessFile file) throws IOException {
+    return file.length() >= HEADER_SIZE && file.readInt() == MAGIC
+        && file.readInt() == SCHEMA_VERSION;
+  }
+
+  /**
+   * Records the extent of the document just added.
+   *
+   * @param offset
+   *          Where the log statement starts, {@link #UNKNOWN} if not known.
+   * @param endOffset
+   *          Where the log statement ends.
+   *
+   * @throws IOException
+   *           If the buffered entries cannot be written.
+   */
+  void append(long offset, long endOffset) throws IOException {
+    buffer.putLong(offset);
+    buffer.putInt(offset == UNKNOWN ? 0 : (int) (endOffset - offset));
+    if (!buffer.hasRemaining()) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes the buffered entries to the file.
+   *
+   * @throws IOException
+   *           If the entries cannot be written.
+   */
+  void flush() throws IOException {
+    buffer.flip();
+    FileChannel channel = file.getChannel();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Writes the buffered entries and closes the file.
+   *
+   * @throws IOException
+   *           If the entries cannot be written.
+   */
+  void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Reads the entries of a range of documents.
+   *
+   * @param indexDir
+   *          The index directory.
+   * @param from
+   *          The first document ID.
+   * @param to
+   *          The document ID after the last one.
+   * @param starts
+   *          Receives the start offsets, by document ID.
+   * @param ends
+   *          Receives the end offsets, by document ID, {@link #UNKNOWN} where
+   *          the start offset is.
+   *
+   * @return the document ID after the last entry read, which is less than
+   *         {@code to} if the file lags behind, or -1 if the index has no
+   *         usable record file.
+   *
+   * @throws IOException
+   *           If the file cannot be read.
+   */
+  public static int read(File indexDir, int from, int to, long[] starts,
+      long[] ends) throws IOException {
+    File recordFile = new File(indexDir, FILE_NAME);
+    if (!recordFile.exists()) {
+      return -1;
+    }
+
+    RandomAccessFile file = new RandomAccessFile(recordFile, "r");
+    try {
+      if (!hasHeader(file)) {
+        return -1;
+      }
+
+      int available = (int) Math.min(to, (file.length() - HEADER_SIZE)
+          / ENTRY_SIZE);
+      if (available <= from) {
+        return available;
+      }
+
+      FileChannel channel = file.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE
+          * Math.min(BUFFER_ENTRIES, available - from));
+      int docId = from;
+      while (docId < available) {
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), (available - docId)
+            * ENTRY_SIZE));
+        long position = HEADER_SIZE + (long) docId * ENTRY_SIZE;
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, position + buffer.position()) < 0) {
+            return docId;
+          }
+        }
+
+        buffer.flip();
+        while (buffer.remaining() >= ENTRY_SIZE) {
+          long start = buffer.getLong();
+          int length = buffer.getInt();
+          starts[docId] = start;
+          ends[docId] = start == UNKNOWN ? UNKNOWN : start + length;
+          docId++;
+        }
+      }
+
+      return docId;
+    } finally {
+      file.close();
+    }
+  }
+}
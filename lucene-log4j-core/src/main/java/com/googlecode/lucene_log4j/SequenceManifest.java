@@ -0,0 +1,246 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Lists the generations of a log rolled over in sequence mode, where every
+ * generation keeps the log file and index directory it was created with,
+ * named after its sequence number, e.g. <code>server.log.000123</code> and
+ * <code>server.log_lucene.000123</code>. The sequence number is also the
+ * {@link GenerationManifest#getGenerationId() generation identifier}.
+ * <p>
+ * The manifest is kept next to the log file, e.g.
+ * <code>server.log.generations</code>, and rewritten on every rollover once
+ * the new generation exists. Switching it is all a rollover does to the
+ * older generations; expired ones are deleted in the background afterwards,
+ * so files older than {@link #getOldest()} may linger for a while.
+ */
+public final class SequenceManifest {
+
+  /**
+   * The suffix added to the log file name to form the manifest file name.
+   */
+  public static final String FILE_SUFFIX = ".generations";
+
+  /**
+   * The least amount of digits of a sequence number in file names.
+   */
+  static final int SEQUENCE_DIGITS = 6;
+
+  /**
+   * The manifest layout written by this version.
+   */
+  public static final int SCHEMA_VERSION = 1;
+
+  /**
+   * The manifest layout.
+   */
+  private int schemaVersion = SCHEMA_VERSION;
+
+  /**
+   * The sequence number of the live generation.
+   */
+  private long current;
+
+  /**
+   * The sequence number of the oldest generation kept.
+   */
+  private long oldest;
+
+  /**
+   * Creates a SequenceManifest.
+   *
+   * @param current
+   *          The sequence number of the live generation.
+   * @param oldest
+   *          The sequence number of the oldest generation kept.
+   */
+  SequenceManifest(long current, long oldest) {
+    this.current = current;
+    this.oldest = oldest;
+  }
+
+  /**
+   * Returns the manifest file of a log.
+   *
+   * @param logFileName
+   *          The log file name, as configured on the appender.
+   *
+   * @return the manifest file.
+   */
+  public static File getFile(String logFileName) {
+    return new File(logFileName + FILE_SUFFIX);
+  }
+
+  /**
+   * Reads the manifest of a log.
+   *
+   * @param logFileName
+   *          The log file name, as configured on the appender.
+   *
+   * @return the manifest, or null if it is missing or unreadable, i.e. the log
+   *         is not rolled over in sequence mode.
+   */
+  public static SequenceManifest read(String logFileName) {
+    File file = getFile(logFileName);
+    if (!file.exists()) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+
+      SequenceManifest manifest = new SequenceManifest(Long
+          .parseLong(properties.getProperty("current")), Long
+          .parseLong(properties.getProperty("oldest")));
+      manifest.schemaVersion = Integer.parseInt(properties
+          .getProperty("schemaVersion"));
+
+      return manifest;
+    } catch (IOException e) {
+      return null;
+    } catch (NumberFormatException e) {
+      // Covers missing properties too
+      return null;
+    }
+  }
+
+  /**
+   * Writes the manifest of a log. The manifest is written aside and then
+   * renamed so readers never see a partial one.
+   *
+   * @param logFileName
+   *          The log file name, as configured on the appender.
+   *
+   * @throws IOException
+   *           If the manifest cannot be written.
+   */
+  void write(String logFileName) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("schemaVersion", "" + schemaVersion);
+    properties.setProperty("current", "" + current);
+    properties.setProperty("oldest", "" + oldest);
+
+    File file = getFile(logFileName);
+    File tmp = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      properties.store(out, "Log generations");
+    } finally {
+      out.close();
+    }
+
+    // Windows does not rename onto an existing file
+    if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+      throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * Returns the suffix naming the log file and index directory of a
+   * generation, e.g. ".000123".
+   *
+   * @param sequence
+   *          The sequence number of the generation.
+   *
+   * @return the suffix to add to the log file and index directory names.
+   */
+  public static String getSuffix(long sequence) {
+    StringBuffer suffix = new StringBuffer(SEQUENCE_DIGITS + 1);
+    suffix.append('.');
+    String digits = "" + sequence;
+    for (int i = digits.length(); i < SEQUENCE_DIGITS; i++) {
+      suffix.append('0');
+    }
+
+    return suffix.append(digits).toString();
+  }
+
+  /**
+   * Parses the sequence number out of a file name.
+   *
+   * @param name
+   *          The file name.
+   * @param prefix
+   *          The log file or index directory name the suffix was added to.
+   *
+   * @return the sequence number, or -1 if the name is not a generation of
+   *         {@code prefix}.
+   */
+  static long parseSequence(String name, String prefix) {
+    if (!name.startsWith(prefix + ".")) {
+      return -1;
+    }
+
+    String digits = name.substring(prefix.length() + 1);
+    if (digits.length() < SEQUENCE_DIGITS) {
+      // Left by the rename mode, e.g. server.log.1
+      return -1;
+    }
+    for (int i = 0; i < digits.length(); i++) {
+      if (!Character.isDigit(digits.charAt(i))) {
+        return -1;
+      }
+    }
+
+    try {
+      return Long.parseLong(digits);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the manifest layout.
+   *
+   * @return the schema version.
+   */
+  public int getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  /**
+   * Returns the sequence number of the live generation.
+   *
+   * @return the current sequence number.
+   */
+  public long getCurrent() {
+    return current;
+  }
+
+  /**
+   * Returns the sequence number of the oldest generation kept.
+   *
+   * @return the oldest sequence number, equal to {@link #getCurrent()} if
+   *         only the live generation is kept.
+   */
+  public long getOldest() {
+    return oldest;
+  }
+
+  /**
+   * Returns the sequence numbers of the generations kept.
+   *
+   * @return the sequence numbers, the live generation first.
+   */
+  public long[] getSequences() {
+    long[] sequences = new long[(int) (current - oldest + 1)];
+    for (int i = 0; i < sequences.length; i++) {
+      sequences[i] = current - i;
+    }
+
+    return sequences;
+  }
+}
@@ -0,0 +1,326 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * StandbyIndexes takes the opening and closing of indexes off the rollovers
+ * of a {@link FilePosTrackingRollingFileAppender} in sequence mode: the index
+ * of the next generation is created in the background once the log file is
+ * nearly full, and the index of a rolled over generation is closed in the
+ * background, then handed to the {@link GenerationMaintenance}.
+ * <p>
+ * Every method but {@link #stop()} must be called holding the index lock of
+ * the appender.
+ */
+final class StandbyIndexes {
+
+  /**
+   * Represents the default fraction of <code>MaxFileSize</code> at which the
+   * next generation is prepared.
+   */
+  private static final double DEFAULT_THRESHOLD = 0.9;
+
+  /**
+   * The appender whose indexes are opened and closed.
+   */
+  private final FilePosTrackingRollingFileAppender appender;
+
+  /**
+   * The index lock of the appender.
+   */
+  private final Object indexLock;
+
+  /**
+   * Has the indexes of rolled over generations optimized once closed.
+   */
+  private final GenerationMaintenance maintenance;
+
+  /**
+   * The fraction of <code>MaxFileSize</code> the log file reaches before the
+   * index of the next generation is prepared. Zero disables it.
+   */
+  private double threshold = DEFAULT_THRESHOLD;
+
+  /**
+   * The {@link Standby} index being prepared for the next generation, null if
+   * none. Guarded by {@link #indexLock}.
+   */
+  private Future standby;
+
+  /**
+   * The sequence number {@link #standby} is prepared for. Guarded by
+   * {@link #indexLock}.
+   */
+  private long standbySequence;
+
+  /**
+   * Prepares standby indexes and closes the indexes of rolled over
+   * generations, null until needed. Guarded by {@link #indexLock}.
+   */
+  private ExecutorService background;
+
+  /**
+   * Creates the StandbyIndexes of an appender.
+   *
+   * @param appender
+   *          The appender whose indexes are opened and closed.
+   * @param indexLock
+   *          The index lock of the appender.
+   * @param maintenance
+   *          Has the indexes of rolled over generations optimized.
+   */
+  StandbyIndexes(FilePosTrackingRollingFileAppender appender,
+      Object indexLock, GenerationMaintenance maintenance) {
+    this.appender = appender;
+    this.indexLock = indexLock;
+    this.maintenance = maintenance;
+  }
+
+  /**
+   * Sets the fraction of <code>MaxFileSize</code> the log file reaches before
+   * the index of the next generation is prepared.
+   *
+   * @param threshold
+   *          The fraction, zero to create the index on rollover.
+   */
+  void setThreshold(String threshold) {
+    try {
+      this.threshold = Double.parseDouble(threshold);
+    } catch (NumberFormatException e) {
+      LogLog.warn("Invalid StandbyThreshold " + threshold + ", using "
+          + DEFAULT_THRESHOLD);
+      this.threshold = DEFAULT_THRESHOLD;
+    }
+  }
+
+  /**
+   * Tells whether the log file is full enough for the index of the next
+   * generation to be prepared. Needs no lock.
+   *
+   * @param count
+   *          The bytes written to the log file.
+   * @param maxFileSize
+   *          The size the log file rolls over at.
+   *
+   * @return true once the threshold is reached.
+   */
+  boolean isDue(long count, long maxFileSize) {
+    return threshold > 0 && count >= maxFileSize * threshold;
+  }
+
+  /**
+   * Takes over the {@link Standby} index prepared for a generation, waiting
+   * for it if still being prepared.
+   *
+   * @param sequence
+   *          The sequence number of the generation.
+   *
+   * @return the standby index, brand new as if just created, or null if none
+   *         was prepared for it.
+   */
+  Standby adopt(long sequence) {
+    if (standby == null || standbySequence != sequence) {
+      return null;
+    }
+
+    Future prepared = standby;
+    standby = null;
+    try {
+      return (Standby) prepared.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LogLog.warn("Could not prepare standby index for appender "
+          + appender.getName(), e.getCause());
+    }
+
+    return null;
+  }
+
+  /**
+   * Starts preparing the index of a generation in the background, unless one
+   * is already being prepared.
+   *
+   * @param path
+   *          The index directory of the generation.
+   * @param sequence
+   *          The sequence number of the generation.
+   * @param analyzer
+   *          The analyzer of the appender.
+   * @param maxBufferedDocs
+   *          The amount of documents the writer buffers.
+   */
+  void prepare(final String path, long sequence, final Analyzer analyzer,
+      final int maxBufferedDocs) {
+    if (standby != null) {
+      return;
+    }
+
+    standbySequence = sequence;
+    standby = getBackground().submit(new Callable() {
+
+      public Object call() throws IOException {
+        File dir = new File(path);
+        if (!dir.exists() && !dir.mkdir()) {
+          throw new IOException("Unable to create lucene index dir at: "
+              + path);
+        }
+
+        Directory directory = FSDirectory.getDirectory(path, true);
+        IndexWriter indexWriter = new IndexWriter(directory, analyzer, true);
+        indexWriter.minMergeDocs = maxBufferedDocs;
+
+        return new Standby(directory, indexWriter);
+      }
+    });
+  }
+
+  /**
+   * Closes the index of a rolled over generation in the background, then
+   * has it optimized. The optimizer leaves it alone until then, since it
+   * cannot take the write lock of the index before.
+   *
+   * @param writer
+   *          The {@link IndexWriter} of the generation, its manifest already
+   *          written.
+   * @param indexDir
+   *          The index directory of the generation.
+   */
+  void closeInBackground(final IndexWriter writer, final String indexDir) {
+    maintenance.closing(indexDir);
+    getBackground().execute(new Runnable() {
+
+      public void run() {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          LogLog.error("Could not close " + writer, e);
+        }
+
+        maintenance.closed(indexDir);
+      }
+    });
+  }
+
+  /**
+   * Returns the executor preparing standby indexes and closing rolled over
+   * ones, starting it if needed.
+   *
+   * @return the background {@link ExecutorService}.
+   */
+  private ExecutorService getBackground() {
+    if (background == null) {
+      background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable,
+              "FilePosTrackingRollingFileAppender-standby-"
+                  + appender.getName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    return background;
+  }
+
+  /**
+   * Waits for the indexes of rolled over generations to be closed and closes
+   * the standby index, if any. Must not be called holding the index lock.
+   */
+  void stop() {
+    ExecutorService executor;
+    Future prepared;
+    synchronized (indexLock) {
+      executor = background;
+      background = null;
+      prepared = standby;
+      standby = null;
+    }
+    if (executor == null) {
+      return;
+    }
+
+    executor.shutdown();
+    try {
+      // Unclosed indexes would lose their last statements
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        LogLog.debug("Waiting for indexes of appender " + appender.getName()
+            + " to be closed");
+      }
+
+      if (prepared != null) {
+        ((Standby) prepared.get()).getIndexWriter().close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // Nothing to close
+    } catch (IOException e) {
+      LogLog.error("Could not close standby index of appender "
+          + appender.getName(), e);
+    }
+  }
+
+  /**
+   * The index of the next generation, created ahead of the rollover.
+   */
+  static final class Standby {
+
+    /**
+     * The {@link Directory} of the index.
+     */
+    private final Directory directory;
+
+    /**
+     * The {@link IndexWriter} on the new, empty index.
+     */
+    private final IndexWriter indexWriter;
+
+    /**
+     * Creates a Standby.
+     *
+     * @param directory
+     *          The {@link Directory} of the index.
+     * @param indexWriter
+     *          The {@link IndexWriter} on the new, empty index.
+     */
+    Standby(Directory directory, IndexWriter indexWriter) {
+      this.directory = directory;
+      this.indexWriter = indexWriter;
+    }
+
+    /**
+     * Returns the {@link Directory} of the index.
+     *
+     * @return the directory.
+     */
+    Directory getDirectory() {
+      return directory;
+    }
+
+    /**
+     * Returns the {@link IndexWriter} on the new, empty index.
+     *
+     * @return the writer.
+     */
+    IndexWriter getIndexWriter() {
+      return indexWriter;
+    }
+  }
+}
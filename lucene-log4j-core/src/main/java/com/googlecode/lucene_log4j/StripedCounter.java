@@ -0,0 +1,83 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads without them contending on a single
+ * memory location: every thread adds to one of several padded cells and
+ * reads sum them up. Updates do not allocate.
+ */
+final class StripedCounter {
+
+  /**
+   * The amount of longs between two cells, so they sit on different cache
+   * lines.
+   */
+  private static final int PADDING = 8;
+
+  /**
+   * The amount of cells, a power of two.
+   */
+  private static final int STRIPES = stripes();
+
+  /**
+   * The cells, {@link #PADDING} apart.
+   */
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  /**
+   * Returns the amount of cells to use: the processors rounded up to a power
+   * of two.
+   *
+   * @return the amount of stripes.
+   */
+  private static int stripes() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < processors) {
+      stripes <<= 1;
+    }
+
+    return stripes;
+  }
+
+  /**
+   * Returns the cell of the current thread.
+   *
+   * @return the cell index.
+   */
+  private static int cell() {
+    return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+  }
+
+  /**
+   * Adds one.
+   */
+  void increment() {
+    cells.incrementAndGet(cell());
+  }
+
+  /**
+   * Adds a value.
+   *
+   * @param value
+   *          The value to add.
+   */
+  void add(long value) {
+    cells.addAndGet(cell(), value);
+  }
+
+  /**
+   * Returns the sum of all cells. Not a snapshot while updates are going on.
+   *
+   * @return the counter value.
+   */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+
+    return sum;
+  }
+}
@@ -0,0 +1,228 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.InputStream;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.OutputStream;
+
+/**
+ * A {@link Directory} reading and writing through another one at a limited
+ * rate, so background merges leave disk bandwidth, and the CPU time that goes
+ * with it, to the application. Every read and write can also be aborted
+ * through the {@link IndexOptimizer} the bandwidth is shared by.
+ */
+final class ThrottledDirectory extends Directory {
+
+  /**
+   * The directory doing the actual reads and writes.
+   */
+  private final Directory delegate;
+
+  /**
+   * Paces the reads and writes.
+   */
+  private final IndexOptimizer optimizer;
+
+  /**
+   * Creates a ThrottledDirectory.
+   *
+   * @param delegate
+   *          The directory doing the actual reads and writes.
+   * @param optimizer
+   *          Paces the reads and writes.
+   */
+  ThrottledDirectory(Directory delegate, IndexOptimizer optimizer) {
+    this.delegate = delegate;
+    this.optimizer = optimizer;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public String[] list() throws IOException {
+    return delegate.list();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public boolean fileExists(String name) throws IOException {
+    return delegate.fileExists(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long fileModified(String name) throws IOException {
+    return delegate.fileModified(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void touchFile(String name) throws IOException {
+    delegate.touchFile(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void deleteFile(String name) throws IOException {
+    delegate.deleteFile(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void renameFile(String from, String to) throws IOException {
+    delegate.renameFile(from, to);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long fileLength(String name) throws IOException {
+    return delegate.fileLength(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public OutputStream createFile(String name) throws IOException {
+    return new ThrottledOutputStream(delegate.createFile(name));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public InputStream openFile(String name) throws IOException {
+    return new ThrottledInputStream(delegate.openFile(name));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public Lock makeLock(String name) {
+    return delegate.makeLock(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  /**
+   * Writes through another {@link OutputStream} once the bytes are allowed.
+   */
+  private final class ThrottledOutputStream extends OutputStream {
+
+    /**
+     * The stream doing the actual writes.
+     */
+    private final OutputStream out;
+
+    /**
+     * Creates a ThrottledOutputStream.
+     *
+     * @param out
+     *          The stream doing the actual writes.
+     */
+    ThrottledOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void flushBuffer(byte[] b, int len) throws IOException {
+      optimizer.throttle(len);
+      out.writeBytes(b, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void seek(long pos) throws IOException {
+      super.seek(pos);
+      out.seek(pos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long length() throws IOException {
+      return Math.max(out.length(), getFilePointer());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Reads through another {@link InputStream} once the bytes are allowed.
+   */
+  private final class ThrottledInputStream extends InputStream {
+
+    /**
+     * The stream doing the actual reads, cloned along with this one.
+     */
+    private InputStream in;
+
+    /**
+     * Creates a ThrottledInputStream.
+     *
+     * @param in
+     *          The stream doing the actual reads.
+     */
+    ThrottledInputStream(InputStream in) {
+      this.in = in;
+      length = in.length();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void readInternal(byte[] b, int offset, int len)
+        throws IOException {
+      optimizer.throttle(len);
+      in.seek(getFilePointer());
+      in.readBytes(b, offset, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    protected void seekInternal(long pos) throws IOException {
+      // Every read seeks first
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+      in.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object clone() {
+      ThrottledInputStream clone = (ThrottledInputStream) super.clone();
+      clone.in = (InputStream) in.clone();
+
+      return clone;
+    }
+  }
+}
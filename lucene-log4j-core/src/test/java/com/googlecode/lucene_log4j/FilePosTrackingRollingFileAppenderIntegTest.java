@@ -4,18 +4,32 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.text.MessageFormat;
 import java.util.Properties;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import junit.framework.TestCase;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
 import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.spi.LoggingEvent;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.Hits;
@@ -52,6 +66,12 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
    */
   private int maxBackupIndex;
 
+  /**
+   * The sequence number of the live generation when rolling over in sequence
+   * mode, 0 otherwise.
+   */
+  private long currentSequence;
+
   /**
    * Represents the hits that each lucene index should contain in order.
    */
@@ -110,6 +130,7 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
           throw new RuntimeException("Could not delete log files: " + log);
         }
       }
+      BlockCompressedLog.getCompressedFile(log).delete();
 
       // Delete index dirs
       File indexDir = new File(indexDirName);
@@ -117,6 +138,20 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
         deleteRecursively(indexDir);
       }
     }
+
+    // Delete sequence-numbered generations
+    File log = new File(logFile);
+    File[] files = log.getParentFile().listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      String name = files[i].getName();
+      if (SequenceManifest.parseSequence(BlockCompressedLog.getLogName(name),
+          log.getName()) >= 0
+          || SequenceManifest.parseSequence(name, log.getName() + "_lucene") >= 0) {
+        deleteRecursively(files[i]);
+      }
+    }
+    SequenceManifest.getFile(logFile).delete();
+    currentSequence = 0;
   }
 
   private void deleteRecursively(File file) {
@@ -171,6 +206,576 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
   }
 
   public void testLogger() throws Exception {
+    logAndAssertIndexed();
+
+    // The time is only indexed once, in the sortable field
+    IndexReader reader = IndexReader.open(determineIndexDir(0));
+    TermEnum terms = reader.terms(new Term("currentTimeMillis", ""));
+    assertFalse(terms.term() != null
+        && "currentTimeMillis".equals(terms.term().field()));
+    terms.close();
+    reader.close();
+  }
+
+  public void testAsyncIndexingLogger() throws Exception {
+    // Reconfigure with the indexing done by the appender's indexer thread. A
+    // tiny queue exercises the blocking path as well.
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.asyncIndexing", "true");
+    log4jConfig.put("log4j.appender.A1.indexQueueSize", "4");
+    log4jConfig.put("log4j.appender.A1.indexBatchSize", "2");
+    PropertyConfigurator.configure(log4jConfig);
+
+    logAndAssertIndexed();
+  }
+
+  public void testRingBufferLogger() throws Exception {
+    // Reconfigure with the writing done by the appender's ring thread. A tiny
+    // ring makes the logging thread wait for free slots as well.
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.RingBufferSize", "3");
+    log4jConfig.put("log4j.appender.A1.indexBatchSize", "2");
+    PropertyConfigurator.configure(log4jConfig);
+
+    // Statements keep the thread name they were logged with
+    logAndAssertIndexed();
+  }
+
+  public void testThrowingLayoutRingBuffer() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.layout", ThrowingLayout.class.getName());
+    log4jConfig.put("log4j.appender.A1.RingBufferSize", "2");
+    log4jConfig.put("log4j.appender.A1.indexBatchSize", "1");
+    PropertyConfigurator.configure(log4jConfig);
+
+    // The writer thread must outlive the failure, or the full ring stalls
+    // logging for good
+    Thread logging = new Thread("poisoned") {
+
+      public void run() {
+        logger.error("poison");
+        for (int i = 0; i < 20; i++) {
+          logger.error("Test Error message (line " + i + ")");
+        }
+      }
+    };
+    logging.start();
+    logging.join(10000);
+    assertFalse(logging.isAlive());
+
+    LogManager.shutdown();
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    assertEquals(20, doSearch(directory, "uuid:poisoned"));
+    directory.close();
+  }
+
+  /**
+   * A layout failing on some statements.
+   */
+  public static class ThrowingLayout extends PatternLayout {
+
+    public String format(LoggingEvent event) {
+      if ("poison".equals(event.getMessage())) {
+        throw new IllegalStateException("Cannot format");
+      }
+
+      return super.format(event);
+    }
+  }
+
+  public void testLogDocumentReusesFields() {
+    LogDocument doc = new LogDocument();
+    doc.addKeyword("uuid", "main");
+    doc.addUnIndexed(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD, 1);
+    Field uuid = doc.getDocument().getField("uuid");
+    Field offset = doc.getDocument().getField(
+        FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD);
+
+    // Only the changed value costs a new field
+    doc.reset();
+    doc.addKeyword("uuid", new String("main"));
+    doc.addUnIndexed(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD, 2);
+    assertSame(uuid, doc.getDocument().getField("uuid"));
+    assertNotSame(offset, doc.getDocument().getField(
+        FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD));
+    assertEquals("2", doc.getDocument().get(
+        FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD));
+  }
+
+  public void testLegacyPopulateDocument() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1", LegacyAppender.class.getName());
+    log4jConfig.put("log4j.appender.A1.FieldMapping",
+        "uuid=thread, level=level");
+    PropertyConfigurator.configure(log4jConfig);
+
+    logAndAssertIndexed();
+
+    // The Document override still populates the documents, mapped fields
+    // included
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    assertEquals(expectedHits[0], doSearch(directory, "legacy:true"));
+    assertEquals(expectedHits[0], doSearch(directory, "level:ERROR"));
+    directory.close();
+  }
+
+  /**
+   * An appender populating documents the former way.
+   */
+  public static class LegacyAppender extends FilePosTrackingRollingFileAppender {
+
+    public boolean populateDocument(long fileLen, LoggingEvent event,
+        Document doc) {
+      super.populateDocument(fileLen, event, doc);
+      doc.add(Field.Keyword("legacy", "true"));
+
+      return true;
+    }
+  }
+
+  public void testThrowingPopulateDocument() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1", ThrowingAppender.class.getName());
+    log4jConfig.put("log4j.appender.A1.asyncIndexing", "true");
+    log4jConfig.put("log4j.appender.A1.indexQueueSize", "2");
+    log4jConfig.put("log4j.appender.A1.indexBatchSize", "1");
+    PropertyConfigurator.configure(log4jConfig);
+
+    // The indexer thread must outlive the failure, or the blocking queue
+    // stalls logging for good
+    Thread logging = new Thread("poisoned") {
+
+      public void run() {
+        logger.error("poison");
+        for (int i = 0; i < 20; i++) {
+          logger.error("Test Error message (line " + i + ")");
+        }
+      }
+    };
+    logging.start();
+    logging.join(10000);
+    assertFalse(logging.isAlive());
+
+    LogManager.shutdown();
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    assertEquals(20, doSearch(directory, "uuid:poisoned"));
+    directory.close();
+  }
+
+  /**
+   * An appender whose document population fails on some statements.
+   */
+  public static class ThrowingAppender extends
+      FilePosTrackingRollingFileAppender {
+
+    public boolean populateDocument(long fileLen, LoggingEvent event,
+        LogDocument doc) {
+      if ("poison".equals(event.getMessage())) {
+        throw new IllegalStateException("Cannot populate " + fileLen);
+      }
+
+      return super.populateDocument(fileLen, event, doc);
+    }
+  }
+
+  public void testLoggingWhilePopulatingDocument() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1", ChattyAppender.class.getName());
+    log4jConfig.put("log4j.appender.A1.asyncIndexing", "true");
+    log4jConfig.put("log4j.appender.A1.indexQueueSize", "1");
+    log4jConfig.put("log4j.appender.A1.indexBatchSize", "1");
+    log4jConfig.put("log4j.logger.chattyIndexer", "ERROR, A1");
+    log4jConfig.put("log4j.additivity.chattyIndexer", "false");
+    PropertyConfigurator.configure(log4jConfig);
+
+    // The indexer must not wait for the appender lock held by a logging
+    // thread blocked on the full queue
+    Thread logging = new Thread("chatty") {
+
+      public void run() {
+        for (int i = 0; i < 20; i++) {
+          logger.error("Test Error message (line " + i + ")");
+        }
+      }
+    };
+    logging.start();
+    logging.join(10000);
+    assertFalse(logging.isAlive());
+
+    // Shutting down locks the loggers the indexer would still log through
+    ChattyAppender.LOGGER.setLevel(Level.OFF);
+    LogManager.shutdown();
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    assertEquals(20, doSearch(directory, "uuid:chatty"));
+    directory.close();
+  }
+
+  /**
+   * An appender logging through itself while populating documents.
+   */
+  public static class ChattyAppender extends FilePosTrackingRollingFileAppender {
+
+    private static final Logger LOGGER = Logger.getLogger("chattyIndexer");
+
+    public boolean populateDocument(long fileLen, LoggingEvent event,
+        LogDocument doc) {
+      LOGGER.error("Indexing " + fileLen);
+
+      return super.populateDocument(fileLen, event, doc);
+    }
+  }
+
+  public void testFieldMapping() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.FieldMapping",
+        "uuid=thread, level=level, session=mdc.SESSION, nothing=mdc.NONE,"
+            + " message=message:text, bogus=nowhere, scoped=mdc.a:b");
+    PropertyConfigurator.configure(log4jConfig);
+
+    MDC.put("SESSION", "abc");
+    MDC.put("a:b", "scope");
+    try {
+      logAndAssertIndexed();
+    } finally {
+      MDC.remove("SESSION");
+      MDC.remove("a:b");
+    }
+
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    assertEquals(expectedHits[0], doSearch(directory, "level:ERROR"));
+    assertEquals(expectedHits[0], doSearch(directory, "session:abc"));
+    assertEquals(expectedHits[0], doSearch(directory, "message:Error"));
+    // The colon of an MDC key is not taken for a kind
+    assertEquals(expectedHits[0], doSearch(directory, "scoped:scope"));
+    IndexReader reader = IndexReader.open(directory);
+    assertNull(reader.document(0).get("nothing"));
+    assertNull(reader.document(0).get("bogus"));
+    reader.close();
+    directory.close();
+  }
+
+  public void testIndexAdmission() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.logger.myLogger", "DEBUG, A1");
+    log4jConfig.put("log4j.appender.A1.IndexThreshold", "ERROR");
+    log4jConfig.put("log4j.appender.A1.IndexExcludedLoggers", "myLogger.noisy");
+    log4jConfig.put("log4j.appender.A1.IndexRequiredMdcKey", "SESSION");
+    PropertyConfigurator.configure(log4jConfig);
+
+    Logger noisy = Logger.getLogger("myLogger.noisy");
+    for (int i = 0; i < 4; i++) {
+      MDC.put("SESSION", "abc");
+      logger.error("Admitted " + i);
+      logger.warn("Below threshold " + i);
+      noisy.error("Excluded " + i);
+      MDC.remove("SESSION");
+      logger.error("No session " + i);
+    }
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(AppenderMetrics.DOMAIN
+        + ":type=FilePosTrackingRollingFileAppender,name=\"A1\"");
+    assertEquals(new Long(4), server.getAttribute(name, "DocumentsIndexed"));
+    assertEquals(new Long(12), server.getAttribute(name,
+        "DocumentsNotAdmitted"));
+    LogManager.shutdown();
+
+    // Everything is in the log, only admitted statements in the index, each
+    // still pointing at its own fragment
+    File log = new File(logFile);
+    byte[] content = new byte[(int) log.length()];
+    InputStream in = new FileInputStream(log);
+    try {
+      assertEquals(content.length, in.read(content));
+    } finally {
+      in.close();
+    }
+    assertTrue(new String(content).indexOf("Excluded 3") >= 0);
+
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    IndexReader reader = IndexReader.open(directory);
+    try {
+      assertEquals(4, reader.numDocs());
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        Document doc = reader.document(i);
+        int start = Integer.parseInt(doc
+            .get(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD));
+        int end = Integer.parseInt(doc
+            .get(FilePosTrackingRollingFileAppender.FILE_END_OFFSET_FIELD));
+        assertEquals("ERROR [myLogger] - Admitted " + i + "\r\n", new String(
+            content, start, end - start));
+      }
+    } finally {
+      reader.close();
+      directory.close();
+    }
+  }
+
+  public void testSequenceRollOver() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.RollOverMode", "sequence");
+    PropertyConfigurator.configure(log4jConfig);
+
+    logAndAssertIndexed();
+    assertFalse(new File(logFile).exists());
+    assertEquals(1, SequenceManifest.read(logFile).getOldest());
+
+    // Carry on with the live generation, keeping no older one
+    log4jConfig.put("log4j.appender.A1.MaxBackupIndex", "0");
+    PropertyConfigurator.configure(log4jConfig);
+    logger.error("Test Error message (restarted)");
+
+    SequenceManifest sequenceManifest = SequenceManifest.read(logFile);
+    assertEquals(currentSequence, sequenceManifest.getCurrent());
+    assertEquals(currentSequence, sequenceManifest.getOldest());
+
+    // Expired generations are deleted in the background
+    File expiredLog = new File(determineCurrentLogFile(1));
+    File expiredIndex = new File(determineIndexDir(1));
+    for (int i = 0; i < 100 && (expiredLog.exists() || expiredIndex.exists()); i++) {
+      Thread.sleep(50);
+    }
+    assertFalse(expiredLog.exists());
+    assertFalse(expiredIndex.exists());
+    assertTrue(new File(determineCurrentLogFile(0)).exists());
+
+    LogManager.shutdown();
+  }
+
+  public void testStandbyIndex() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.RollOverMode", "sequence");
+    log4jConfig.put("log4j.appender.A1.StandbyThreshold", "0.5");
+    PropertyConfigurator.configure(log4jConfig);
+
+    int lines = 0;
+    File firstLog = new File(logFile + SequenceManifest.getSuffix(1));
+    while (firstLog.length() < 600) {
+      logger.error("Test Error message (line " + lines++ + ")");
+    }
+
+    // The next index is created in the background ahead of the rollover
+    File standbyDir = new File(logFile + "_lucene"
+        + SequenceManifest.getSuffix(2));
+    File standbySegments = new File(standbyDir, "segments");
+    for (int i = 0; i < 100 && !standbySegments.exists(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(standbySegments.exists());
+    assertEquals(1, SequenceManifest.read(logFile).getCurrent());
+
+    while (SequenceManifest.read(logFile).getCurrent() == 1) {
+      logger.error("Test Error message (line " + lines++ + ")");
+    }
+    for (int i = 0; i < 3; i++) {
+      logger.error("Test Error message (standby " + i + ")");
+    }
+    LogManager.shutdown();
+
+    // Statements after the rollover went to the standby index, the rolled
+    // over index was closed in the background before shutdown returned
+    currentSequence = 2;
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    assertEquals(3, doSearch(directory, "uuid:main"));
+    directory.close();
+    directory = FSDirectory.getDirectory(determineIndexDir(1), false);
+    assertEquals(lines, doSearch(directory, "uuid:main"));
+    assertEndOffsets(directory, firstLog);
+    directory.close();
+    assertManifest(new File(determineIndexDir(1)), lines, true, firstLog);
+  }
+
+  public void testOptimizeRotated() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      logger.error("Test Error message (line " + i + ")");
+    }
+
+    // Rolled over indexes are merged down to one segment in the background
+    for (int i = 1; i <= 2; i++) {
+      File indexDir = new File(determineIndexDir(i));
+      for (int j = 0; j < 100 && !GenerationManifest.read(indexDir).isOptimized(); j++) {
+        Thread.sleep(50);
+      }
+      assertTrue(GenerationManifest.read(indexDir).isOptimized());
+      assertEquals(1, indexDir.list(new FilenameFilter() {
+
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".cfs");
+        }
+      }).length);
+
+      Directory directory = FSDirectory.getDirectory(indexDir, false);
+      assertEquals(expectedHits[i], doSearch(directory, "uuid:main"));
+      directory.close();
+    }
+    assertFalse(GenerationManifest.read(new File(determineIndexDir(0)))
+        .isOptimized());
+
+    LogManager.shutdown();
+  }
+
+  public void testOptimizeSequenceRotated() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.RollOverMode", "sequence");
+    PropertyConfigurator.configure(log4jConfig);
+
+    for (int i = 0; i < 50; i++) {
+      logger.error("Test Error message (line " + i + ")");
+    }
+    currentSequence = SequenceManifest.read(logFile).getCurrent();
+    assertTrue(currentSequence > 2);
+
+    // Rolled over indexes are optimized once closed in the background, not
+    // while their writer still holds the write lock
+    for (int i = 1; i <= 2; i++) {
+      File indexDir = new File(determineIndexDir(i));
+      for (int j = 0; j < 100 && !GenerationManifest.read(indexDir).isOptimized(); j++) {
+        Thread.sleep(50);
+      }
+      assertTrue(GenerationManifest.read(indexDir).isOptimized());
+    }
+
+    LogManager.shutdown();
+  }
+
+  public void testCompressRotated() throws Exception {
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.CompressRotated", "true");
+    log4jConfig.put("log4j.appender.A1.CompressBlockSize", "256");
+    PropertyConfigurator.configure(log4jConfig);
+
+    for (int i = 0; i < 50; i++) {
+      logger.error("Test Error message (line " + i + ")");
+    }
+
+    // Rolled over log files are compressed in the background
+    for (int i = 1; i <= 2; i++) {
+      File log = new File(determineCurrentLogFile(i));
+      File compressed = BlockCompressedLog.getCompressedFile(log);
+      for (int j = 0; j < 100 && log.exists(); j++) {
+        Thread.sleep(50);
+      }
+      assertFalse(log.exists());
+      assertTrue(compressed.exists());
+
+      // The indexed offsets point into the uncompressed log
+      BlockCompressedLog compressedLog = BlockCompressedLog.open(compressed);
+      Directory directory = FSDirectory.getDirectory(determineIndexDir(i),
+          false);
+      IndexReader reader = IndexReader.open(directory);
+      try {
+        assertEquals(GenerationManifest.read(new File(determineIndexDir(i)))
+            .getEndOffset(), compressedLog.size());
+        assertTrue(compressedLog.getBlockCount() > 1);
+
+        byte[] bytes = new byte[(int) compressedLog.size()];
+        byte[] block = new byte[compressedLog.getBlockSize()];
+        for (int j = 0; j < compressedLog.getBlockCount(); j++) {
+          int length = compressedLog.readBlock(j, block);
+          System.arraycopy(block, 0, bytes, j * compressedLog.getBlockSize(),
+              length);
+        }
+        for (int j = 0; j < reader.maxDoc(); j++) {
+          Document doc = reader.document(j);
+          int start = Integer.parseInt(doc
+              .get(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD));
+          int end = Integer.parseInt(doc
+              .get(FilePosTrackingRollingFileAppender.FILE_END_OFFSET_FIELD));
+          assertTrue(new String(bytes, start, end - start, "UTF-8")
+              .startsWith("ERROR [myLogger] - Test Error message"));
+        }
+      } finally {
+        reader.close();
+        directory.close();
+        compressedLog.close();
+      }
+    }
+
+    // Compressed files are shifted along with the others
+    File oldest = BlockCompressedLog.getCompressedFile(new File(
+        determineCurrentLogFile(2)));
+    long oldestSize = oldest.length();
+    long rollOvers = FilePosTrackingRollingFileAppender.getRollOversFinished();
+    while (FilePosTrackingRollingFileAppender.getRollOversFinished() == rollOvers) {
+      logger.error("Test Error message (shift)");
+    }
+    assertEquals(oldestSize, BlockCompressedLog.getCompressedFile(
+        new File(determineCurrentLogFile(3))).length());
+
+    LogManager.shutdown();
+  }
+
+  public void testSignalFlush() throws Exception {
+    // Only flush on demand
+    LogManager.resetConfiguration();
+    cleanUpLogAndIndex(log4jConfig);
+    log4jConfig.put("log4j.appender.A1.indexFlushInterval", "0");
+    PropertyConfigurator.configure(log4jConfig);
+
+    for (int i = 0; i < 5; i++) {
+      logger.error("Test Error message (line " + i + ")");
+    }
+
+    // Still buffered by the IndexWriter
+    assertEquals(0, searchCurrentIndex());
+
+    // Opened too recently for a rate-limited flush
+    FilePosTrackingRollingFileAppender.signalFlush(60000);
+    assertEquals(0, searchCurrentIndex());
+
+    FilePosTrackingRollingFileAppender.signalFlush();
+    assertEquals(5, searchCurrentIndex());
+
+    LogManager.shutdown();
+  }
+
+  public void testMetrics() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(AppenderMetrics.DOMAIN
+        + ":type=FilePosTrackingRollingFileAppender,name=\"A1\"");
+    assertTrue(server.isRegistered(name));
+
+    for (int i = 0; i < 50; i++) {
+      logger.error("Test Error message (line " + i + ")");
+    }
+
+    assertEquals(new Long(50), server.getAttribute(name, "DocumentsIndexed"));
+    assertEquals(new Long(0), server.getAttribute(name, "DocumentsRejected"));
+    assertTrue(((Long) server.getAttribute(name, "RollOvers")).longValue() > 0);
+    long[] sizes = (long[]) server.getAttribute(name, "IndexSizes");
+    assertEquals(Integer.parseInt(log4jConfig
+        .getProperty("log4j.appender.A1.MaxBackupIndex")) + 1, sizes.length);
+    assertTrue(sizes[1] > 0);
+
+    LogManager.shutdown();
+    assertFalse(server.isRegistered(name));
+    assertTrue(FilePosTrackingRollingFileAppender.getRollOversFinished() > 0);
+    assertEquals(FilePosTrackingRollingFileAppender.getRollOversStarted(),
+        FilePosTrackingRollingFileAppender.getRollOversFinished());
+  }
+
+  private int searchCurrentIndex() throws IOException {
+    Directory directory = FSDirectory.getDirectory(determineIndexDir(0), false);
+    try {
+      return doSearch(directory, "uuid:main");
+    } finally {
+      directory.close();
+    }
+  }
+
+  private void logAndAssertIndexed() throws IOException {
     for (int i = 0; i < 50; i++) {
       logger.error("Test Error message (line " + i + ")");
     }
@@ -179,12 +784,18 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
     // committed, thus avoiding 0 matches on the most recent log
     LogManager.shutdown();
 
+    SequenceManifest sequenceManifest = SequenceManifest.read(logFile);
+    if (sequenceManifest != null) {
+      currentSequence = sequenceManifest.getCurrent();
+    }
+
     // Assert logs contain the above statements
     for (int i = 0; i <= 2; i++) {
       assertLogContent(i);
     }
 
     // Verify that the lucene index contains the right amount of matches
+    long newerGenerationId = Long.MAX_VALUE;
     for (int i = 0; i <= 2; i++) {
       // Determine index dir and log file names
       String indexDir = determineIndexDir(i);
@@ -199,12 +810,91 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
         Directory directory = FSDirectory.getDirectory(indexDir, false);
         int hits = doSearch(directory, "uuid:main");
         assertEquals(expectedHits[i], hits);
+        assertEndOffsets(directory, new File(currentLogFile));
+        assertRecords(directory, new File(indexDir));
+        GenerationManifest manifest = assertManifest(new File(indexDir),
+            expectedHits[i], i != 0, new File(currentLogFile));
+
+        // Older generations have smaller identifiers
+        assertTrue(manifest.getGenerationId() > 0);
+        assertTrue(manifest.getGenerationId() < newerGenerationId);
+        newerGenerationId = manifest.getGenerationId();
         
         directory.close();
       }
     }
   }
 
+  /**
+   * Asserts that every log statement ends where the next one starts, and the
+   * last one at the end of its log file.
+   */
+  private void assertEndOffsets(Directory directory, File log)
+      throws IOException {
+    IndexReader reader = IndexReader.open(directory);
+    try {
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        Document doc = reader.document(i);
+        long end = Long.parseLong(doc
+            .get(FilePosTrackingRollingFileAppender.FILE_END_OFFSET_FIELD));
+
+        long expectedEnd = log.length();
+        if (i + 1 < reader.maxDoc()) {
+          expectedEnd = Long.parseLong(reader.document(i + 1).get(
+              FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD));
+        }
+        assertEquals("End offset of doc " + i + " in " + log, expectedEnd, end);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Asserts that the record file of a generation holds the extent of every
+   * document, as stored in the index.
+   */
+  private void assertRecords(Directory directory, File indexDir)
+      throws IOException {
+    IndexReader reader = IndexReader.open(directory);
+    try {
+      long[] starts = new long[reader.maxDoc()];
+      long[] ends = new long[reader.maxDoc()];
+      assertEquals(reader.maxDoc(), RecordFile.read(indexDir, 0, reader
+          .maxDoc(), starts, ends));
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        Document doc = reader.document(i);
+        assertEquals(Long.parseLong(doc
+            .get(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD)),
+            starts[i]);
+        assertEquals(Long.parseLong(doc
+            .get(FilePosTrackingRollingFileAppender.FILE_END_OFFSET_FIELD)),
+            ends[i]);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Asserts that the manifest of a generation matches its index and log.
+   */
+  private GenerationManifest assertManifest(File indexDir, int docCount,
+      boolean finalized, File log) {
+    GenerationManifest manifest = GenerationManifest.read(indexDir);
+    assertNotNull("No manifest in " + indexDir, manifest);
+    assertEquals(docCount, manifest.getDocCount());
+    assertEquals(finalized, manifest.isFinalized());
+    assertEquals(0, manifest.getStartOffset());
+    assertEquals(log.length(), manifest.getEndOffset());
+    assertTrue(manifest.getMinTimestamp() <= manifest.getMaxTimestamp());
+    assertTrue(manifest.mayContain(manifest.getMinTimestamp(), manifest
+        .getMinTimestamp()));
+    assertFalse(manifest.mayContain(0, manifest.getMinTimestamp() - 1));
+
+    return manifest;
+  }
+
   private void assertLogContent(int i) {
     String expectedLogFileName = determineExpectedLogFile(i);
     String actualLogFileName = determineCurrentLogFile(i);
@@ -246,6 +936,10 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
   }
 
   private String determineCurrentLogFile(int i) {
+    if (currentSequence != 0) {
+      return logFile + SequenceManifest.getSuffix(currentSequence - i);
+    }
+
     String currentLogFile = logFile;
     if (i != 0) {
       currentLogFile = logFile + "." + i;
@@ -264,6 +958,10 @@ public class FilePosTrackingRollingFileAppenderIntegTest extends TestCase {
   }
 
   private String determineIndexDir(int i) {
+    if (currentSequence != 0) {
+      return logFile + "_lucene" + SequenceManifest.getSuffix(currentSequence - i);
+    }
+
     String indexDir = logFile + "_lucene";
     if (i > 0) {
       indexDir += "." + i;
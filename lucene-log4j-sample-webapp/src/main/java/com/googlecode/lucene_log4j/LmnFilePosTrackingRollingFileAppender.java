@@ -1,25 +1,23 @@
-package com.googlecode.lucene_log4j;
-
-import org.apache.log4j.MDC;
-import org.apache.log4j.spi.LoggingEvent;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-
-import com.googlecode.lucene_log4j.FilePosTrackingRollingFileAppender;
-
-public class LmnFilePosTrackingRollingFileAppender extends
-    FilePosTrackingRollingFileAppender {
-
-  public boolean populateDocument(long fileLen, LoggingEvent event, Document doc) {
-    String uuid = (String) MDC.get("JSESSION");
-    doc.add(Field.Keyword("uuid", uuid));
-    doc.add(Field.UnIndexed("fileOffset", "" + fileLen));
-    doc
-        .add(Field
-            .Keyword("currentTimeMillis", "" + System.currentTimeMillis()));
-    doc.add(Field.Text("message", event.getRenderedMessage()));
-    
-    return true;
-  }
-
-}
+package com.googlecode.lucene_log4j;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.googlecode.lucene_log4j.FilePosTrackingRollingFileAppender;
+import com.googlecode.lucene_log4j.LogDocument;
+
+public class LmnFilePosTrackingRollingFileAppender extends
+    FilePosTrackingRollingFileAppender {
+
+  public boolean populateDocument(long fileLen, LoggingEvent event,
+      LogDocument doc) {
+    String uuid = (String) event.getMDC("JSESSION");
+    if (uuid != null) {
+      doc.addKeyword("uuid", uuid);
+    }
+    doc.addUnIndexed("fileOffset", fileLen);
+    doc.addText("message", event.getRenderedMessage());
+    
+    return true;
+  }
+
+}
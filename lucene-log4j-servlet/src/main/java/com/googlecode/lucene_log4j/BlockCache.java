@@ -0,0 +1,240 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently read blocks of {@link BlockCompressedLog}s
+ * inflated across requests, so hits close to each other, or searched again,
+ * do not inflate the same block twice.
+ * <p>
+ * Blocks are keyed by file path and modification time, so a file replaced
+ * by a rollover in another JVM is not served from stale blocks.
+ * {@link #evictAll()} drops every block on rollover in this JVM, when file
+ * names are about to point at other generations; in sequence mode only the
+ * blocks of the expired generation are {@link #evict(File) dropped}.
+ */
+final class BlockCache {
+
+  /**
+   * The default amount of blocks kept.
+   */
+  static final int DEFAULT_CAPACITY = 32;
+
+  /**
+   * The most blocks kept.
+   */
+  private final int capacity;
+
+  /**
+   * Maps block keys to inflated blocks, least recently used first.
+   */
+  private final Map blocks;
+
+  /**
+   * The bytes of a compressed log file, inflated a block at a time through
+   * the cache. The {@link BlockCompressedLog} it reads is closed by the
+   * caller.
+   */
+  static final class CompressedLogSource implements LogSource {
+
+    /**
+     * The blocks kept across requests.
+     */
+    private final BlockCache cache;
+
+    /**
+     * The compressed log file.
+     */
+    private final BlockCompressedLog log;
+
+    /**
+     * The prefix of the keys of its blocks.
+     */
+    private final String keyPrefix;
+
+    /**
+     * Creates a CompressedLogSource.
+     *
+     * @param cache
+     *          The blocks kept across requests.
+     * @param file
+     *          The compressed log file.
+     * @param log
+     *          The compressed log file, opened.
+     */
+    CompressedLogSource(BlockCache cache, File file, BlockCompressedLog log) {
+      this.cache = cache;
+      this.log = log;
+      keyPrefix = file.getPath() + '@' + file.lastModified() + '#';
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long size() {
+      return log.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+      if (position >= log.size()) {
+        return -1;
+      }
+
+      int read = 0;
+      while (dst.hasRemaining() && position < log.size()) {
+        ByteBuffer slice = slice(position, dst.remaining());
+        read += slice.remaining();
+        position += slice.remaining();
+        dst.put(slice);
+      }
+
+      return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long transferTo(long position, long count,
+        WritableByteChannel target) throws IOException {
+      long transferred = 0;
+      while (transferred < count && position + transferred < log.size()) {
+        ByteBuffer slice = slice(position + transferred, count - transferred);
+        while (slice.hasRemaining()) {
+          transferred += target.write(slice);
+        }
+      }
+
+      return transferred;
+    }
+
+    /**
+     * Returns the bytes from a position up to the end of its block.
+     *
+     * @param position
+     *          The log position, below the log size.
+     * @param max
+     *          The most bytes wanted.
+     *
+     * @return a buffer over the inflated block.
+     *
+     * @throws IOException
+     *           If the block cannot be read.
+     */
+    private ByteBuffer slice(long position, long max) throws IOException {
+      int block = (int) (position / log.getBlockSize());
+      byte[] bytes = getBlock(block);
+      int offset = (int) (position % log.getBlockSize());
+
+      return ByteBuffer.wrap(bytes, offset, (int) Math.min(bytes.length
+          - offset, max));
+    }
+
+    /**
+     * Returns an inflated block, from the cache if there.
+     *
+     * @param block
+     *          The block.
+     *
+     * @return the log bytes of the block.
+     *
+     * @throws IOException
+     *           If the block cannot be read.
+     */
+    private byte[] getBlock(int block) throws IOException {
+      String key = keyPrefix + block;
+      byte[] bytes = cache.get(key);
+      if (bytes == null) {
+        // Inflated outside the cache lock, at worst twice
+        bytes = new byte[log.getBlockLength(block)];
+        log.readBlock(block, bytes);
+        cache.put(key, bytes);
+      }
+
+      return bytes;
+    }
+  }
+
+  /**
+   * Creates a BlockCache.
+   *
+   * @param capacity
+   *          The most blocks kept, 0 to keep none.
+   */
+  BlockCache(final int capacity) {
+    this.capacity = capacity;
+    blocks = new LinkedHashMap(16, 0.75f, true) {
+
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns a cached block.
+   *
+   * @param key
+   *          The block key.
+   *
+   * @return the inflated block, or null if not cached.
+   */
+  synchronized byte[] get(String key) {
+    return (byte[]) blocks.get(key);
+  }
+
+  /**
+   * Caches a block, dropping the least recently used one if full.
+   *
+   * @param key
+   *          The block key.
+   * @param block
+   *          The inflated block.
+   */
+  synchronized void put(String key, byte[] block) {
+    if (capacity > 0) {
+      blocks.put(key, block);
+    }
+  }
+
+  /**
+   * Returns the amount of cached blocks.
+   *
+   * @return the block count.
+   */
+  synchronized int size() {
+    return blocks.size();
+  }
+
+  /**
+   * Drops every block, since file names are about to point at other
+   * generations.
+   */
+  synchronized void evictAll() {
+    blocks.clear();
+  }
+
+  /**
+   * Drops the blocks of a compressed log file, since its generation is about
+   * to be expired.
+   *
+   * @param file
+   *          The compressed log file.
+   */
+  synchronized void evict(File file) {
+    String prefix = file.getPath() + '@';
+    for (Iterator iterator = blocks.keySet().iterator(); iterator.hasNext();) {
+      if (((String) iterator.next()).startsWith(prefix)) {
+        iterator.remove();
+      }
+    }
+  }
+}
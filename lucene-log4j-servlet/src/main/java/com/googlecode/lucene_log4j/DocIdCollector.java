@@ -0,0 +1,167 @@
+package com.googlecode.lucene_log4j;
+
+import java.util.Arrays;
+
+import org.apache.lucene.search.HitCollector;
+
+/**
+ * Collects the IDs of the matching documents. Log fragments are printed in
+ * file order, so there is no need for scores or a sorted {@link
+ * org.apache.lucene.search.Hits}.
+ * <p>
+ * Only the lowest {@code limit} IDs after {@code afterDocId} are kept, so a
+ * page of results costs memory in proportion to the page rather than to the
+ * amount of hits.
+ */
+final class DocIdCollector extends HitCollector {
+
+  /**
+   * The initial capacity of {@link #docIds}.
+   */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * Documents up to this ID are skipped.
+   */
+  private final int afterDocId;
+
+  /**
+   * The amount of document IDs to keep.
+   */
+  private final int limit;
+
+  /**
+   * The collected document IDs.
+   */
+  private int[] docIds = new int[INITIAL_CAPACITY];
+
+  /**
+   * The amount of collected document IDs.
+   */
+  private int count;
+
+  /**
+   * The amount of documents after {@link #afterDocId} that matched.
+   */
+  private int totalHits;
+
+  /**
+   * Documents above this ID cannot make it into the lowest {@link #limit}.
+   */
+  private int ceiling = Integer.MAX_VALUE;
+
+  /**
+   * True while {@link #docIds} is sorted and trimmed to {@link #limit}.
+   */
+  private boolean trimmed = true;
+
+  /**
+   * Creates a DocIdCollector keeping every hit.
+   */
+  DocIdCollector() {
+    this(-1, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a DocIdCollector keeping the lowest {@code limit} IDs after
+   * {@code afterDocId}.
+   *
+   * @param afterDocId
+   *          Documents up to this ID are skipped, -1 to skip none.
+   * @param limit
+   *          The amount of document IDs to keep.
+   */
+  DocIdCollector(int afterDocId, int limit) {
+    this.afterDocId = afterDocId;
+    this.limit = limit;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void collect(int doc, float score) {
+    if (doc <= afterDocId) {
+      return;
+    }
+
+    totalHits++;
+    if (doc > ceiling || limit == 0) {
+      return;
+    }
+
+    if (count == docIds.length) {
+      if (count >= limit) {
+        // Keep memory bounded by the limit
+        trim();
+      } else {
+        int[] grown = new int[Math.min(docIds.length * 2, Math.max(limit,
+            docIds.length))];
+        System.arraycopy(docIds, 0, grown, 0, count);
+        docIds = grown;
+      }
+
+      if (doc > ceiling) {
+        return;
+      }
+    }
+
+    docIds[count++] = doc;
+    trimmed = false;
+  }
+
+  /**
+   * Sorts the collected IDs and drops those past the {@link #limit}.
+   */
+  private void trim() {
+    if (trimmed) {
+      return;
+    }
+
+    Arrays.sort(docIds, 0, count);
+    if (count >= limit) {
+      count = limit;
+      ceiling = docIds[limit - 1];
+    }
+    trimmed = true;
+
+    if (count == docIds.length) {
+      // Room for the next batch, the kept IDs plus as many again
+      int[] grown = new int[(int) Math.min(Integer.MAX_VALUE, 2L * count)];
+      System.arraycopy(docIds, 0, grown, 0, count);
+      docIds = grown;
+    }
+  }
+
+  /**
+   * Returns the amount of kept document IDs.
+   *
+   * @return the kept hit count.
+   */
+  int getCount() {
+    trim();
+
+    return count;
+  }
+
+  /**
+   * Returns the kept document IDs in ascending order. Only the first
+   * {@link #getCount()} are valid.
+   *
+   * @return the document IDs.
+   */
+  int[] getDocIds() {
+    trim();
+
+    return docIds;
+  }
+
+  /**
+   * Returns the amount of documents after {@code afterDocId} that matched,
+   * kept or not.
+   *
+   * @return the total hit count.
+   */
+  int getTotalHits() {
+    return totalHits;
+  }
+}
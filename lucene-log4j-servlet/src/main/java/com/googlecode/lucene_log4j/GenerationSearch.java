@@ -0,0 +1,545 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+
+/**
+ * Runs a query on one log generation and keeps the extents of the matching
+ * log statements, so generations can be searched concurrently and printed in
+ * order afterwards.
+ * <p>
+ * The generation is pinned when the search runs: its index and log file are
+ * opened together, wherever rollovers have moved them since the request
+ * started, and stay usable until {@link #close()} even if renamed.
+ */
+final class GenerationSearch implements Callable {
+
+  /**
+   * How many times to try pinning a generation that keeps moving.
+   */
+  private static final int MAX_PIN_ATTEMPTS = 10;
+
+  /**
+   * The milliseconds to wait after the first failed attempt at pinning a
+   * generation, doubled after every further one.
+   */
+  private static final long PIN_RETRY_WAIT = 1;
+
+  /**
+   * The generations of the log.
+   */
+  private final LogGenerations generations;
+
+  /**
+   * The position of the generation when the request started, 0 for the live
+   * one.
+   */
+  private final int generation;
+
+  /**
+   * The identifier of the generation, 0 if unknown.
+   */
+  private final long generationId;
+
+  /**
+   * The log file of the generation, once pinned.
+   */
+  private File log;
+
+  /**
+   * The bytes of the log file, once pinned.
+   */
+  private LogSource source;
+
+  /**
+   * The log file opened for {@link #source} when not mapping.
+   */
+  private RandomAccessFile openLog;
+
+  /**
+   * The compressed log file opened for {@link #source}, if the log file was
+   * compressed.
+   */
+  private BlockCompressedLog openCompressedLog;
+
+  /**
+   * Set once the search is not needed anymore.
+   */
+  private boolean closed;
+
+  /**
+   * The lucene query.
+   */
+  private final Query query;
+
+  /**
+   * The filter restricting the query, or null.
+   */
+  private final Filter filter;
+
+  /**
+   * Documents up to this ID are skipped, -1 to skip none.
+   */
+  private final int afterDocId;
+
+  /**
+   * The amount of hits to keep.
+   */
+  private int limit = Integer.MAX_VALUE;
+
+  /**
+   * The IDs of the kept hits, in ascending order.
+   */
+  private int[] docIds;
+
+  /**
+   * The amount of hits after {@link #afterDocId}, kept or not.
+   */
+  private int totalHits;
+
+  /**
+   * The start offsets of the hits.
+   */
+  private long[] starts;
+
+  /**
+   * The end offsets of the hits.
+   */
+  private long[] ends;
+
+  /**
+   * The amount of hits.
+   */
+  private int count;
+
+  /**
+   * Nanoseconds spent opening the index.
+   */
+  private long openNanos;
+
+  /**
+   * Nanoseconds spent running the query.
+   */
+  private long queryNanos;
+
+  /**
+   * Nanoseconds spent mapping hits to log file extents.
+   */
+  private long offsetsNanos;
+
+  /**
+   * Creates a GenerationSearch.
+   *
+   * @param generations
+   *          The generations of the log.
+   * @param generation
+   *          The position of the generation when the request started, 0 for
+   *          the live one.
+   * @param generationId
+   *          The identifier of the generation, 0 if unknown.
+   * @param query
+   *          The lucene query.
+   * @param filter
+   *          The filter restricting the query, or null.
+   * @param afterDocId
+   *          Documents up to this ID are skipped, -1 to skip none.
+   */
+  GenerationSearch(LogGenerations generations, int generation,
+      long generationId, Query query, Filter filter, int afterDocId) {
+    this.generations = generations;
+    this.generation = generation;
+    this.generationId = generationId;
+    this.query = query;
+    this.filter = filter;
+    this.afterDocId = afterDocId;
+  }
+
+  /**
+   * Limits the amount of hits kept, i.e. the lowest document IDs. Must be
+   * called before the search runs.
+   *
+   * @param limit
+   *          The amount of hits to keep.
+   */
+  void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Runs the query.
+   *
+   * @return this search.
+   *
+   * @throws Exception
+   *           If the index cannot be searched.
+   */
+  public Object call() throws Exception {
+    long start = System.nanoTime();
+    IndexSearcherCache.CachedSearcher searcher = pin();
+    long opened = System.nanoTime();
+    openNanos = opened - start;
+    if (searcher == null) {
+      // Deleted by rollovers since the request started
+      docIds = new int[0];
+      starts = new long[0];
+      ends = new long[0];
+
+      return this;
+    }
+
+    IndexSearcherCache searcherCache = generations.getSearcherCache();
+    try {
+      // Fragments are printed in file order so hits need no scoring order
+      DocIdCollector collector = new DocIdCollector(afterDocId, limit);
+      searcher.getSearcher().search(query, filter, collector);
+      count = collector.getCount();
+      totalHits = collector.getTotalHits();
+      docIds = collector.getDocIds();
+      long searched = System.nanoTime();
+      queryNanos = searched - opened;
+
+      mapOffsets(searcher);
+      offsetsNanos = System.nanoTime() - searched;
+    } finally {
+      searcherCache.release(searcher);
+    }
+
+    return this;
+  }
+
+  /**
+   * Maps the hits to log file extents, never past what the appender has
+   * committed. Hits past it are dropped.
+   *
+   * @param searcher
+   *          The pinned searcher on the index.
+   *
+   * @throws IOException
+   *           If the offsets cannot be read.
+   */
+  private void mapOffsets(IndexSearcherCache.CachedSearcher searcher)
+      throws IOException {
+    starts = new long[count];
+    ends = new long[count];
+    if (count == 0) {
+      return;
+    }
+
+    OffsetTable offsetTable = searcher.getOffsetTable();
+    long committed = searcher.getCommittedOffset();
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      long fragmentStart = offsetTable.getStart(docIds[i]);
+      if (fragmentStart >= committed) {
+        continue;
+      }
+
+      long fragmentEnd = offsetTable.getEnd(docIds[i]);
+      if (committed != Long.MAX_VALUE
+          && (fragmentEnd == OffsetTable.UNKNOWN || fragmentEnd > committed)) {
+        fragmentEnd = committed;
+      }
+
+      docIds[kept] = docIds[i];
+      starts[kept] = fragmentStart;
+      ends[kept++] = fragmentEnd;
+    }
+    totalHits -= count - kept;
+    count = kept;
+  }
+
+  /**
+   * Opens the index and the log file of the generation, retrying while
+   * rollovers move them. Attempts are spaced out a little more every time,
+   * about half a second in all, so a generation moved by another JVM or a
+   * busy appender is not retried in a tight loop.
+   *
+   * @return the searcher on the index, or null if the generation is gone.
+   *
+   * @throws IOException
+   *           If the generation cannot be opened.
+   * @throws InterruptedException
+   *           If interrupted while waiting for a rollover.
+   */
+  private IndexSearcherCache.CachedSearcher pin() throws IOException,
+      InterruptedException {
+    IndexSearcherCache searcherCache = generations.getSearcherCache();
+    for (int attempt = 0; attempt < MAX_PIN_ATTEMPTS; attempt++) {
+      long started = LogGenerations.awaitRollOver();
+      int position = generations.locate(generation, generationId);
+      if (position < 0) {
+        return null;
+      }
+
+      IndexSearcherCache.CachedSearcher searcher = searcherCache.acquire(
+          generations.getIndexDir(position, generationId), position != 0);
+      boolean pinned = false;
+      try {
+        if (generationId == 0 || searcher.getGenerationId() == generationId) {
+          openLog(generations.getLog(position, generationId));
+          pinned = LogGenerations.isStable(started);
+        }
+      } finally {
+        if (!pinned) {
+          searcherCache.release(searcher);
+          closeLog();
+        }
+      }
+
+      if (pinned) {
+        return searcher;
+      }
+      if (attempt + 1 < MAX_PIN_ATTEMPTS) {
+        Thread.sleep(PIN_RETRY_WAIT << attempt);
+      }
+    }
+
+    throw new IOException("Log generation " + generation
+        + " kept moving while being opened");
+  }
+
+  /**
+   * Opens the log file of the generation, or its compressed file once the
+   * appender compressed it.
+   *
+   * @param file
+   *          The log file.
+   *
+   * @throws IOException
+   *           If the log file cannot be opened.
+   */
+  private void openLog(File file) throws IOException {
+    try {
+      openUncompressedLog(file);
+    } catch (FileNotFoundException e) {
+      File compressed = BlockCompressedLog.getCompressedFile(file);
+      if (!compressed.exists()) {
+        throw e;
+      }
+      openCompressedLog(compressed);
+    }
+  }
+
+  /**
+   * Opens a compressed log file, read through the shared {@link BlockCache}.
+   *
+   * @param file
+   *          The compressed log file.
+   *
+   * @throws IOException
+   *           If the compressed log file cannot be opened.
+   */
+  private void openCompressedLog(File file) throws IOException {
+    BlockCompressedLog compressedLog = BlockCompressedLog.open(file);
+    synchronized (this) {
+      if (closed) {
+        compressedLog.close();
+
+        return;
+      }
+
+      log = file;
+      openCompressedLog = compressedLog;
+      source = new BlockCache.CompressedLogSource(generations.getBlockCache(),
+          file, compressedLog);
+    }
+  }
+
+  /**
+   * Opens an uncompressed log file.
+   *
+   * @param file
+   *          The log file.
+   *
+   * @throws IOException
+   *           If the log file cannot be opened.
+   */
+  private void openUncompressedLog(File file) throws IOException {
+    MappedLogCache mappedLogs = generations.getMappedLogs();
+    if (mappedLogs != null) {
+      // Mapped outside the lock; the mapping belongs to the cache
+      MappedLogCache.MappedLog mappedLog = mappedLogs.get(file);
+      synchronized (this) {
+        if (!closed) {
+          log = file;
+          source = mappedLog;
+        }
+      }
+
+      return;
+    }
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    synchronized (this) {
+      if (closed) {
+        randomAccessFile.close();
+
+        return;
+      }
+
+      log = file;
+      openLog = randomAccessFile;
+      source = new LogFragmentWriter.ChannelLogSource(randomAccessFile
+          .getChannel());
+    }
+  }
+
+  /**
+   * Closes the log file, if opened.
+   *
+   * @throws IOException
+   *           If the log file cannot be closed.
+   */
+  private synchronized void closeLog() throws IOException {
+    source = null;
+    if (openLog != null) {
+      RandomAccessFile randomAccessFile = openLog;
+      openLog = null;
+      randomAccessFile.close();
+    }
+    if (openCompressedLog != null) {
+      BlockCompressedLog compressedLog = openCompressedLog;
+      openCompressedLog = null;
+      compressedLog.close();
+    }
+  }
+
+  /**
+   * Releases the log file. Safe to call whether the search ran, is running or
+   * never will.
+   *
+   * @throws IOException
+   *           If the log file cannot be closed.
+   */
+  synchronized void close() throws IOException {
+    closed = true;
+    closeLog();
+  }
+
+  /**
+   * Returns the position of the generation when the request started.
+   *
+   * @return the generation, 0 for the live one.
+   */
+  int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Returns how a cursor names the generation: its identifier prefixed with
+   * "g", or its position if it has no identifier.
+   *
+   * @return the cursor generation.
+   */
+  String getCursorGeneration() {
+    return generationId != 0 ? "g" + generationId : "" + generation;
+  }
+
+  /**
+   * Returns the identifier of the generation.
+   *
+   * @return the generation identifier, 0 if unknown.
+   */
+  long getGenerationId() {
+    return generationId;
+  }
+
+  /**
+   * Returns the bytes of the log file, pinned along with the index.
+   *
+   * @return the log source, or null if the generation is gone.
+   */
+  synchronized LogSource getSource() {
+    return source;
+  }
+
+  /**
+   * Returns the IDs of the kept hits.
+   *
+   * @return the document IDs in ascending order, only the first
+   *         {@link #getCount()} are valid.
+   */
+  int[] getDocIds() {
+    return docIds;
+  }
+
+  /**
+   * Returns the amount of hits after the skipped documents, kept or not.
+   *
+   * @return the total hit count.
+   */
+  int getTotalHits() {
+    return totalHits;
+  }
+
+  /**
+   * Returns the log file of the generation, as named when pinned.
+   *
+   * @return the log file or its compressed file, or null if the generation
+   *         is gone.
+   */
+  File getLog() {
+    return log;
+  }
+
+  /**
+   * Returns the start offsets of the hits.
+   *
+   * @return the start offsets, only the first {@link #getCount()} are valid.
+   */
+  long[] getStarts() {
+    return starts;
+  }
+
+  /**
+   * Returns the end offsets of the hits.
+   *
+   * @return the end offsets, only the first {@link #getCount()} are valid.
+   */
+  long[] getEnds() {
+    return ends;
+  }
+
+  /**
+   * Returns the amount of kept hits.
+   *
+   * @return the kept hit count.
+   */
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the time spent opening the index, or taking it from the cache.
+   *
+   * @return nanoseconds.
+   */
+  long getOpenNanos() {
+    return openNanos;
+  }
+
+  /**
+   * Returns the time spent running the query.
+   *
+   * @return nanoseconds.
+   */
+  long getQueryNanos() {
+    return queryNanos;
+  }
+
+  /**
+   * Returns the time spent mapping hits to log file extents, which loads the
+   * offset table of the index on first use.
+   *
+   * @return nanoseconds.
+   */
+  long getOffsetsNanos() {
+    return offsetsNanos;
+  }
+}
@@ -0,0 +1,466 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Keeps one {@link IndexSearcher} open per Lucene index directory so that
+ * concurrent searches share the same segment readers instead of re-reading
+ * every segment file on each request.
+ * <p>
+ * The live index is reopened only when its version changes. Rotated indexes
+ * are never written again, so they are only checked for a rename (the
+ * <code>segments</code> file changing underneath the directory name) and
+ * otherwise stay open until {@link #evictAll()} is called on rollover, or,
+ * in sequence mode, until their generation is {@link #evict(String) expired}.
+ * <p>
+ * Searchers are reference counted: an evicted searcher is closed once the
+ * last request using it calls {@link #release(CachedSearcher)}.
+ * <p>
+ * Only the lookup and the reference counts are guarded by the cache. Indexes
+ * are opened outside of it, so a slow open only holds up the requests
+ * waiting for the same directory, which share the searcher it opens.
+ * <p>
+ * Each searcher carries the {@link OffsetTable} of its index, loaded once on
+ * first use, and the high-water mark of the {@link GenerationManifest} read
+ * right after opening it.
+ */
+final class IndexSearcherCache {
+
+  /**
+   * The name of the file every Lucene index rewrites on commit.
+   */
+  private static final String SEGMENTS_FILE = "segments";
+
+  /**
+   * Maps index directory paths to {@link CachedSearcher}s.
+   */
+  private final Map searchers = new HashMap();
+
+  /**
+   * Maps the index directory paths being opened to their {@link Opening}s.
+   */
+  private final Map openings = new HashMap();
+
+  /**
+   * A directory being opened by one request, which the requests for the same
+   * directory wait for.
+   */
+  private static final class Opening {
+
+    /**
+     * Set once the searcher is in the cache, or failed to open. Guarded by the
+     * cache.
+     */
+    private boolean done;
+
+    /**
+     * The searcher being replaced, whose offsets may be extended, or null.
+     */
+    private final CachedSearcher previous;
+
+    /**
+     * Set if the directory was evicted while being opened. Guarded by the
+     * cache.
+     */
+    private boolean evicted;
+
+    /**
+     * Creates an Opening.
+     *
+     * @param previous
+     *          The searcher being replaced, or null.
+     */
+    private Opening(CachedSearcher previous) {
+      this.previous = previous;
+    }
+  }
+
+  /**
+   * An {@link IndexSearcher} shared by concurrent requests.
+   */
+  static final class CachedSearcher {
+
+    /**
+     * The index directory path.
+     */
+    private final String indexDir;
+
+    /**
+     * The reader behind {@link #searcher}.
+     */
+    private final IndexReader reader;
+
+    /**
+     * The shared searcher.
+     */
+    private final IndexSearcher searcher;
+
+    /**
+     * The index version the searcher was opened on.
+     */
+    private final long version;
+
+    /**
+     * The last modification time of the segments file when opened.
+     */
+    private final long segmentsModified;
+
+    /**
+     * The log file offset the searched documents are known to end by,
+     * {@link Long#MAX_VALUE} if the index has no manifest.
+     */
+    private final long committedOffset;
+
+    /**
+     * The identifier of the generation, 0 if unknown.
+     */
+    private final long generationId;
+
+    /**
+     * The amount of requests using the searcher. Guarded by the cache.
+     */
+    private int refCount;
+
+    /**
+     * Set once the searcher has been removed from the cache. Guarded by the
+     * cache.
+     */
+    private boolean evicted;
+
+    /**
+     * The offsets of the index documents, loaded on first use.
+     */
+    private OffsetTable offsetTable;
+
+    /**
+     * A table loaded on an older version of the index, to be extended.
+     */
+    private OffsetTable previousOffsetTable;
+
+    /**
+     * Creates a CachedSearcher.
+     *
+     * @param indexDir
+     *          The index directory path.
+     * @param reader
+     *          The reader on the index.
+     * @param version
+     *          The index version the reader was opened on.
+     * @param segmentsModified
+     *          The last modification time of the segments file.
+     */
+    private CachedSearcher(String indexDir, IndexReader reader, long version,
+        long segmentsModified) {
+      this.indexDir = indexDir;
+      this.reader = reader;
+      this.searcher = new IndexSearcher(reader);
+      this.version = version;
+      this.segmentsModified = segmentsModified;
+
+      // Read after the index, since the appender writes it before committing
+      GenerationManifest manifest = GenerationManifest.read(new File(indexDir));
+      this.committedOffset = manifest == null ? Long.MAX_VALUE : manifest
+          .getEndOffset();
+      this.generationId = manifest == null ? 0 : manifest.getGenerationId();
+    }
+
+    /**
+     * Returns the shared {@link IndexSearcher}. Do not close it.
+     *
+     * @return the searcher.
+     */
+    IndexSearcher getSearcher() {
+      return searcher;
+    }
+
+    /**
+     * Returns the high-water mark of the log file: the appender has written
+     * the log up to it, so it can be read that far without locking.
+     *
+     * @return the log file offset, {@link Long#MAX_VALUE} if unknown.
+     */
+    long getCommittedOffset() {
+      return committedOffset;
+    }
+
+    /**
+     * Returns the identifier of the generation searched.
+     *
+     * @return the generation identifier, 0 if unknown.
+     */
+    long getGenerationId() {
+      return generationId;
+    }
+
+    /**
+     * Returns the {@link OffsetTable} of the index, loading it if needed.
+     *
+     * @return the offset table.
+     *
+     * @throws IOException
+     *           If the offsets cannot be read.
+     */
+    synchronized OffsetTable getOffsetTable() throws IOException {
+      if (offsetTable == null) {
+        offsetTable = OffsetTable.load(reader, new File(indexDir),
+            generationId, previousOffsetTable);
+        previousOffsetTable = null;
+      }
+
+      return offsetTable;
+    }
+
+    /**
+     * Returns the {@link OffsetTable} if it has been loaded already.
+     *
+     * @return the offset table or null.
+     */
+    private synchronized OffsetTable getLoadedOffsetTable() {
+      return offsetTable;
+    }
+  }
+
+  /**
+   * Returns a searcher on {@code indexDir}, opening it if needed. Every call
+   * must be paired with {@link #release(CachedSearcher)}.
+   *
+   * @param indexDir
+   *          The index directory path.
+   * @param rotated
+   *          True if the index belongs to a rotated, read-only generation.
+   *
+   * @return a {@link CachedSearcher}.
+   *
+   * @throws IOException
+   *           If the index cannot be opened.
+   */
+  CachedSearcher acquire(String indexDir, boolean rotated) throws IOException {
+    while (true) {
+      long segmentsModified = new File(indexDir, SEGMENTS_FILE).lastModified();
+      long version = rotated ? 0 : IndexReader.getCurrentVersion(indexDir);
+
+      Opening opening;
+      synchronized (this) {
+        CachedSearcher previous = (CachedSearcher) searchers.get(indexDir);
+        CachedSearcher cached = lookup(indexDir, rotated, version,
+            segmentsModified);
+        if (cached != null) {
+          cached.refCount++;
+
+          return cached;
+        }
+
+        opening = (Opening) openings.get(indexDir);
+        if (opening == null) {
+          opening = new Opening(previous);
+          openings.put(indexDir, opening);
+        } else {
+          waitFor(opening);
+          opening = null;
+        }
+      }
+
+      if (opening != null) {
+        return open(indexDir, rotated, version, segmentsModified, opening);
+      }
+    }
+  }
+
+  /**
+   * Returns the cached searcher on {@code indexDir} if it is still current,
+   * evicting it otherwise. Must be called holding the cache.
+   *
+   * @param indexDir
+   *          The index directory path.
+   * @param rotated
+   *          True if the index belongs to a rotated, read-only generation.
+   * @param version
+   *          The current version of the index.
+   * @param segmentsModified
+   *          The last modification time of the segments file.
+   *
+   * @return the {@link CachedSearcher}, null if it needs to be opened.
+   */
+  private CachedSearcher lookup(String indexDir, boolean rotated,
+      long version, long segmentsModified) {
+    CachedSearcher cached = (CachedSearcher) searchers.get(indexDir);
+    if (cached == null || cached.evicted) {
+      return null;
+    }
+
+    boolean stale;
+    if (rotated) {
+      stale = cached.segmentsModified != segmentsModified;
+    } else {
+      stale = cached.version != version;
+    }
+    if (stale) {
+      evict(cached);
+
+      return null;
+    }
+
+    return cached;
+  }
+
+  /**
+   * Waits for another request to open a directory, for the caller to look
+   * it up again. Must be called holding the cache, which is released while
+   * waiting.
+   *
+   * @param opening
+   *          The {@link Opening} of the other request.
+   *
+   * @throws IOException
+   *           If interrupted while waiting.
+   */
+  private void waitFor(Opening opening) throws IOException {
+    while (!opening.done) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while opening index");
+      }
+    }
+  }
+
+  /**
+   * Opens a searcher on {@code indexDir} outside of the cache lock and puts
+   * it in the cache, unless the directory was evicted in the meantime.
+   *
+   * @param indexDir
+   *          The index directory path.
+   * @param rotated
+   *          True if the index belongs to a rotated, read-only generation.
+   * @param version
+   *          The current version of the live index, ignored for rotated ones.
+   * @param segmentsModified
+   *          The last modification time of the segments file.
+   * @param opening
+   *          The {@link Opening} registered for the directory.
+   *
+   * @return the {@link CachedSearcher}, referenced once.
+   *
+   * @throws IOException
+   *           If the index cannot be opened.
+   */
+  private CachedSearcher open(String indexDir, boolean rotated, long version,
+      long segmentsModified, Opening opening) throws IOException {
+    CachedSearcher cached = null;
+    try {
+      long openedVersion = rotated ? IndexReader.getCurrentVersion(indexDir)
+          : version;
+      cached = new CachedSearcher(indexDir, IndexReader.open(indexDir),
+          openedVersion, segmentsModified);
+      if (opening.previous != null && !rotated) {
+        // The live index only grows, so its offsets can be extended
+        cached.previousOffsetTable = opening.previous.getLoadedOffsetTable();
+      }
+    } finally {
+      synchronized (this) {
+        openings.remove(indexDir);
+        if (cached != null) {
+          cached.refCount++;
+          if (opening.evicted) {
+            // Only serves the request that opened it
+            cached.evicted = true;
+          } else {
+            searchers.put(indexDir, cached);
+          }
+        }
+        opening.done = true;
+        notifyAll();
+      }
+    }
+
+    return cached;
+  }
+
+  /**
+   * Hands a searcher back to the cache, closing it if it was evicted while in
+   * use.
+   *
+   * @param cached
+   *          The {@link CachedSearcher} obtained from
+   *          {@link #acquire(String, boolean)}.
+   */
+  synchronized void release(CachedSearcher cached) {
+    cached.refCount--;
+    closeIfUnused(cached);
+  }
+
+  /**
+   * Drops every cached searcher. Used when the logs roll over, since the
+   * directory names then point at different generations.
+   */
+  synchronized void evictAll() {
+    Object[] cached = searchers.values().toArray();
+    for (int i = 0; i < cached.length; i++) {
+      evict((CachedSearcher) cached[i]);
+    }
+
+    for (Iterator iterator = openings.values().iterator(); iterator.hasNext();) {
+      ((Opening) iterator.next()).evicted = true;
+    }
+  }
+
+  /**
+   * Drops the cached searcher of an index directory, if any, since its
+   * generation is about to be expired.
+   *
+   * @param indexDir
+   *          The index directory path.
+   */
+  synchronized void evict(String indexDir) {
+    CachedSearcher cached = (CachedSearcher) searchers.get(indexDir);
+    if (cached != null) {
+      evict(cached);
+    }
+
+    Opening opening = (Opening) openings.get(indexDir);
+    if (opening != null) {
+      opening.evicted = true;
+    }
+  }
+
+  /**
+   * Removes a searcher from the cache.
+   *
+   * @param cached
+   *          The {@link CachedSearcher} to remove.
+   */
+  private void evict(CachedSearcher cached) {
+    if (searchers.get(cached.indexDir) == cached) {
+      searchers.remove(cached.indexDir);
+    }
+    cached.evicted = true;
+    closeIfUnused(cached);
+  }
+
+  /**
+   * Closes an evicted searcher nobody is using anymore.
+   *
+   * @param cached
+   *          The {@link CachedSearcher} to close.
+   */
+  private void closeIfUnused(CachedSearcher cached) {
+    if (cached.evicted && cached.refCount == 0) {
+      try {
+        cached.searcher.close();
+        cached.reader.close();
+      } catch (IOException e) {
+        LogLog.warn("Could not close searcher on " + cached.indexDir, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,423 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Streams log fragments from a log file to the search response.
+ * <p>
+ * Fragments are sorted by offset and adjacent or overlapping ones are
+ * coalesced, then their bytes go straight from the log file to the response,
+ * sliced from its {@link MappedLogCache} mapping or transferred from its
+ * {@link FileChannel}. They are only decoded when the response is requested
+ * in a character set other than the log's.
+ * <p>
+ * The response stream is expected to be buffered. It is flushed once
+ * {@link #flushBytes} were written since the last flush, and whenever the
+ * servlet calls {@link #flush()}, e.g. after every generation, rather than
+ * after every fragment.
+ */
+final class LogFragmentWriter {
+
+  /**
+   * The size of the buffers used when transcoding.
+   */
+  private static final int BUFFER_SIZE = 4096;
+
+  /**
+   * Printed before a fragment whose end is unknown.
+   */
+  private static final String LAST_RECORD_MESSAGE =
+      "This is the last record of the log file so printing until EOF";
+
+  /**
+   * The response stream.
+   */
+  private final OutputStream out;
+
+  /**
+   * {@link #out} as a channel.
+   */
+  private final WritableByteChannel outChannel;
+
+  /**
+   * The character set of the log files.
+   */
+  private final Charset logCharset;
+
+  /**
+   * The character set of the response.
+   */
+  private final String responseCharset;
+
+  /**
+   * True if fragments must be decoded and encoded in
+   * {@link #responseCharset}.
+   */
+  private final boolean transcode;
+
+  /**
+   * The writer used to transcode fragments, created on first use.
+   */
+  private Writer transcoder;
+
+  /**
+   * The amount of bytes written to the response.
+   */
+  private long bytesWritten;
+
+  /**
+   * The amount of bytes written between two flushes, 0 to only flush on
+   * demand.
+   */
+  private final int flushBytes;
+
+  /**
+   * {@link #bytesWritten} as of the last flush.
+   */
+  private long flushedBytes;
+
+  /**
+   * The mapped log files, or null to read them through a channel.
+   */
+  private final MappedLogCache mappedLogs;
+
+  /**
+   * A {@link LogSource} reading through a {@link FileChannel}.
+   */
+  static final class ChannelLogSource implements LogSource {
+
+    /**
+     * The log file channel.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Creates a ChannelLogSource.
+     *
+     * @param channel
+     *          The log file channel.
+     */
+    ChannelLogSource(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long size() throws IOException {
+      return channel.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+      return channel.read(dst, position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long transferTo(long position, long count,
+        WritableByteChannel target) throws IOException {
+      return channel.transferTo(position, count, target);
+    }
+  }
+
+  /**
+   * Creates a LogFragmentWriter.
+   *
+   * @param out
+   *          The response stream.
+   * @param logCharset
+   *          The character set of the log files.
+   * @param responseCharset
+   *          The character set of the response.
+   * @param mappedLogs
+   *          The mapped log files, or null to read them through a channel.
+   * @param flushBytes
+   *          The amount of bytes written between two flushes, 0 to only flush
+   *          on demand.
+   */
+  LogFragmentWriter(OutputStream out, String logCharset,
+      String responseCharset, MappedLogCache mappedLogs, int flushBytes) {
+    this.out = new FilterOutputStream(out) {
+
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesWritten++;
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesWritten += len;
+      }
+    };
+    // Through the counting stream, so fragments count towards flushBytes
+    this.outChannel = Channels.newChannel(this.out);
+    this.logCharset = Charset.forName(logCharset);
+    this.responseCharset = responseCharset;
+    this.transcode = !this.logCharset.equals(Charset.forName(responseCharset));
+    this.mappedLogs = mappedLogs;
+    this.flushBytes = flushBytes;
+  }
+
+  /**
+   * Prints a message in the response character set.
+   *
+   * @param message
+   *          The message.
+   *
+   * @throws IOException
+   *           If the response cannot be written.
+   */
+  void print(String message) throws IOException {
+    out.write(message.getBytes(responseCharset));
+  }
+
+  /**
+   * Prints a message followed by a line separator.
+   *
+   * @param message
+   *          The message.
+   *
+   * @throws IOException
+   *           If the response cannot be written.
+   */
+  void println(String message) throws IOException {
+    print(message + System.getProperty("line.separator"));
+  }
+
+  /**
+   * Flushes the response.
+   *
+   * @throws IOException
+   *           If the response cannot be written.
+   */
+  void flush() throws IOException {
+    out.flush();
+    flushedBytes = bytesWritten;
+  }
+
+  /**
+   * Flushes the response if {@link #flushBytes} were written since the last
+   * flush.
+   *
+   * @throws IOException
+   *           If the response cannot be written.
+   */
+  private void flushIfDue() throws IOException {
+    if (flushBytes > 0 && bytesWritten - flushedBytes >= flushBytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes what is left of the response and closes it.
+   *
+   * @throws IOException
+   *           If the response cannot be written.
+   */
+  void close() throws IOException {
+    if (transcoder != null) {
+      transcoder.flush();
+    }
+    out.close();
+  }
+
+  /**
+   * Returns the amount of bytes written to the response so far.
+   *
+   * @return the byte count.
+   */
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Writes log fragments. The arrays are sorted in place.
+   *
+   * @param log
+   *          The log file.
+   * @param starts
+   *          The start offsets of the fragments.
+   * @param ends
+   *          The end offsets of the fragments, {@link OffsetTable#UNKNOWN}
+   *          to print until end of file.
+   * @param count
+   *          The amount of fragments.
+   *
+   * @throws IOException
+   *           If the log file cannot be read or the response written.
+   */
+  void writeFragments(File log, long[] starts, long[] ends, int count)
+      throws IOException {
+    if (mappedLogs != null) {
+      writeFragments(mappedLogs.get(log), starts, ends, count);
+
+      return;
+    }
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(log, "r");
+    try {
+      writeFragments(new ChannelLogSource(randomAccessFile.getChannel()),
+          starts, ends, count);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Writes log fragments of an opened log file. The arrays are sorted in
+   * place.
+   *
+   * @param source
+   *          The log file.
+   * @param starts
+   *          The start offsets of the fragments.
+   * @param ends
+   *          The end offsets of the fragments, {@link OffsetTable#UNKNOWN}
+   *          to print until end of file.
+   * @param count
+   *          The amount of fragments.
+   *
+   * @throws IOException
+   *           If the log file cannot be read or the response written.
+   */
+  void writeFragments(LogSource source, long[] starts, long[] ends, int count)
+      throws IOException {
+    // Log statements never overlap, so sorting starts and ends separately
+    // keeps them paired. Unknown ends belong to the last statement.
+    for (int i = 0; i < count; i++) {
+      if (ends[i] == OffsetTable.UNKNOWN) {
+        ends[i] = Long.MAX_VALUE;
+      }
+    }
+    Arrays.sort(starts, 0, count);
+    Arrays.sort(ends, 0, count);
+
+    int i = 0;
+    while (i < count) {
+      long start = starts[i];
+      long end = ends[i];
+
+      // Coalesce adjacent and overlapping fragments, except the last record
+      // which is announced separately
+      while (++i < count && starts[i] <= end && ends[i] != Long.MAX_VALUE) {
+        end = Math.max(end, ends[i]);
+      }
+
+      if (end == Long.MAX_VALUE) {
+        // Set the offset to the EOF. It will print unmatched log statements
+        // but we can live with that (Just state that it's the last record)
+        println(LAST_RECORD_MESSAGE);
+        end = source.size();
+      }
+
+      writeFragment(source, start, end - start);
+      flushIfDue();
+    }
+  }
+
+  /**
+   * Writes a fragment of the log file.
+   *
+   * @param source
+   *          The log file.
+   * @param position
+   *          Where the fragment starts.
+   * @param length
+   *          The fragment length in bytes.
+   *
+   * @throws IOException
+   *           If the log file cannot be read or the response written.
+   */
+  private void writeFragment(LogSource source, long position, long length)
+      throws IOException {
+    if (transcode) {
+      transcodeFragment(source, position, length);
+
+      return;
+    }
+
+    long transferred = 0;
+    while (transferred < length) {
+      long count = source.transferTo(position + transferred, length
+          - transferred, outChannel);
+      if (count <= 0) {
+        // Can't read more bytes. Exit
+        break;
+      }
+      transferred += count;
+    }
+  }
+
+  /**
+   * Writes a fragment of the log file in the response character set.
+   *
+   * @param source
+   *          The log file.
+   * @param position
+   *          Where the fragment starts.
+   * @param length
+   *          The fragment length in bytes.
+   *
+   * @throws IOException
+   *           If the log file cannot be read or the response written.
+   */
+  private void transcodeFragment(LogSource source, long position,
+      long length) throws IOException {
+    if (transcoder == null) {
+      transcoder = new OutputStreamWriter(out, responseCharset);
+    }
+
+    CharsetDecoder decoder = logCharset.newDecoder().onMalformedInput(
+        CodingErrorAction.REPLACE).onUnmappableCharacter(
+        CodingErrorAction.REPLACE);
+    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    long remaining = length;
+    while (remaining > 0 || bytes.position() > 0) {
+      if (remaining > 0 && bytes.hasRemaining()) {
+        bytes.limit(bytes.position()
+            + (int) Math.min(bytes.remaining(), remaining));
+        int read = source.read(bytes, position + length - remaining);
+        bytes.limit(bytes.capacity());
+        if (read < 0) {
+          remaining = 0;
+        } else {
+          remaining -= read;
+        }
+      }
+
+      bytes.flip();
+      decoder.decode(bytes, chars, remaining == 0);
+      bytes.compact();
+
+      chars.flip();
+      transcoder.write(chars.array(), 0, chars.limit());
+      chars.clear();
+    }
+
+    decoder.flush(chars);
+    chars.flip();
+    transcoder.write(chars.array(), 0, chars.limit());
+    transcoder.flush();
+  }
+}
@@ -0,0 +1,361 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+
+/**
+ * Locates the generations of a log: the live one at position 0 and the
+ * rotated ones at positions 1 to <code>maxBackupIndex</code>, which shift on
+ * every rollover.
+ * <p>
+ * A generation is told apart by the identifier in its
+ * {@link GenerationManifest}, so a request can find it again after it has
+ * been renamed. Opening a generation is only trusted if no rollover of this
+ * JVM overlapped it, since the index directory and the log file are not
+ * renamed at the same time.
+ * <p>
+ * When the appender rolls over in sequence mode the generations are listed
+ * by its {@link SequenceManifest} instead, and keep their names for good.
+ * The list is read again on {@link #refresh()}.
+ */
+final class LogGenerations {
+
+  /**
+   * How long to wait for a rollover in progress, in milliseconds.
+   */
+  private static final long ROLL_OVER_WAIT = 1;
+
+  /**
+   * The index directory path of the live generation.
+   */
+  private final String indexDir;
+
+  /**
+   * The log file path of the live generation.
+   */
+  private final String logFile;
+
+  /**
+   * The position of the oldest generation.
+   */
+  private final int maxBackupIndex;
+
+  /**
+   * The searchers shared by all requests.
+   */
+  private final IndexSearcherCache searcherCache;
+
+  /**
+   * The mapped log files shared by all requests, or null if not mapping.
+   */
+  private final MappedLogCache mappedLogs;
+
+  /**
+   * The inflated blocks of compressed log files shared by all requests.
+   */
+  private final BlockCache blockCache;
+
+  /**
+   * The sequence numbers of the generations as of the last
+   * {@link #refresh()}, the live one first, or null if the log is not rolled
+   * over in sequence mode.
+   */
+  private volatile long[] sequences;
+
+  /**
+   * The sequence numbers below this one were dropped from the caches by
+   * {@link #evictExpiring()}, 0 if none yet. Guarded by this.
+   */
+  private long evictedBelow;
+
+  /**
+   * Creates a LogGenerations.
+   *
+   * @param indexDir
+   *          The index directory path of the live generation.
+   * @param logFile
+   *          The log file path of the live generation.
+   * @param maxBackupIndex
+   *          The position of the oldest generation.
+   * @param searcherCache
+   *          The searchers shared by all requests.
+   * @param mappedLogs
+   *          The mapped log files shared by all requests, or null if not
+   *          mapping.
+   * @param blockCache
+   *          The inflated blocks of compressed log files shared by all
+   *          requests.
+   */
+  LogGenerations(String indexDir, String logFile, int maxBackupIndex,
+      IndexSearcherCache searcherCache, MappedLogCache mappedLogs,
+      BlockCache blockCache) {
+    this.indexDir = indexDir;
+    this.logFile = logFile;
+    this.maxBackupIndex = maxBackupIndex;
+    this.searcherCache = searcherCache;
+    this.mappedLogs = mappedLogs;
+    this.blockCache = blockCache;
+    refresh();
+  }
+
+  /**
+   * Reads the {@link SequenceManifest} again, if any, to pick up the
+   * generations created and expired since. Positions may change.
+   */
+  void refresh() {
+    SequenceManifest sequenceManifest = SequenceManifest.read(logFile);
+    sequences = sequenceManifest == null ? null : sequenceManifest
+        .getSequences();
+  }
+
+  /**
+   * Drops from the caches what they hold of the generations a rollover is
+   * about to expire, plus those expired since the last call. In sequence mode
+   * the other generations keep their names, so their searchers, mappings and
+   * blocks stay cached.
+   *
+   * @return false if the log is not rolled over in sequence mode, in which
+   *         case every name is about to point at another generation and the
+   *         caches must be emptied instead.
+   */
+  synchronized boolean evictExpiring() {
+    refresh();
+    long[] current = sequences;
+    if (current == null) {
+      return false;
+    }
+
+    // The oldest generation goes once the rollover makes one too many
+    long oldest = current[current.length - 1];
+    long expiring = current.length > maxBackupIndex ? oldest : oldest - 1;
+    for (long sequence = evictedBelow == 0 ? oldest : evictedBelow;
+        sequence <= expiring; sequence++) {
+      String suffix = SequenceManifest.getSuffix(sequence);
+      File log = new File(logFile + suffix);
+      searcherCache.evict(indexDir + suffix);
+      if (mappedLogs != null) {
+        mappedLogs.evict(log);
+      }
+      blockCache.evict(BlockCompressedLog.getCompressedFile(log));
+    }
+    evictedBelow = Math.max(evictedBelow, expiring + 1);
+
+    return true;
+  }
+
+  /**
+   * Returns the amount of generation positions.
+   *
+   * @return the position of the oldest generation plus one.
+   */
+  int getCount() {
+    long[] current = sequences;
+
+    return current == null ? maxBackupIndex + 1 : current.length;
+  }
+
+  /**
+   * Returns the suffix of the names of a generation.
+   *
+   * @param position
+   *          The position of the generation.
+   * @param generationId
+   *          The identifier of the generation, 0 if unknown. In sequence mode
+   *          it names the generation wherever the position has moved to.
+   *
+   * @return the suffix, empty for the live generation in rename mode, or null
+   *         if there is no such position.
+   */
+  private String getSuffix(int position, long generationId) {
+    long[] current = sequences;
+    if (current != null) {
+      if (generationId != 0) {
+        return SequenceManifest.getSuffix(generationId);
+      }
+
+      return position < current.length ? SequenceManifest
+          .getSuffix(current[position]) : null;
+    }
+
+    return position == 0 ? "" : "." + position;
+  }
+
+  /**
+   * Returns the index directory path of a generation.
+   *
+   * @param position
+   *          The position of the generation.
+   *
+   * @return the index directory path.
+   */
+  String getIndexDir(int position) {
+    return getIndexDir(position, 0);
+  }
+
+  /**
+   * Returns the index directory path of a generation located by
+   * {@link #locate(int, long)}.
+   *
+   * @param position
+   *          The position of the generation.
+   * @param generationId
+   *          The identifier of the generation, 0 if unknown.
+   *
+   * @return the index directory path.
+   */
+  String getIndexDir(int position, long generationId) {
+    return indexDir + getSuffix(position, generationId);
+  }
+
+  /**
+   * Returns the log file of a generation located by
+   * {@link #locate(int, long)}.
+   *
+   * @param position
+   *          The position of the generation.
+   * @param generationId
+   *          The identifier of the generation, 0 if unknown.
+   *
+   * @return the log file.
+   */
+  File getLog(int position, long generationId) {
+    return new File(logFile + getSuffix(position, generationId));
+  }
+
+  /**
+   * Tells whether both the index and the log of a generation exist.
+   *
+   * @param position
+   *          The position of the generation.
+   *
+   * @return true if the generation can be searched.
+   */
+  boolean exists(int position) {
+    return getSuffix(position, 0) != null
+        && new File(getIndexDir(position)).exists()
+        && logExists(getLog(position, 0));
+  }
+
+  /**
+   * Tells whether a log file exists, compressed or not.
+   *
+   * @param log
+   *          The uncompressed log file.
+   *
+   * @return true if either file exists.
+   */
+  private static boolean logExists(File log) {
+    return log.exists() || BlockCompressedLog.getCompressedFile(log).exists();
+  }
+
+  /**
+   * Reads the manifest of a generation.
+   *
+   * @param position
+   *          The position of the generation.
+   *
+   * @return the manifest, or null if missing.
+   */
+  GenerationManifest readManifest(int position) {
+    return GenerationManifest.read(new File(getIndexDir(position)));
+  }
+
+  /**
+   * Finds where a generation is now.
+   *
+   * @param position
+   *          Where the generation was. Rollovers only move it further.
+   * @param generationId
+   *          The identifier of the generation, 0 if unknown in which case it
+   *          is assumed to have stayed.
+   *
+   * @return the current position, -1 if the generation is gone.
+   */
+  int locate(int position, long generationId) {
+    if (generationId == 0) {
+      return exists(position) ? position : -1;
+    }
+
+    long[] current = sequences;
+    if (current != null) {
+      // The identifier is the sequence number, which never changes names
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == generationId) {
+          return new File(getIndexDir(i, generationId)).exists()
+              && logExists(getLog(i, generationId)) ? i : -1;
+        }
+      }
+
+      return -1;
+    }
+
+    for (int i = position; i <= maxBackupIndex; i++) {
+      GenerationManifest manifest = readManifest(i);
+      if (manifest != null && manifest.getGenerationId() == generationId) {
+        return exists(i) ? i : -1;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Waits until no rollover of this JVM is in progress. Pass the result to
+   * {@link #isStable(long)} once done with the generations.
+   *
+   * @return the amount of rollovers started so far.
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting.
+   */
+  static long awaitRollOver() throws InterruptedException {
+    while (true) {
+      long finished = FilePosTrackingRollingFileAppender.getRollOversFinished();
+      long started = FilePosTrackingRollingFileAppender.getRollOversStarted();
+      if (started == finished) {
+        return started;
+      }
+
+      Thread.sleep(ROLL_OVER_WAIT);
+    }
+  }
+
+  /**
+   * Tells whether no rollover started since {@link #awaitRollOver()}.
+   *
+   * @param started
+   *          The amount returned by {@link #awaitRollOver()}.
+   *
+   * @return true if the generations did not move in between.
+   */
+  static boolean isStable(long started) {
+    return started == FilePosTrackingRollingFileAppender.getRollOversStarted();
+  }
+
+  /**
+   * Returns the searchers shared by all requests.
+   *
+   * @return the {@link IndexSearcherCache}.
+   */
+  IndexSearcherCache getSearcherCache() {
+    return searcherCache;
+  }
+
+  /**
+   * Returns the mapped log files shared by all requests.
+   *
+   * @return the {@link MappedLogCache}, or null if not mapping.
+   */
+  MappedLogCache getMappedLogs() {
+    return mappedLogs;
+  }
+
+  /**
+   * Returns the inflated blocks of compressed log files shared by all
+   * requests.
+   *
+   * @return the {@link BlockCache}.
+   */
+  BlockCache getBlockCache() {
+    return blockCache;
+  }
+}
@@ -0,0 +1,57 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The bytes of a log file, as read by {@link LogFragmentWriter}.
+ */
+interface LogSource {
+
+  /**
+   * Returns the amount of bytes readable.
+   *
+   * @return the size in bytes.
+   *
+   * @throws IOException
+   *           If the log file cannot be read.
+   */
+  long size() throws IOException;
+
+  /**
+   * Reads bytes into a buffer, like
+   * {@link java.nio.channels.FileChannel#read(ByteBuffer, long)}.
+   *
+   * @param dst
+   *          The buffer to fill.
+   * @param position
+   *          Where to start reading.
+   *
+   * @return the amount of bytes read, -1 at end of file.
+   *
+   * @throws IOException
+   *           If the log file cannot be read.
+   */
+  int read(ByteBuffer dst, long position) throws IOException;
+
+  /**
+   * Writes bytes to a channel, like
+   * {@link java.nio.channels.FileChannel#transferTo(long, long,
+   * WritableByteChannel)}.
+   *
+   * @param position
+   *          Where to start reading.
+   * @param count
+   *          The most bytes to write.
+   * @param target
+   *          The channel to write to.
+   *
+   * @return the amount of bytes written.
+   *
+   * @throws IOException
+   *           If the log file cannot be read or the channel written.
+   */
+  long transferTo(long position, long count, WritableByteChannel target)
+      throws IOException;
+}
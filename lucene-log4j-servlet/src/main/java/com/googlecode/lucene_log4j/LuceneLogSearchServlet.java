@@ -1,13 +1,25 @@
 package com.googlecode.lucene_log4j;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -15,16 +27,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.lucene.analysis.WhitespaceAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.Hits;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.Sort;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.log4j.Logger;
 
 import com.googlecode.lucene_log4j.FilePosTrackingRollingFileAppender;
 import com.googlecode.lucene_log4j.RollOverListener;
@@ -47,9 +50,65 @@ import com.googlecode.lucene_log4j.RollOverListener;
  * <li>logFile: The log file name</li>
  * <li>maxBackupIndex: The amount of log history to keep. It appends a ".1",
  * ".2" ... ".&lt;maxBackupIndex&gt;" to {@code logFile} and to {@code
- * luceneDir}</li>
- * <li>charset: The character encoding to use for reading/writing logs</li>
+ * luceneDir}. Ignored when the appender rolls over in sequence mode, whose
+ * generations are listed next to {@code logFile} instead</li>
+ * <li>charset: The character encoding to use for reading/writing logs.
+ * Defaults to UTF-8, also used when the JVM does not support it</li>
+ * <li>searchThreads: The amount of threads searching generations, shared by
+ * all requests. Defaults to the amount of processors</li>
+ * <li>searchConcurrency: The amount of generations a single request searches
+ * at the same time. Defaults to {@code searchThreads}</li>
+ * <li>maxLimit: The most log statements a single request prints, also the
+ * default for the {@code limit} request parameter. Unlimited if not set</li>
+ * <li>slowQueryThreshold: Searches taking longer than this many milliseconds
+ * are logged with their timings. Off if not set</li>
+ * <li>mapLogFiles: If true then log files are memory mapped once and kept
+ * mapped across requests. Defaults to true, except on Windows where mapped
+ * files cannot be renamed on rollover</li>
+ * <li>blockCacheSize: The amount of inflated blocks of compressed log files
+ * kept across requests. Defaults to 32</li>
+ * <li>compressResponse: If true then the response is gzip or deflate
+ * compressed when the client accepts it, except in debug mode. A compressed
+ * response reaches the client as the compressor fills its blocks rather than
+ * after every generation. Defaults to true</li>
+ * <li>responseBufferSize: The amount of bytes buffered before they are
+ * written to the response. Defaults to 32768</li>
+ * <li>flushBytes: The response is flushed after this many bytes, besides
+ * after every generation. Defaults to 131072, 0 to only flush after every
+ * generation</li>
+ * <li>maxIndexLag: A search flushes the indexes of the appenders in this JVM
+ * last flushed more than this many milliseconds ago, so it finds recent log
+ * statements. Defaults to 1000, 0 to flush on every search, negative to leave
+ * flushing to the appenders</li>
  * </ul>
+ * <p>
+ * Search timings are exposed over JMX as {@link SearchMetricsMBean} under the
+ * servlet name.
+ * <p>
+ * Accepted request parameters:<br>
+ * <ul>
+ * <li>query: The lucene query</li>
+ * <li>debug: If true then print which file each result belongs to, and the
+ * search timings at the end</li>
+ * <li>order: "newest" (default) prints the newest generation first,
+ * "chronological" prints the oldest generation first</li>
+ * <li>from, to: Only print log statements logged within this time window,
+ * both inclusive and optional. Either milliseconds since epoch or a duration
+ * before now such as "-5m" (units: s, m, h, d)</li>
+ * <li>limit: The most log statements to print. When reached, the output ends
+ * with a {@code cursor} to fetch the next ones with</li>
+ * <li>offset: The amount of log statements to skip before printing</li>
+ * <li>cursor: Resumes right after the last log statement printed by a
+ * previous request, as "&lt;generation&gt;.&lt;document&gt;". The generation
+ * is "g" followed by its identifier, which survives rollovers, or its
+ * position for generations written before identifiers existed</li>
+ * <li>charset: The character encoding of the response. Defaults to the log
+ * charset, also used when the JVM does not support it, in which case log
+ * fragments are copied without decoding</li>
+ * </ul>
+ * <p>
+ * A request pins the generations it searches, so rollovers while it runs do
+ * not affect its results.
  * 
  * @author Cheng Lee
  */
@@ -60,6 +119,44 @@ public class LuceneLogSearchServlet extends HttpServlet {
    */
   private static final long serialVersionUID = 8832008349476108670L;
 
+  /**
+   * The default amount of bytes buffered before they are written to the
+   * response.
+   */
+  private static final int DEFAULT_RESPONSE_BUFFER_SIZE = 32 * 1024;
+
+  /**
+   * The default amount of bytes written between two flushes.
+   */
+  private static final int DEFAULT_FLUSH_BYTES = 128 * 1024;
+
+  /**
+   * The default time in milliseconds an index may go without a flush before
+   * a search flushes it.
+   */
+  private static final long DEFAULT_MAX_INDEX_LAG = 1000;
+
+  /**
+   * The gzip content coding.
+   */
+  private static final String GZIP = "gzip";
+
+  /**
+   * The deflate content coding.
+   */
+  private static final String DEFLATE = "deflate";
+
+  /**
+   * The log charset when none or an unsupported one is configured.
+   */
+  private static final String DEFAULT_CHARSET = "UTF-8";
+
+  /**
+   * Logs slow searches.
+   */
+  private static final Logger LOGGER = Logger
+      .getLogger(LuceneLogSearchServlet.class);
+
   /**
    * Lucene index directory name.
    */
@@ -89,224 +186,585 @@ public class LuceneLogSearchServlet extends HttpServlet {
   private String logDir;
 
   /**
-   * Indicates that we have received a
-   * {@link FilePosTrackingRollingFileAppender#rollover} event.
+   * The amount of threads searching generations.
+   */
+  private int searchThreads;
+
+  /**
+   * The amount of generations a single request searches at the same time.
+   */
+  private int searchConcurrency;
+
+  /**
+   * Searches generations for all requests.
+   */
+  private ExecutorService searchExecutor;
+
+  /**
+   * The most log statements a single request prints.
+   */
+  private int maxLimit;
+
+  /**
+   * The searchers shared by all requests.
+   */
+  private final IndexSearcherCache searcherCache = new IndexSearcherCache();
+
+  /**
+   * The mapped log files shared by all requests, or null if not mapping.
+   */
+  private MappedLogCache mappedLogs;
+
+  /**
+   * The inflated blocks of compressed log files shared by all requests.
+   */
+  private BlockCache blockCache;
+
+  /**
+   * The generations of the log.
+   */
+  private LogGenerations generations;
+
+  /**
+   * Keeps the caches in step with rollovers in this JVM.
+   */
+  private RollOverListener rollOverListener;
+
+  /**
+   * Searches taking longer are logged, 0 to log none.
+   */
+  private long slowQueryNanos;
+
+  /**
+   * Whether responses are compressed when the client accepts it.
+   */
+  private boolean compressResponse;
+
+  /**
+   * The amount of bytes buffered before they are written to the response.
+   */
+  private int responseBufferSize;
+
+  /**
+   * The amount of bytes written between two flushes, 0 to only flush after
+   * every generation.
+   */
+  private int flushBytes;
+
+  /**
+   * How long an index of an appender in this JVM may go without a flush
+   * before a search flushes it, in milliseconds. Negative to never flush.
    */
-  private static boolean isRolledOver;
+  private long maxIndexLag;
 
   /**
-   * The default buffer size used.
+   * The search timings of all requests.
    */
-  private static final int BUFFER_SIZE = 4096;
+  private final SearchMetrics metrics = new SearchMetrics();
 
   /**
    * {@inheritDoc}
    */
   protected void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
-    // Signal flush to the appender in this JVM to flush index to disk
-    // FilePosTrackingRollingFileAppender.signalFlush();
-
-    resp.addHeader("Content-Type", "text/plain");
-
-    String luceneQuery = req.getParameter("query");
-    boolean isDebug = Boolean.valueOf(req.getParameter("debug")).booleanValue();
-
-    // Kick off searches
-    for (int i = 0; i <= maxBackupIndex; i++) {
-      // Determine index dir and log file names
-      String indexDir = logDir + File.separatorChar + luceneDir;
-      String currentLogFile = logDir + File.separatorChar + logFile;
-      if (i != 0) {
-        indexDir += "." + i;
-        currentLogFile += "." + i;
-      }
+    String responseCharset = req.getParameter("charset");
+    if (!isSupported(responseCharset)) {
+      // Never names an unknown charset in the Content-Type
+      responseCharset = charset;
+    }
 
-      // Validate that index and log exist
-      boolean indexDirExists = new File(indexDir).exists();
-      boolean logFileExists = new File(currentLogFile).exists();
+    resp.addHeader("Content-Type", "text/plain; charset=" + responseCharset);
+    LogFragmentWriter writer = new LogFragmentWriter(openResponse(req, resp),
+        charset, responseCharset, mappedLogs, flushBytes);
+    try {
+      search(req, resp, writer);
+    } finally {
+      // Writes what is buffered, and the compression trailer
+      writer.close();
+    }
+  }
 
-      // Open lucene index
-      if (indexDirExists && logFileExists) {
-        Directory directory = FSDirectory.getDirectory(indexDir, false);
-        doSearch(resp, directory, luceneQuery, currentLogFile, isDebug);
+  /**
+   * Opens the response stream, compressed with the content coding the client
+   * prefers, and buffered.
+   *
+   * @param req
+   *          The request.
+   * @param resp
+   *          The response.
+   *
+   * @return the stream to write the response to, closed once written.
+   *
+   * @throws IOException
+   *           If the response stream cannot be opened.
+   */
+  private OutputStream openResponse(HttpServletRequest req,
+      HttpServletResponse resp) throws IOException {
+    OutputStream out = resp.getOutputStream();
+    // Debug output is watched as it is written, which the compressor delays
+    // until it fills a block: Java 5 deflaters cannot sync flush
+    if (compressResponse
+        && !Boolean.valueOf(req.getParameter("debug")).booleanValue()) {
+      resp.addHeader("Vary", "Accept-Encoding");
+      String encoding = negotiateEncoding(req.getHeader("Accept-Encoding"));
+      if (GZIP.equals(encoding)) {
+        resp.setHeader("Content-Encoding", GZIP);
+        out = new GZIPOutputStream(out, responseBufferSize);
+      } else if (DEFLATE.equals(encoding)) {
+        resp.setHeader("Content-Encoding", DEFLATE);
+        final Deflater deflater = new Deflater();
+        out = new DeflaterOutputStream(out, deflater, responseBufferSize) {
+
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              // Not ended by the stream, since it did not create it
+              deflater.end();
+            }
+          }
+        };
       }
+    }
 
-      // Abort if received roll over event
-      if (isRolledOver) {
-        PrintWriter writer = resp.getWriter();
-        for (int j = 0; j < 10; j++) {
-          writer.println("***************************");
-        }
-        writer.print("WARNING: log file has been rolled over!"
-            + " Don't trust on the search results and re-run the quey");
-        writer.flush();
+    return new BufferedOutputStream(out, responseBufferSize);
+  }
 
-        isRolledOver = false;
+  /**
+   * Tells whether the JVM supports a character set.
+   *
+   * @param name
+   *          The character set name, null if not set.
+   *
+   * @return false if not set, unsupported or not a legal name.
+   */
+  private static boolean isSupported(String name) {
+    try {
+      return name != null && Charset.isSupported(name);
+    } catch (IllegalCharsetNameException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Picks the content coding of the response from the Accept-Encoding
+   * request header: gzip if acceptable, else deflate, else none.
+   *
+   * @param acceptEncoding
+   *          The Accept-Encoding header, null if missing.
+   *
+   * @return {@link #GZIP}, {@link #DEFLATE} or null for no compression.
+   */
+  static String negotiateEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+
+    // Codings are acceptable when listed, or matched by "*", without q=0
+    int gzip = -1;
+    int deflate = -1;
+    int any = -1;
+    StringTokenizer codings = new StringTokenizer(acceptEncoding, ",");
+    while (codings.hasMoreTokens()) {
+      String coding = codings.nextToken().trim();
+      int accepted = 1;
+      int separator = coding.indexOf(';');
+      if (separator >= 0) {
+        String parameter = coding.substring(separator + 1).trim();
+        coding = coding.substring(0, separator).trim();
+        if (parameter.startsWith("q=") && isZero(parameter.substring(2))) {
+          accepted = 0;
+        }
+      }
 
-        break;
+      if (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+        gzip = accepted;
+      } else if (DEFLATE.equalsIgnoreCase(coding)) {
+        deflate = accepted;
+      } else if ("*".equals(coding)) {
+        any = accepted;
       }
     }
+
+    if (gzip > 0 || (gzip < 0 && any > 0)) {
+      return GZIP;
+    } else if (deflate > 0 || (deflate < 0 && any > 0)) {
+      return DEFLATE;
+    }
+
+    return null;
   }
 
   /**
-   * Search the lucene index.
-   * 
+   * Tells whether a quality value is zero, i.e. the coding is not
+   * acceptable.
+   *
+   * @param quality
+   *          The quality value, e.g. "0.5".
+   *
+   * @return true if zero or malformed.
+   */
+  private static boolean isZero(String quality) {
+    try {
+      return Double.parseDouble(quality.trim()) <= 0;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Searches the generations and prints the matching log statements.
+   *
+   * @param req
+   *          The request.
    * @param resp
-   *          The {@link HttpServletResponse} to write the response to.
-   * @param directory
-   *          The lucene index dir.
-   * @param luceneQuery
-   *          The lucene query.
-   * @param logFile
-   *          The log file from which we want to extract fragments.
-   * @param isDebug
-   *          If true then also print header/footer indicating which file the
-   *          result belongs.
-   * 
+   *          The response.
+   * @param writer
+   *          Writes the response.
+   *
+   * @throws ServletException
+   *           If interrupted while searching.
    * @throws IOException
-   *           If any file operation exceptin occurs during searching/retrieving
-   *           log file fragments.
-   * @throws FileNotFoundException
-   *           If the log file cannot be found.
-   * @throws UnsupportedEncodingException
-   *           If the encoding specified at {@link #charset} turns out to be not
-   *           supported.
+   *           If a generation cannot be searched or the response written.
    */
-  private void doSearch(HttpServletResponse resp, Directory directory,
-      String luceneQuery, String logFile, boolean isDebug) throws IOException,
-      FileNotFoundException, UnsupportedEncodingException {
-    // Create index searcher
-    IndexSearcher indexSearcher = new IndexSearcher(directory);
-
-    // Open log
-    File log = new File(logFile);
-    RandomAccessFile randomAccessFile = new RandomAccessFile(log, "r");
-    randomAccessFile.getChannel().lock(0, log.length(), true).release();
+  private void search(HttpServletRequest req, HttpServletResponse resp,
+      LogFragmentWriter writer) throws ServletException, IOException {
+    SearchTimings timings = new SearchTimings();
+
+    // Flush the indexes of the appenders in this JVM that lag behind, without
+    // reopening their writers on every request
+    if (maxIndexLag >= 0) {
+      FilePosTrackingRollingFileAppender.signalFlush(maxIndexLag);
+    }
 
-    // Open response writer
-    PrintWriter writer = resp.getWriter();
+    SearchRequest request = SearchRequest.parse(req, resp, writer, maxLimit);
+    if (request == null) {
+      return;
+    }
 
-    // Run the query
-    Hits hits = null;
+    List searches = pinGenerations(request);
     try {
-      QueryParser queryParser = new QueryParser("uuid",
-          new WhitespaceAnalyzer());
-      Query query = queryParser.parse(luceneQuery);
-      hits = indexSearcher.search(query, new Sort("currentTimeMillis"));
-    } catch (RuntimeException e) {
-      if (e.toString().indexOf("java.lang.RuntimeException: no terms in field") != -1) {
-        // This usually means an empty index so search cannot be performed so
-        // just return without writing results
-        return;
-      } else {
-        throw e;
+      printSearches(request, searches, writer, timings);
+    } finally {
+      for (int i = 0; i < searches.size(); i++) {
+        ((GenerationSearch) searches.get(i)).close();
       }
-    } catch (ParseException e) {
-      resp.setStatus(500);
-      writer.print("System unavailable");
-      e.printStackTrace(writer);
 
-      return;
+      timings.finish(writer.getBytesWritten());
+      recordTimings(request.getLuceneQuery(), timings);
     }
 
-    // Print header
-    int hitsLength = hits.length();
-    if (hitsLength > 0 && isDebug) {
-      writer.println();
-      writer.println("****************** Start of File: " + log
-          + " ******************");
-      writer.println();
+    if (request.isDebug()) {
+      writer.println("");
+      writer.println("Search timings: " + timings);
       writer.flush();
     }
+  }
 
-    for (int i = 0; i < hitsLength; i++) {
-      // Obtain start offset
-      long fileOffset = getStartOffset(hits, i);
-
-      // Obtain end offset
-      long nextFileOffset = getEndOffset(indexSearcher, hits.id(i),
-          indexSearcher.maxDoc());
-      boolean lastRecord = false;
-      if (nextFileOffset < 0) {
-        // Set the offset to the EOF. It will print unmatched log statements
-        // but
-        // we can live with that (Just state that it's the last record)
-        nextFileOffset = randomAccessFile.length();
-        lastRecord = true;
+  /**
+   * Determines the generations to search, in output order. They are
+   * identified while no rollover moves them, and pinned by their
+   * {@link GenerationSearch} until closed.
+   *
+   * @param request
+   *          The parsed request.
+   *
+   * @return the {@link GenerationSearch}es, not started yet.
+   *
+   * @throws ServletException
+   *           If interrupted while waiting for a rollover.
+   */
+  private List pinGenerations(SearchRequest request) throws ServletException {
+    List searches = new ArrayList();
+    long started;
+    do {
+      try {
+        started = LogGenerations.awaitRollOver();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ServletException("Interrupted while searching", e);
+      }
+
+      searches.clear();
+      generations.refresh();
+      for (int i = 0; i < generations.getCount(); i++) {
+        GenerationSearch search = createSearch(request, i);
+        if (search == null) {
+          continue;
+        }
+
+        if (request.isChronological()) {
+          searches.add(0, search);
+        } else {
+          searches.add(search);
+        }
       }
+    } while (!LogGenerations.isStable(started));
+
+    return searches;
+  }
+
+  /**
+   * Creates the search of a generation, unless the request rules it out.
+   *
+   * @param request
+   *          The parsed request.
+   * @param position
+   *          The position of the generation, 0 for the live one.
+   *
+   * @return the {@link GenerationSearch}, null if the generation is missing,
+   *         printed before the cursor or outside the time window.
+   */
+  private GenerationSearch createSearch(SearchRequest request, int position) {
+    // Validate that index and log exist
+    if (!generations.exists(position)) {
+      return null;
+    }
+
+    GenerationManifest manifest = generations.readManifest(position);
+    long generationId = manifest == null ? 0 : manifest.getGenerationId();
+
+    // Skip generations printed before the cursor
+    int compared = request.compareToCursor(position, generationId);
+    if (compared < 0) {
+      return null;
+    }
 
-      // Calculate the bytes to read
-      long bytesToRead = nextFileOffset - fileOffset;
+    // Skip generations logged entirely outside the time window, without
+    // opening their index
+    if (request.isOutsideTimeWindow(manifest)) {
+      return null;
+    }
 
-      // Seek to start offset
-      randomAccessFile.seek(fileOffset);
+    return new GenerationSearch(generations, position, generationId, request
+        .getQuery(), request.getFilter(), compared == 0 ? request
+        .getCursorDocId() : -1);
+  }
 
-      // Prepare input/output buffers
-      byte[] bytes = new byte[BUFFER_SIZE];
-      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+  /**
+   * Runs the generation searches and prints the page of hits requested, in
+   * output order.
+   *
+   * @param request
+   *          The parsed request.
+   * @param searches
+   *          The {@link GenerationSearch}es, in output order.
+   * @param writer
+   *          Writes the response.
+   * @param timings
+   *          The timings of the request.
+   *
+   * @throws ServletException
+   *           If interrupted while searching.
+   * @throws IOException
+   *           If a generation cannot be searched or the response written.
+   */
+  private void printSearches(SearchRequest request, List searches,
+      LogFragmentWriter writer, SearchTimings timings)
+      throws ServletException, IOException {
+    int offset = request.getOffset();
+    int limit = request.getLimit();
+
+    // Kick off searches, at most searchConcurrency ahead of the output. No
+    // generation needs more hits than are left to skip and print
+    List futures = new ArrayList();
+    int submitted = 0;
+    while (submitted < searches.size() && submitted < searchConcurrency) {
+      futures.add(submit((GenerationSearch) searches.get(submitted++), offset,
+          limit));
+    }
 
-      // Read log fragment
-      int accumulator = 0;
-      while (accumulator < bytesToRead) {
-        int count = randomAccessFile.read(bytes, 0, BUFFER_SIZE);
-        if (count < 0) {
-          // Can't read more bytes. Exit
-          break;
+    try {
+      for (int i = 0; i < futures.size() && limit > 0; i++) {
+        GenerationSearch search = getResult((Future) futures.get(i));
+        timings.add(search);
+
+        // Skip the offset, then print what is left of the page
+        int first = Math.min(offset, search.getCount());
+        offset -= Math.min(offset, search.getTotalHits());
+        long streamStart = System.nanoTime();
+        int printed = printResults(writer, search, request.isDebug(), first,
+            limit);
+        timings.addStream(System.nanoTime() - streamStart);
+        limit -= printed;
+
+        if (submitted < searches.size() && limit > 0) {
+          futures.add(submit((GenerationSearch) searches.get(submitted++),
+              offset, limit));
         }
 
-        byteArrayOutputStream.write(bytes, 0, count);
-        accumulator += count;
+        // Tell how to get the next page, if there may be one
+        if (limit == 0 && printed > 0) {
+          printCursor(writer, search, first + printed, i + 1 < searches.size());
+        }
       }
-      String logStatement = byteArrayOutputStream.toString(charset);
-      String logContent = logStatement.substring(0, (int) bytesToRead);
-
-      // Write log fragment
-      if (lastRecord) {
-        writer
-            .println("This is the last record of the log file so printing until EOF");
+    } finally {
+      // Searches left behind by the page limit or a failure are not needed
+      // anymore
+      for (int i = 0; i < futures.size(); i++) {
+        ((Future) futures.get(i)).cancel(false);
       }
-      writer.print(logContent);
-      writer.flush();
     }
+  }
 
-    // Print footer
-    if (hitsLength > 0 && isDebug) {
-      writer.println();
-      writer.println("****************** End of File: " + log
-          + " ******************");
-      writer.println();
+  /**
+   * Prints the cursor to fetch the next page with, if there may be one.
+   *
+   * @param writer
+   *          Writes the response.
+   * @param search
+   *          The search whose hits ended the page.
+   * @param end
+   *          The index of the first kept hit not printed.
+   * @param hasNext
+   *          True if generations are searched after this one.
+   *
+   * @throws IOException
+   *           If the response cannot be written.
+   */
+  private void printCursor(LogFragmentWriter writer, GenerationSearch search,
+      int end, boolean hasNext) throws IOException {
+    if (end < search.getTotalHits() || hasNext) {
+      writer.println("Continue from cursor=" + search.getCursorGeneration()
+          + "." + search.getDocIds()[end - 1]);
       writer.flush();
     }
+  }
 
-    // Close log file
-    randomAccessFile.close();
+  /**
+   * Adds the timings of a search to the {@link #metrics} and logs the search
+   * if it was slow.
+   *
+   * @param luceneQuery
+   *          The query string.
+   * @param timings
+   *          The timings of the search.
+   */
+  private void recordTimings(String luceneQuery, SearchTimings timings) {
+    boolean isSlow = slowQueryNanos > 0
+        && timings.getTotalNanos() >= slowQueryNanos;
+    metrics.record(timings, isSlow);
 
-    // Close search index
-    indexSearcher.close();
+    if (isSlow) {
+      LOGGER.warn("Slow log search for \"" + luceneQuery + "\": " + timings);
+    }
   }
 
-  private long getStartOffset(Hits hits, int i) throws IOException {
-    Document doc = hits.doc(i);
-    String fileOffsetString = doc.get("fileOffset");
-    long fileOffset = Long.parseLong(fileOffsetString);
+  /**
+   * Submits a generation search, keeping only the hits the page may need.
+   *
+   * @param search
+   *          The {@link GenerationSearch}.
+   * @param offset
+   *          The amount of hits left to skip.
+   * @param limit
+   *          The amount of hits left to print.
+   *
+   * @return the {@link Future} of the search.
+   */
+  private Future submit(GenerationSearch search, int offset, int limit) {
+    search.setLimit((int) Math.min(Integer.MAX_VALUE, (long) offset + limit));
 
-    return fileOffset;
+    return searchExecutor.submit(search);
+  }
+
+  /**
+   * Waits for a generation search to finish.
+   *
+   * @param future
+   *          The {@link Future} of the {@link GenerationSearch}.
+   *
+   * @return the finished search.
+   *
+   * @throws IOException
+   *           If the index could not be searched.
+   * @throws ServletException
+   *           If the search failed otherwise or the request was interrupted.
+   */
+  private GenerationSearch getResult(Future future) throws IOException,
+      ServletException {
+    try {
+      return (GenerationSearch) future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServletException("Interrupted while searching", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new ServletException("Search failed", cause);
+    }
   }
 
-  private long getEndOffset(IndexSearcher indexSearcher, int i, int maxDoc)
-      throws IOException {
-    if (i + 1 >= maxDoc) {
-      // This restrictive number will make sure that the line look cut so the
-      // user will try again
-      return -1;
+  /**
+   * Print the log fragments matched in one generation.
+   * 
+   * @param writer
+   *          The {@link LogFragmentWriter} on the response.
+   * @param search
+   *          The finished search on the generation.
+   * @param isDebug
+   *          If true then also print header/footer indicating which file the
+   *          result belongs.
+   * @param first
+   *          The index of the first kept hit to print.
+   * @param max
+   *          The most hits to print.
+   * 
+   * @return the amount of hits printed.
+   * 
+   * @throws IOException
+   *           If any file operation exceptin occurs during retrieving log file
+   *           fragments.
+   * @throws FileNotFoundException
+   *           If the log file cannot be found.
+   * @throws UnsupportedEncodingException
+   *           If the encoding specified at {@link #charset} turns out to be not
+   *           supported.
+   */
+  private int printResults(LogFragmentWriter writer, GenerationSearch search,
+      boolean isDebug, int first, int max) throws IOException,
+      FileNotFoundException, UnsupportedEncodingException {
+    int hitsLength = Math.min(search.getCount() - first, max);
+    if (hitsLength <= 0) {
+      return 0;
+    }
+    File log = search.getLog();
+
+    long[] starts = search.getStarts();
+    long[] ends = search.getEnds();
+    if (first > 0) {
+      starts = new long[hitsLength];
+      ends = new long[hitsLength];
+      System.arraycopy(search.getStarts(), first, starts, 0, hitsLength);
+      System.arraycopy(search.getEnds(), first, ends, 0, hitsLength);
+    }
+
+    // Print header
+    if (isDebug) {
+      writer.println("");
+      writer.println("****************** Start of File: " + log
+          + " ******************");
+      writer.println("");
     }
 
-    Document nextDoc = indexSearcher.doc(i + 1);
-    String nextFileOffsetString = nextDoc.get("fileOffset");
-    long nextFileOffset = Long.parseLong(nextFileOffsetString);
+    writer.writeFragments(search.getSource(), starts, ends, hitsLength);
+
+    // Print footer
+    if (isDebug) {
+      writer.println("");
+      writer.println("****************** End of File: " + log
+          + " ******************");
+      writer.println("");
+    }
+    writer.flush();
 
-    return nextFileOffset;
+    return hitsLength;
   }
 
   public void init(ServletConfig config) throws ServletException {
@@ -314,17 +772,165 @@ public class LuceneLogSearchServlet extends HttpServlet {
     logFile = config.getInitParameter("logFile");
     logDir = getLogDir(config.getInitParameter("logDir"));
     charset = config.getInitParameter("charset");
+    if (!isSupported(charset)) {
+      if (charset != null) {
+        LOGGER.warn("Unsupported charset " + charset + ", using "
+            + DEFAULT_CHARSET);
+      }
+      charset = DEFAULT_CHARSET;
+    }
     String maxBackupIndexString = config.getInitParameter("maxBackupIndex");
     maxBackupIndex = Integer.parseInt(maxBackupIndexString);
 
-    // Subscribe to {@link FilePosTrackingRollingFileAppender#rollover} event
-    FilePosTrackingRollingFileAppender
-        .addRollOverListener(new RollOverListener() {
+    initSearch(config);
+    metrics.register(config.getServletName());
+    initCaches(config);
+    initResponse(config);
+
+    generations = new LogGenerations(logDir + File.separatorChar + luceneDir,
+        logDir + File.separatorChar + logFile, maxBackupIndex, searcherCache,
+        mappedLogs, blockCache);
+
+    searchExecutor = Executors.newFixedThreadPool(searchThreads,
+        new ThreadFactory() {
 
-          public void signalRollOver() {
-            isRolledOver = true;
+          private int count;
+
+          public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                "LuceneLogSearchServlet-search-" + ++count);
+            thread.setDaemon(true);
+            return thread;
           }
         });
+
+    listenToRollOvers();
+  }
+
+  /**
+   * Reads the search parameters: the search threads and concurrency, the
+   * page limit, the slow query threshold and the index lag.
+   *
+   * @param config
+   *          The servlet configuration.
+   */
+  private void initSearch(ServletConfig config) {
+    String searchThreadsString = config.getInitParameter("searchThreads");
+    searchThreads = Runtime.getRuntime().availableProcessors();
+    if (searchThreadsString != null) {
+      searchThreads = Math.max(1, Integer.parseInt(searchThreadsString));
+    }
+    String searchConcurrencyString = config
+        .getInitParameter("searchConcurrency");
+    searchConcurrency = searchThreads;
+    if (searchConcurrencyString != null) {
+      searchConcurrency = Math.max(1, Integer
+          .parseInt(searchConcurrencyString));
+    }
+
+    String maxLimitString = config.getInitParameter("maxLimit");
+    maxLimit = Integer.MAX_VALUE;
+    if (maxLimitString != null) {
+      maxLimit = Integer.parseInt(maxLimitString);
+    }
+
+    String slowQueryThresholdString = config
+        .getInitParameter("slowQueryThreshold");
+    slowQueryNanos = 0;
+    if (slowQueryThresholdString != null) {
+      slowQueryNanos = Long.parseLong(slowQueryThresholdString) * 1000000L;
+    }
+
+    String maxIndexLagString = config.getInitParameter("maxIndexLag");
+    maxIndexLag = DEFAULT_MAX_INDEX_LAG;
+    if (maxIndexLagString != null) {
+      maxIndexLag = Long.parseLong(maxIndexLagString);
+    }
+  }
+
+  /**
+   * Creates the log file mappings and inflated block caches.
+   *
+   * @param config
+   *          The servlet configuration.
+   */
+  private void initCaches(ServletConfig config) {
+    String mapLogFilesString = config.getInitParameter("mapLogFiles");
+    boolean mapLogFiles = File.separatorChar != '\\';
+    if (mapLogFilesString != null) {
+      mapLogFiles = Boolean.valueOf(mapLogFilesString).booleanValue();
+    }
+    mappedLogs = mapLogFiles ? new MappedLogCache() : null;
+
+    String blockCacheSizeString = config.getInitParameter("blockCacheSize");
+    int blockCacheSize = BlockCache.DEFAULT_CAPACITY;
+    if (blockCacheSizeString != null) {
+      blockCacheSize = Math.max(0, Integer.parseInt(blockCacheSizeString));
+    }
+    blockCache = new BlockCache(blockCacheSize);
+  }
+
+  /**
+   * Reads the response parameters: compression, buffering and flushing.
+   *
+   * @param config
+   *          The servlet configuration.
+   */
+  private void initResponse(ServletConfig config) {
+    String compressResponseString = config.getInitParameter("compressResponse");
+    compressResponse = compressResponseString == null
+        || Boolean.valueOf(compressResponseString).booleanValue();
+    String responseBufferSizeString = config
+        .getInitParameter("responseBufferSize");
+    responseBufferSize = DEFAULT_RESPONSE_BUFFER_SIZE;
+    if (responseBufferSizeString != null) {
+      responseBufferSize = Math.max(1, Integer
+          .parseInt(responseBufferSizeString));
+    }
+    String flushBytesString = config.getInitParameter("flushBytes");
+    flushBytes = DEFAULT_FLUSH_BYTES;
+    if (flushBytesString != null) {
+      flushBytes = Math.max(0, Integer.parseInt(flushBytesString));
+    }
+  }
+
+  /**
+   * Subscribes to {@link FilePosTrackingRollingFileAppender#rollOver()}
+   * events, to keep the caches in step with the generations.
+   */
+  private void listenToRollOvers() {
+    rollOverListener = new RollOverListener() {
+
+      public void signalRollOver() {
+        if (generations.evictExpiring()) {
+          return;
+        }
+
+        // Directory names are about to point at other generations
+        searcherCache.evictAll();
+        if (mappedLogs != null) {
+          mappedLogs.evictAll();
+        }
+        blockCache.evictAll();
+      }
+    };
+    FilePosTrackingRollingFileAppender.addRollOverListener(rollOverListener);
+  }
+
+  /**
+   * Stops listening to rollovers, stops the search threads, closes the cached
+   * searchers, drops the log file mappings and inflated blocks and unregisters
+   * the metrics.
+   */
+  public void destroy() {
+    FilePosTrackingRollingFileAppender.removeRollOverListener(rollOverListener);
+    searchExecutor.shutdownNow();
+    searcherCache.evictAll();
+    if (mappedLogs != null) {
+      mappedLogs.evictAll();
+    }
+    blockCache.evictAll();
+    metrics.unregister();
   }
 
   private String getLogDir(String logDirectory) {
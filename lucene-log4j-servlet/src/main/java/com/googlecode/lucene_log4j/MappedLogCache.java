@@ -0,0 +1,220 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps log files memory mapped across requests, so printing a log fragment
+ * is slicing a buffer instead of reading the file.
+ * <p>
+ * Files are mapped in segments of {@link #SEGMENT_SIZE} bytes. Rotated logs
+ * never change and are mapped once. The live log is mapped incrementally:
+ * when it has grown, only its last, partial segment is mapped again along
+ * with the new ones. A file that shrank or changed without growing has been
+ * replaced by a rollover and is mapped from scratch.
+ * <p>
+ * {@link #evictAll()} drops every mapping on rollover; in sequence mode only
+ * the mapping of the expired generation is {@link #evict(File) dropped}. The
+ * pages are released once the mappings are garbage collected; as long as a
+ * file is mapped it cannot be renamed on Windows, so mapping is off by
+ * default there.
+ */
+final class MappedLogCache {
+
+  /**
+   * The size of a mapped segment.
+   */
+  static final int SEGMENT_SIZE = 1 << 26;
+
+  /**
+   * Maps log file paths to their latest {@link MappedLog}.
+   */
+  private final Map mappedLogs = new HashMap();
+
+  /**
+   * The mapped segments of a log file, as they were when mapped. Immutable,
+   * so concurrent requests can share it.
+   */
+  static final class MappedLog implements LogSource {
+
+    /**
+     * The mapped segments, all but the last one {@link #SEGMENT_SIZE} long.
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * The size of the file when mapped.
+     */
+    private final long size;
+
+    /**
+     * The modification time of the file when mapped.
+     */
+    private final long lastModified;
+
+    /**
+     * Maps a log file, reusing the full segments of a previous mapping.
+     *
+     * @param log
+     *          The log file.
+     * @param previous
+     *          A mapping of the same, smaller file, or null.
+     *
+     * @throws IOException
+     *           If the log file cannot be mapped.
+     */
+    MappedLog(File log, MappedLog previous) throws IOException {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(log, "r");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        // Read the time before the size, so a write in between causes a
+        // remap rather than being missed
+        lastModified = log.lastModified();
+        size = channel.size();
+
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1)
+            / SEGMENT_SIZE)];
+        int reused = 0;
+        if (previous != null) {
+          reused = (int) (previous.size / SEGMENT_SIZE);
+          System.arraycopy(previous.segments, 0, segments, 0, reused);
+        }
+        for (int i = reused; i < segments.length; i++) {
+          long position = (long) i * SEGMENT_SIZE;
+          segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+              Math.min(SEGMENT_SIZE, size - position));
+        }
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long size() {
+      return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int read(ByteBuffer dst, long position) {
+      if (position >= size) {
+        return -1;
+      }
+
+      int read = 0;
+      while (dst.hasRemaining() && position < size) {
+        ByteBuffer slice = slice(position, dst.remaining());
+        read += slice.remaining();
+        position += slice.remaining();
+        dst.put(slice);
+      }
+
+      return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long transferTo(long position, long count,
+        WritableByteChannel target) throws IOException {
+      long transferred = 0;
+      while (transferred < count && position + transferred < size) {
+        ByteBuffer slice = slice(position + transferred, count - transferred);
+        while (slice.hasRemaining()) {
+          transferred += target.write(slice);
+        }
+      }
+
+      return transferred;
+    }
+
+    /**
+     * Returns the bytes from a position up to the end of its segment.
+     *
+     * @param position
+     *          The file position, below {@link #size}.
+     * @param max
+     *          The most bytes wanted.
+     *
+     * @return a buffer over the mapped bytes.
+     */
+    private ByteBuffer slice(long position, long max) {
+      ByteBuffer slice = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+      int offset = (int) (position % SEGMENT_SIZE);
+      slice.position(offset);
+      slice.limit((int) Math.min(slice.capacity(), offset + max));
+
+      return slice;
+    }
+
+    /**
+     * Tells whether the mapping still covers a file.
+     *
+     * @param log
+     *          The log file.
+     *
+     * @return true if the file has not changed since mapped.
+     */
+    private boolean isCurrent(File log) {
+      return log.length() == size && log.lastModified() == lastModified;
+    }
+  }
+
+  /**
+   * Returns the mapping of a log file, mapping whatever it gained since last
+   * time.
+   *
+   * @param log
+   *          The log file.
+   *
+   * @return the current mapping.
+   *
+   * @throws IOException
+   *           If the log file cannot be mapped.
+   */
+  synchronized MappedLog get(File log) throws IOException {
+    String path = log.getPath();
+    MappedLog mapped = (MappedLog) mappedLogs.get(path);
+    if (mapped != null && mapped.isCurrent(log)) {
+      return mapped;
+    }
+
+    if (mapped != null && log.length() < mapped.size) {
+      // Replaced by a rollover
+      mapped = null;
+    }
+    mapped = new MappedLog(log, mapped);
+    mappedLogs.put(path, mapped);
+
+    return mapped;
+  }
+
+  /**
+   * Drops every mapping, since file names are about to point at other
+   * generations.
+   */
+  synchronized void evictAll() {
+    mappedLogs.clear();
+  }
+
+  /**
+   * Drops the mapping of a log file, if any, since its generation is about to
+   * be expired.
+   *
+   * @param log
+   *          The log file.
+   */
+  synchronized void evict(File log) {
+    mappedLogs.remove(log.getPath());
+  }
+}
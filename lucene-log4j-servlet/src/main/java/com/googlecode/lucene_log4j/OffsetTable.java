@@ -0,0 +1,234 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Maps the document IDs of one Lucene index to the log file extent of the log
+ * statements they represent, so finding where a hit starts and ends is an
+ * array read rather than a stored document load.
+ * <p>
+ * The extents are read from the {@link RecordFile} next to the index. Stored
+ * fields are only loaded for documents it does not cover: those indexed by
+ * older appenders, or committed before their entries were flushed.
+ * <p>
+ * Indexes written before {@link FilePosTrackingRollingFileAppender} stored
+ * {@link FilePosTrackingRollingFileAppender#FILE_END_OFFSET_FIELD} fall back to
+ * the start of the next document, as they always did.
+ */
+final class OffsetTable {
+
+  /**
+   * Marks an offset that is not known.
+   */
+  static final long UNKNOWN = -1;
+
+  /**
+   * The identifier of the generation of the index, 0 if unknown.
+   */
+  private final long generationId;
+
+  /**
+   * The start offset of every document.
+   */
+  private final long[] starts;
+
+  /**
+   * The end offset of every document, {@link #UNKNOWN} for old indexes.
+   */
+  private final long[] ends;
+
+  /**
+   * Creates an OffsetTable.
+   *
+   * @param generationId
+   *          The identifier of the generation of the index.
+   * @param starts
+   *          The start offset of every document.
+   * @param ends
+   *          The end offset of every document.
+   */
+  private OffsetTable(long generationId, long[] starts, long[] ends) {
+    this.generationId = generationId;
+    this.starts = starts;
+    this.ends = ends;
+  }
+
+  /**
+   * Loads the offsets of every document of {@code reader}. Documents are only
+   * ever appended to our indexes and keep their IDs when segments merge, so
+   * the entries of a {@code previous} table on an older version of the same
+   * index are reused and only the new documents are loaded. It is only taken
+   * for the same index if it belongs to the same generation, has no more
+   * documents and agrees on its first and last ones.
+   *
+   * @param reader
+   *          The {@link IndexReader} to load offsets from.
+   * @param indexDir
+   *          The index directory, holding the {@link RecordFile}.
+   * @param generationId
+   *          The identifier of the generation of the index, 0 if unknown.
+   * @param previous
+   *          A table loaded on an older version of the same index, or null.
+   *
+   * @return an OffsetTable.
+   *
+   * @throws IOException
+   *           If documents cannot be read.
+   */
+  static OffsetTable load(IndexReader reader, File indexDir,
+      long generationId, OffsetTable previous) throws IOException {
+    int maxDoc = reader.maxDoc();
+    long[] starts = new long[maxDoc];
+    long[] ends = new long[maxDoc];
+
+    int reused = 0;
+    if (previous != null && previous.generationId == generationId
+        && previous.size() <= maxDoc && previous.size() > 0
+        && previous.matches(reader, indexDir, 0, starts, ends)
+        && previous.matches(reader, indexDir, previous.size() - 1, starts,
+            ends)) {
+      reused = previous.size();
+      System.arraycopy(previous.starts, 0, starts, 0, reused);
+      System.arraycopy(previous.ends, 0, ends, 0, reused);
+    }
+
+    int recorded = Math.max(reused, RecordFile.read(indexDir, reused, maxDoc,
+        starts, ends));
+    for (int i = reused; i < maxDoc; i++) {
+      if (i >= recorded || starts[i] == RecordFile.UNKNOWN) {
+        load(reader, i, starts, ends);
+      }
+    }
+
+    return new OffsetTable(generationId, starts, ends);
+  }
+
+  /**
+   * Tells whether a document of the index still has the offsets of this
+   * table.
+   *
+   * @param reader
+   *          The {@link IndexReader} to load offsets from.
+   * @param indexDir
+   *          The index directory, holding the {@link RecordFile}.
+   * @param docId
+   *          The document ID.
+   * @param starts
+   *          Receives the start offset.
+   * @param ends
+   *          Receives the end offset.
+   *
+   * @return true if the offsets are the same.
+   *
+   * @throws IOException
+   *           If the document cannot be read.
+   */
+  private boolean matches(IndexReader reader, File indexDir, int docId,
+      long[] starts, long[] ends) throws IOException {
+    if (RecordFile.read(indexDir, docId, docId + 1, starts, ends) <= docId
+        || starts[docId] == RecordFile.UNKNOWN) {
+      load(reader, docId, starts, ends);
+    }
+
+    return starts[docId] == this.starts[docId]
+        && ends[docId] == this.ends[docId];
+  }
+
+  /**
+   * Loads the offsets of a document from its stored fields.
+   *
+   * @param reader
+   *          The {@link IndexReader} to load offsets from.
+   * @param docId
+   *          The document ID.
+   * @param starts
+   *          Receives the start offset.
+   * @param ends
+   *          Receives the end offset.
+   *
+   * @throws IOException
+   *           If the document cannot be read.
+   */
+  private static void load(IndexReader reader, int docId, long[] starts,
+      long[] ends) throws IOException {
+    if (reader.isDeleted(docId)) {
+      starts[docId] = UNKNOWN;
+      ends[docId] = UNKNOWN;
+
+      return;
+    }
+
+    Document doc = reader.document(docId);
+    starts[docId] = getOffset(doc,
+        FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD);
+    ends[docId] = getOffset(doc,
+        FilePosTrackingRollingFileAppender.FILE_END_OFFSET_FIELD);
+  }
+
+  /**
+   * Reads an offset field.
+   *
+   * @param doc
+   *          The {@link Document}.
+   * @param field
+   *          The field name.
+   *
+   * @return the offset or {@link #UNKNOWN} if the field is missing.
+   */
+  private static long getOffset(Document doc, String field) {
+    String value = doc.get(field);
+    if (value == null) {
+      return UNKNOWN;
+    }
+
+    return Long.parseLong(value);
+  }
+
+  /**
+   * Returns the amount of documents in the table.
+   *
+   * @return the table size.
+   */
+  int size() {
+    return starts.length;
+  }
+
+  /**
+   * Returns where the log statement of a document starts.
+   *
+   * @param docId
+   *          The document ID.
+   *
+   * @return the start offset.
+   */
+  long getStart(int docId) {
+    return starts[docId];
+  }
+
+  /**
+   * Returns where the log statement of a document ends.
+   *
+   * @param docId
+   *          The document ID.
+   *
+   * @return the end offset or {@link #UNKNOWN} if the statement is the last
+   *         one of an old index, i.e. it runs until the end of file.
+   */
+  long getEnd(int docId) {
+    if (ends[docId] != UNKNOWN) {
+      return ends[docId];
+    }
+
+    if (docId + 1 >= starts.length) {
+      // This restrictive number will make sure that the line look cut so the
+      // user will try again
+      return UNKNOWN;
+    }
+
+    return starts[docId + 1];
+  }
+}
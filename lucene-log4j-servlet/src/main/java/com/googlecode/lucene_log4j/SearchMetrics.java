@@ -0,0 +1,215 @@
+package com.googlecode.lucene_log4j;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Aggregates the phase timings of the searches of a
+ * {@link LuceneLogSearchServlet} and exposes them over JMX as
+ * <code>com.googlecode.lucene_log4j:type=LuceneLogSearchServlet,name=&lt;servlet name&gt;</code>.
+ */
+public final class SearchMetrics implements SearchMetricsMBean {
+
+  /**
+   * The JMX domain of the metrics.
+   */
+  private static final String DOMAIN = "com.googlecode.lucene_log4j";
+
+  /**
+   * Logs JMX failures.
+   */
+  private static final Logger LOGGER = Logger.getLogger(SearchMetrics.class);
+
+  /**
+   * Whole searches.
+   */
+  private final LatencyHistogram total = new LatencyHistogram();
+
+  /**
+   * Opening indexes.
+   */
+  private final LatencyHistogram open = new LatencyHistogram();
+
+  /**
+   * Running queries.
+   */
+  private final LatencyHistogram query = new LatencyHistogram();
+
+  /**
+   * Mapping hits to log file offsets.
+   */
+  private final LatencyHistogram offsets = new LatencyHistogram();
+
+  /**
+   * Reading log files into the response.
+   */
+  private final LatencyHistogram stream = new LatencyHistogram();
+
+  /**
+   * Searches slower than the slow query threshold.
+   */
+  private final LatencyHistogram slow = new LatencyHistogram();
+
+  /**
+   * The name the metrics are registered with, null if not registered.
+   */
+  private ObjectName objectName;
+
+  /**
+   * Registers the metrics with the platform MBean server, replacing those of
+   * a previous servlet with the same name.
+   *
+   * @param servletName
+   *          The name of the servlet.
+   */
+  synchronized void register(String servletName) {
+    try {
+      ObjectName name = new ObjectName(DOMAIN
+          + ":type=LuceneLogSearchServlet,name="
+          + ObjectName.quote("" + servletName));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        server.registerMBean(this, name);
+      } catch (InstanceAlreadyExistsException e) {
+        // A redeployment replaced the servlet
+        server.unregisterMBean(name);
+        server.registerMBean(this, name);
+      }
+      objectName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Could not register metrics for servlet " + servletName, e);
+    }
+  }
+
+  /**
+   * Unregisters the metrics, if registered.
+   */
+  synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      LOGGER.warn("Could not unregister metrics " + objectName, e);
+    }
+    objectName = null;
+  }
+
+  /**
+   * Records the phase timings of a search.
+   *
+   * @param timings
+   *          The timings of the search.
+   * @param isSlow
+   *          True if the search was slower than the slow query threshold.
+   */
+  void record(SearchTimings timings, boolean isSlow) {
+    total.record(timings.getTotalNanos());
+    open.record(timings.getOpenNanos());
+    query.record(timings.getQueryNanos());
+    offsets.record(timings.getOffsetsNanos());
+    stream.record(timings.getStreamNanos());
+    if (isSlow) {
+      slow.record(timings.getTotalNanos());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getRequests() {
+    return total.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getSlowRequests() {
+    return slow.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getTotalMeanMicros() {
+    return total.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getTotalP99Micros() {
+    return total.getPercentileMicros(99);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getTotalMaxMicros() {
+    return total.getMaxMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getOpenMeanMicros() {
+    return open.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getOpenP99Micros() {
+    return open.getPercentileMicros(99);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getQueryMeanMicros() {
+    return query.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getQueryP99Micros() {
+    return query.getPercentileMicros(99);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getOffsetsMeanMicros() {
+    return offsets.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getOffsetsP99Micros() {
+    return offsets.getPercentileMicros(99);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getStreamMeanMicros() {
+    return stream.getMeanMicros();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getStreamP99Micros() {
+    return stream.getPercentileMicros(99);
+  }
+}
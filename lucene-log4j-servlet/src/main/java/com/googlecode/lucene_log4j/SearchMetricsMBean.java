@@ -0,0 +1,102 @@
+package com.googlecode.lucene_log4j;
+
+/**
+ * The JMX view of the metrics of a {@link LuceneLogSearchServlet}. Durations
+ * are in microseconds, percentiles are estimates. Phases are summed over the
+ * generations of a request, which may be searched concurrently.
+ */
+public interface SearchMetricsMBean {
+
+  /**
+   * Returns the amount of searches served.
+   *
+   * @return the request count.
+   */
+  long getRequests();
+
+  /**
+   * Returns the amount of searches slower than the slow query threshold.
+   *
+   * @return the slow request count.
+   */
+  long getSlowRequests();
+
+  /**
+   * Returns the mean duration of a search.
+   *
+   * @return microseconds.
+   */
+  double getTotalMeanMicros();
+
+  /**
+   * Returns the 99th percentile of the duration of a search.
+   *
+   * @return microseconds.
+   */
+  long getTotalP99Micros();
+
+  /**
+   * Returns the longest duration of a search.
+   *
+   * @return microseconds.
+   */
+  long getTotalMaxMicros();
+
+  /**
+   * Returns the mean time a search spent opening indexes.
+   *
+   * @return microseconds.
+   */
+  double getOpenMeanMicros();
+
+  /**
+   * Returns the 99th percentile of the time a search spent opening indexes.
+   *
+   * @return microseconds.
+   */
+  long getOpenP99Micros();
+
+  /**
+   * Returns the mean time a search spent running the query.
+   *
+   * @return microseconds.
+   */
+  double getQueryMeanMicros();
+
+  /**
+   * Returns the 99th percentile of the time a search spent running the query.
+   *
+   * @return microseconds.
+   */
+  long getQueryP99Micros();
+
+  /**
+   * Returns the mean time a search spent mapping hits to log file offsets.
+   *
+   * @return microseconds.
+   */
+  double getOffsetsMeanMicros();
+
+  /**
+   * Returns the 99th percentile of the time a search spent mapping hits to
+   * log file offsets.
+   *
+   * @return microseconds.
+   */
+  long getOffsetsP99Micros();
+
+  /**
+   * Returns the mean time a search spent reading log files into the response.
+   *
+   * @return microseconds.
+   */
+  double getStreamMeanMicros();
+
+  /**
+   * Returns the 99th percentile of the time a search spent reading log files
+   * into the response.
+   *
+   * @return microseconds.
+   */
+  long getStreamP99Micros();
+}
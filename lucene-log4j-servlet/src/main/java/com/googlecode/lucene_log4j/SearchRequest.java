@@ -0,0 +1,439 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.queryParser.TokenMgrError;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+
+/**
+ * The parameters of one search request, parsed once for all generations: the
+ * query, the time window, the page and the output options.
+ */
+final class SearchRequest {
+
+  /**
+   * The query string.
+   */
+  private String luceneQuery;
+
+  /**
+   * The parsed query.
+   */
+  private Query query;
+
+  /**
+   * Whether to print which file each result belongs to and the timings.
+   */
+  private boolean isDebug;
+
+  /**
+   * Whether the oldest generation is printed first.
+   */
+  private boolean isChronological;
+
+  /**
+   * Restricts the hits to the time window, null for no window.
+   */
+  private Filter filter;
+
+  /**
+   * The start of the time window, inclusive.
+   */
+  private long fromTime = Long.MIN_VALUE;
+
+  /**
+   * The end of the time window, inclusive.
+   */
+  private long toTime = Long.MAX_VALUE;
+
+  /**
+   * The most log statements to print.
+   */
+  private int limit;
+
+  /**
+   * The amount of log statements to skip before printing.
+   */
+  private int offset;
+
+  /**
+   * The cursor to resume after, null if none.
+   */
+  private String cursor;
+
+  /**
+   * Whether the cursor holds a generation identifier rather than a position.
+   */
+  private boolean isCursorId;
+
+  /**
+   * The generation of the cursor, identifier or position.
+   */
+  private long cursorGeneration = -1;
+
+  /**
+   * The last document printed in the cursor generation.
+   */
+  private int cursorDocId = -1;
+
+  /**
+   * Creates a SearchRequest, filled in by {@link #parse}.
+   */
+  private SearchRequest() {
+  }
+
+  /**
+   * Parses the parameters of a request. Invalid parameters are reported in
+   * the response.
+   *
+   * @param req
+   *          The request.
+   * @param resp
+   *          The response.
+   * @param writer
+   *          Writes the response.
+   * @param maxLimit
+   *          The most log statements a single request prints.
+   *
+   * @return the parsed request, null if invalid.
+   *
+   * @throws IOException
+   *           If the error cannot be written.
+   */
+  static SearchRequest parse(HttpServletRequest req, HttpServletResponse resp,
+      LogFragmentWriter writer, int maxLimit) throws IOException {
+    SearchRequest request = new SearchRequest();
+    request.isDebug = Boolean.valueOf(req.getParameter("debug"))
+        .booleanValue();
+    request.isChronological = "chronological".equals(req
+        .getParameter("order"));
+    request.limit = maxLimit;
+
+    if (request.parseQuery(req, resp, writer)
+        && request.parseTimeWindow(req, resp, writer)
+        && request.parsePage(req, resp, writer, maxLimit)) {
+      return request;
+    }
+
+    return null;
+  }
+
+  /**
+   * Parses the query. A query that does not parse is the client's mistake,
+   * answered with 400 and the reason.
+   *
+   * @param req
+   *          The request.
+   * @param resp
+   *          The response.
+   * @param writer
+   *          Writes the response.
+   *
+   * @return false if invalid.
+   *
+   * @throws IOException
+   *           If the error cannot be written.
+   */
+  private boolean parseQuery(HttpServletRequest req, HttpServletResponse resp,
+      LogFragmentWriter writer) throws IOException {
+    luceneQuery = req.getParameter("query");
+    try {
+      QueryParser queryParser = new QueryParser("uuid",
+          new WhitespaceAnalyzer());
+      query = queryParser.parse(luceneQuery);
+    } catch (ParseException e) {
+      return rejectQuery(resp, writer, e.getMessage());
+    } catch (TokenMgrError e) {
+      // Thrown by the parser on characters it cannot tokenize
+      return rejectQuery(resp, writer, e.getMessage());
+    }
+
+    return true;
+  }
+
+  /**
+   * Answers a query that does not parse.
+   *
+   * @param resp
+   *          The response.
+   * @param writer
+   *          Writes the response.
+   * @param reason
+   *          Why the query does not parse.
+   *
+   * @return false.
+   *
+   * @throws IOException
+   *           If the error cannot be written.
+   */
+  private boolean rejectQuery(HttpServletResponse resp,
+      LogFragmentWriter writer, String reason) throws IOException {
+    resp.setStatus(400);
+    writer.println("Invalid query: " + luceneQuery);
+    writer.print(reason);
+
+    return false;
+  }
+
+  /**
+   * Parses the time window.
+   *
+   * @param req
+   *          The request.
+   * @param resp
+   *          The response.
+   * @param writer
+   *          Writes the response.
+   *
+   * @return false if invalid.
+   *
+   * @throws IOException
+   *           If the error cannot be written.
+   */
+  private boolean parseTimeWindow(HttpServletRequest req,
+      HttpServletResponse resp, LogFragmentWriter writer) throws IOException {
+    String from = req.getParameter("from");
+    String to = req.getParameter("to");
+    if (from != null || to != null) {
+      long now = System.currentTimeMillis();
+      try {
+        fromTime = parseTime(from, fromTime, now);
+        toTime = parseTime(to, toTime, now);
+        filter = new TimeRangeFilter(fromTime, toTime);
+      } catch (NumberFormatException e) {
+        resp.setStatus(400);
+        writer.print("Invalid time window: from=" + from + ", to=" + to);
+
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Parses the page to print.
+   *
+   * @param req
+   *          The request.
+   * @param resp
+   *          The response.
+   * @param writer
+   *          Writes the response.
+   * @param maxLimit
+   *          The most log statements a single request prints.
+   *
+   * @return false if invalid.
+   *
+   * @throws IOException
+   *           If the error cannot be written.
+   */
+  private boolean parsePage(HttpServletRequest req, HttpServletResponse resp,
+      LogFragmentWriter writer, int maxLimit) throws IOException {
+    String limitString = req.getParameter("limit");
+    String offsetString = req.getParameter("offset");
+    cursor = req.getParameter("cursor");
+    try {
+      if (limitString != null) {
+        limit = Math.min(maxLimit, Integer.parseInt(limitString));
+      }
+      if (offsetString != null) {
+        offset = Integer.parseInt(offsetString);
+      }
+      if (cursor != null) {
+        int separator = cursor.indexOf('.');
+        if (separator < 0) {
+          throw new NumberFormatException("Invalid cursor " + cursor);
+        }
+        isCursorId = cursor.startsWith("g");
+        cursorGeneration = Long.parseLong(cursor.substring(isCursorId ? 1 : 0,
+            separator));
+        cursorDocId = Integer.parseInt(cursor.substring(separator + 1));
+      }
+      if (limit < 0 || offset < 0 || (cursor != null && cursorGeneration < 0)) {
+        throw new NumberFormatException("Negative page");
+      }
+    } catch (NumberFormatException e) {
+      resp.setStatus(400);
+      writer.print("Invalid page: limit=" + limitString + ", offset="
+          + offsetString + ", cursor=" + cursor);
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Parses a time request parameter.
+   *
+   * @param value
+   *          Milliseconds since epoch, a duration before now such as "-5m",
+   *          or null.
+   * @param defaultTime
+   *          The time to return if {@code value} is null.
+   * @param now
+   *          The current time.
+   *
+   * @return the time in milliseconds since epoch.
+   *
+   * @throws NumberFormatException
+   *           If {@code value} cannot be parsed.
+   */
+  private static long parseTime(String value, long defaultTime, long now)
+      throws NumberFormatException {
+    if (value == null || value.length() == 0) {
+      return defaultTime;
+    }
+
+    if (value.charAt(0) != '-') {
+      return Long.parseLong(value);
+    }
+
+    long unit;
+    switch (value.charAt(value.length() - 1)) {
+    case 's':
+      unit = 1000L;
+      break;
+    case 'm':
+      unit = 60 * 1000L;
+      break;
+    case 'h':
+      unit = 60 * 60 * 1000L;
+      break;
+    case 'd':
+      unit = 24 * 60 * 60 * 1000L;
+      break;
+    default:
+      throw new NumberFormatException("Unknown time unit in " + value);
+    }
+
+    return now - Long.parseLong(value.substring(1, value.length() - 1)) * unit;
+  }
+
+  /**
+   * Tells where a generation stands relative to the cursor, in output order.
+   * Generations without an identifier are older than those with one.
+   *
+   * @param position
+   *          The position of the generation, 0 for the live one.
+   * @param generationId
+   *          The identifier of the generation, 0 if it has none.
+   *
+   * @return negative if printed before the cursor generation, so skipped, 0
+   *         if it is the cursor generation, positive if printed after it or
+   *         without a cursor.
+   */
+  int compareToCursor(int position, long generationId) {
+    if (cursor == null) {
+      return 1;
+    }
+
+    long order = position;
+    long cursorOrder = cursorGeneration;
+    if (isCursorId) {
+      order = generationId == 0 ? Long.MAX_VALUE : -generationId;
+      cursorOrder = -cursorGeneration;
+    }
+    if (order == cursorOrder) {
+      return 0;
+    }
+
+    return (isChronological ? order > cursorOrder : order < cursorOrder) ? -1
+        : 1;
+  }
+
+  /**
+   * Tells whether the time window rules a generation out, without opening
+   * its index.
+   *
+   * @param manifest
+   *          The manifest of the generation, null if it has none.
+   *
+   * @return true if the generation was logged entirely outside the window.
+   */
+  boolean isOutsideTimeWindow(GenerationManifest manifest) {
+    return filter != null && manifest != null
+        && !manifest.mayContain(fromTime, toTime);
+  }
+
+  /**
+   * Returns the query string.
+   *
+   * @return the query string.
+   */
+  String getLuceneQuery() {
+    return luceneQuery;
+  }
+
+  /**
+   * Returns the parsed query.
+   *
+   * @return the query.
+   */
+  Query getQuery() {
+    return query;
+  }
+
+  /**
+   * Returns the time window filter.
+   *
+   * @return the filter, null for no window.
+   */
+  Filter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Tells whether to print which file each result belongs to and the
+   * timings.
+   *
+   * @return true in debug mode.
+   */
+  boolean isDebug() {
+    return isDebug;
+  }
+
+  /**
+   * Tells whether the oldest generation is printed first.
+   *
+   * @return true in chronological order.
+   */
+  boolean isChronological() {
+    return isChronological;
+  }
+
+  /**
+   * Returns the most log statements to print.
+   *
+   * @return the limit.
+   */
+  int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the amount of log statements to skip before printing.
+   *
+   * @return the offset.
+   */
+  int getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the last document printed in the cursor generation.
+   *
+   * @return the document number, -1 without cursor.
+   */
+  int getCursorDocId() {
+    return cursorDocId;
+  }
+}
@@ -0,0 +1,186 @@
+package com.googlecode.lucene_log4j;
+
+/**
+ * The phase timings and volumes of one search request. Phases run on the
+ * search threads are summed over generations, so they may add up to more
+ * than the total.
+ */
+final class SearchTimings {
+
+  /**
+   * When the request started, in nanoseconds.
+   */
+  private final long start = System.nanoTime();
+
+  /**
+   * Nanoseconds spent on the whole request, once finished.
+   */
+  private long totalNanos;
+
+  /**
+   * Nanoseconds spent opening indexes.
+   */
+  private long openNanos;
+
+  /**
+   * Nanoseconds spent running the query.
+   */
+  private long queryNanos;
+
+  /**
+   * Nanoseconds spent mapping hits to log file offsets.
+   */
+  private long offsetsNanos;
+
+  /**
+   * Nanoseconds spent reading log files into the response.
+   */
+  private long streamNanos;
+
+  /**
+   * The amount of generations searched.
+   */
+  private int generations;
+
+  /**
+   * The amount of hits found.
+   */
+  private long hits;
+
+  /**
+   * The amount of bytes written to the response.
+   */
+  private long bytes;
+
+  /**
+   * Accounts for a finished generation search.
+   *
+   * @param search
+   *          The search.
+   */
+  void add(GenerationSearch search) {
+    openNanos += search.getOpenNanos();
+    queryNanos += search.getQueryNanos();
+    offsetsNanos += search.getOffsetsNanos();
+    hits += search.getTotalHits();
+    generations++;
+  }
+
+  /**
+   * Accounts for log fragments streamed to the response.
+   *
+   * @param nanos
+   *          The time spent.
+   */
+  void addStream(long nanos) {
+    streamNanos += nanos;
+  }
+
+  /**
+   * Marks the request as finished.
+   *
+   * @param bytesWritten
+   *          The amount of bytes written to the response.
+   */
+  void finish(long bytesWritten) {
+    totalNanos = System.nanoTime() - start;
+    bytes = bytesWritten;
+  }
+
+  /**
+   * Returns the time spent on the whole request.
+   *
+   * @return nanoseconds.
+   */
+  long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * Returns the time spent opening indexes.
+   *
+   * @return nanoseconds.
+   */
+  long getOpenNanos() {
+    return openNanos;
+  }
+
+  /**
+   * Returns the time spent running the query.
+   *
+   * @return nanoseconds.
+   */
+  long getQueryNanos() {
+    return queryNanos;
+  }
+
+  /**
+   * Returns the time spent mapping hits to log file offsets.
+   *
+   * @return nanoseconds.
+   */
+  long getOffsetsNanos() {
+    return offsetsNanos;
+  }
+
+  /**
+   * Returns the time spent reading log files into the response.
+   *
+   * @return nanoseconds.
+   */
+  long getStreamNanos() {
+    return streamNanos;
+  }
+
+  /**
+   * Returns the amount of generations searched.
+   *
+   * @return the generation count.
+   */
+  int getGenerations() {
+    return generations;
+  }
+
+  /**
+   * Returns the amount of hits found, printed or not.
+   *
+   * @return the hit count.
+   */
+  long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the amount of bytes written to the response.
+   *
+   * @return the byte count.
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Formats the timings in milliseconds.
+   *
+   * @return the timings.
+   */
+  public String toString() {
+    return "total=" + millis(totalNanos) + "ms open=" + millis(openNanos)
+        + "ms query=" + millis(queryNanos) + "ms offsets="
+        + millis(offsetsNanos) + "ms stream=" + millis(streamNanos)
+        + "ms generations=" + generations + " hits=" + hits + " bytes="
+        + bytes;
+  }
+
+  /**
+   * Converts nanoseconds to milliseconds with a decimal.
+   *
+   * @param nanos
+   *          Nanoseconds.
+   *
+   * @return the milliseconds.
+   */
+  private static String millis(long nanos) {
+    return "" + (nanos / 100000) / 10.0;
+  }
+}
@@ -0,0 +1,170 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.apache.lucene.document.DateField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.Filter;
+
+/**
+ * Restricts a search to the log statements logged within a time window.
+ * <p>
+ * Only the {@link FilePosTrackingRollingFileAppender#TIMESTAMP_FIELD} terms
+ * inside the window are visited, since they sort in time order. Indexes
+ * written before that field existed are filtered on the
+ * <code>currentTimeMillis</code> field instead, which means parsing all of its
+ * terms.
+ */
+final class TimeRangeFilter extends Filter {
+
+  /**
+   * Generated serial version.
+   */
+  private static final long serialVersionUID = -4620145273926402262L;
+
+  /**
+   * The field older indexes hold the time in, as a decimal string.
+   */
+  private static final String LEGACY_TIMESTAMP_FIELD = "currentTimeMillis";
+
+  /**
+   * The start of the window, inclusive.
+   */
+  private final long from;
+
+  /**
+   * The end of the window, inclusive.
+   */
+  private final long to;
+
+  /**
+   * Creates a TimeRangeFilter.
+   *
+   * @param from
+   *          The start of the window in milliseconds since epoch, inclusive.
+   * @param to
+   *          The end of the window in milliseconds since epoch, inclusive.
+   */
+  TimeRangeFilter(long from, long to) {
+    this.from = Math.max(0, from);
+    this.to = to;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public BitSet bits(IndexReader reader) throws IOException {
+    BitSet bits = new BitSet(reader.maxDoc());
+    String field = FilePosTrackingRollingFileAppender.TIMESTAMP_FIELD;
+
+    TermEnum terms = reader.terms(new Term(field, DateField
+        .timeToString(from)));
+    TermDocs termDocs = reader.termDocs();
+    try {
+      if (terms.term() == null || !terms.term().field().equals(field)) {
+        // Nothing at or after from: either the window is past the last
+        // statement or the index predates the field
+        if (!hasTerms(reader, field)) {
+          setLegacyBits(reader, termDocs, bits);
+        }
+
+        return bits;
+      }
+
+      do {
+        Term term = terms.term();
+        if (term == null || !term.field().equals(field)
+            || DateField.stringToTime(term.text()) > to) {
+          break;
+        }
+
+        termDocs.seek(term);
+        while (termDocs.next()) {
+          bits.set(termDocs.doc());
+        }
+      } while (terms.next());
+    } finally {
+      termDocs.close();
+      terms.close();
+    }
+
+    return bits;
+  }
+
+  /**
+   * Tells whether an index has any term in a field.
+   *
+   * @param reader
+   *          The index.
+   * @param field
+   *          The field name.
+   *
+   * @return true if the field has terms.
+   *
+   * @throws IOException
+   *           If the index cannot be read.
+   */
+  private static boolean hasTerms(IndexReader reader, String field)
+      throws IOException {
+    TermEnum terms = reader.terms(new Term(field, ""));
+    try {
+      return terms.term() != null && terms.term().field().equals(field);
+    } finally {
+      terms.close();
+    }
+  }
+
+  /**
+   * Sets the bits of the documents whose <code>currentTimeMillis</code> falls
+   * in the window.
+   *
+   * @param reader
+   *          The index.
+   * @param termDocs
+   *          A {@link TermDocs} on the index.
+   * @param bits
+   *          The bits to set.
+   *
+   * @throws IOException
+   *           If the index cannot be read.
+   */
+  private void setLegacyBits(IndexReader reader, TermDocs termDocs,
+      BitSet bits) throws IOException {
+    TermEnum terms = reader.terms(new Term(LEGACY_TIMESTAMP_FIELD, ""));
+    try {
+      do {
+        Term term = terms.term();
+        if (term == null || !term.field().equals(LEGACY_TIMESTAMP_FIELD)) {
+          break;
+        }
+
+        long time;
+        try {
+          time = Long.parseLong(term.text());
+        } catch (NumberFormatException e) {
+          continue;
+        }
+
+        if (time >= from && time <= to) {
+          termDocs.seek(term);
+          while (termDocs.next()) {
+            bits.set(termDocs.doc());
+          }
+        }
+      } while (terms.next());
+    } finally {
+      terms.close();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public String toString() {
+    return "TimeRangeFilter[" + from + " TO " + to + "]";
+  }
+}
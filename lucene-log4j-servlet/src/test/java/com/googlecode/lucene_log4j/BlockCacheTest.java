@@ -0,0 +1,82 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link BlockCache} reading a compressed log across blocks.
+ */
+public class BlockCacheTest extends TestCase {
+
+  private BlockCache cache = new BlockCache(2);
+
+  private File log;
+
+  private BlockCompressedLog compressedLog;
+
+  protected void setUp() throws IOException {
+    log = File.createTempFile("server", ".log");
+    FileOutputStream out = new FileOutputStream(log);
+    try {
+      out.write("first\nsecond\nthird\n".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    BlockCompressedLog.compress(log, 4);
+    compressedLog = BlockCompressedLog.open(BlockCompressedLog
+        .getCompressedFile(log));
+  }
+
+  public void testReadsAcrossBlocks() throws Exception {
+    assertEquals(19, compressedLog.size());
+    assertEquals(5, compressedLog.getBlockCount());
+    assertEquals(3, compressedLog.getBlockLength(4));
+
+    BlockCache.CompressedLogSource source = new BlockCache.CompressedLogSource(
+        cache, BlockCompressedLog.getCompressedFile(log), compressedLog);
+    assertEquals("second\n", read(source, 6, 7));
+    assertEquals("first\nsecond\nthird\n", read(source, 0, source.size()));
+
+    ByteBuffer bytes = ByteBuffer.allocate(4);
+    assertEquals(4, source.read(bytes, 2));
+    assertEquals("rst\n", new String(bytes.array(), 0, 4, "UTF-8"));
+    assertEquals(-1, source.read(bytes, 19));
+  }
+
+  public void testKeepsRecentBlocks() throws Exception {
+    BlockCache.CompressedLogSource source = new BlockCache.CompressedLogSource(
+        cache, BlockCompressedLog.getCompressedFile(log), compressedLog);
+    read(source, 0, source.size());
+    assertEquals(2, cache.size());
+
+    // Served from the cache once the file is gone
+    compressedLog.close();
+    assertEquals("ird\n", read(source, 15, 4));
+
+    cache.evictAll();
+    assertEquals(0, cache.size());
+  }
+
+  protected void tearDown() throws IOException {
+    cache.evictAll();
+    compressedLog.close();
+    BlockCompressedLog.getCompressedFile(log).delete();
+    log.delete();
+  }
+
+  private String read(LogSource source, long position, long count)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(count, source.transferTo(position, count, Channels
+        .newChannel(out)));
+
+    return out.toString("UTF-8");
+  }
+}
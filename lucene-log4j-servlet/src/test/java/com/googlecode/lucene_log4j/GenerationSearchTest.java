@@ -0,0 +1,133 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Tests that {@link GenerationSearch} stays within the high-water mark of the
+ * {@link GenerationManifest}, and reads compressed log files.
+ */
+public class GenerationSearchTest extends TestCase {
+
+  private IndexSearcherCache cache = new IndexSearcherCache();
+
+  private BlockCache blockCache = new BlockCache(4);
+
+  private File dir;
+
+  private File indexDir;
+
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("logs", "");
+    dir.delete();
+    dir.mkdir();
+    indexDir = new File(dir, "server.log_lucene");
+    indexDir.mkdir();
+
+    FileOutputStream log = new FileOutputStream(new File(dir, "server.log"));
+    log.write(new byte[30]);
+    log.close();
+  }
+
+  public void testStopsAtCommittedOffset() throws Exception {
+    // Three statements of 10 bytes, the last one not covered by the manifest
+    IndexWriter writer = new IndexWriter(indexDir, new WhitespaceAnalyzer(),
+        true);
+    GenerationManifest manifest = new GenerationManifest();
+    for (int i = 0; i < 3; i++) {
+      Document doc = new Document();
+      doc.add(Field.Keyword("uuid", "main"));
+      doc.add(Field.UnIndexed(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD,
+          "" + i * 10));
+      if (i < 2) {
+        manifest.add(i, i * 10, i * 10 + 10);
+      }
+      writer.addDocument(doc);
+    }
+    writer.close();
+    manifest.write(indexDir);
+
+    LogGenerations generations = new LogGenerations(indexDir.getPath(),
+        new File(dir, "server.log").getPath(), 0, cache, null, blockCache);
+    GenerationSearch search = new GenerationSearch(generations, 0, manifest
+        .getGenerationId(), new TermQuery(new Term("uuid", "main")), null, -1);
+    search.call();
+    search.close();
+
+    assertEquals(2, search.getCount());
+    assertEquals(2, search.getTotalHits());
+    assertEquals(10, search.getStarts()[1]);
+    // No end offset field, so the last one ends at the mark
+    assertEquals(20, search.getEnds()[1]);
+  }
+
+  public void testReadsCompressedLog() throws Exception {
+    File log = new File(dir, "server.log");
+    FileOutputStream out = new FileOutputStream(log);
+    out.write("line no 0\nline no 1\nline no 2\n".getBytes("UTF-8"));
+    out.close();
+
+    IndexWriter writer = new IndexWriter(indexDir, new WhitespaceAnalyzer(),
+        true);
+    GenerationManifest manifest = new GenerationManifest();
+    for (int i = 0; i < 3; i++) {
+      Document doc = new Document();
+      doc.add(Field.Keyword("uuid", "main"));
+      doc.add(Field.UnIndexed(FilePosTrackingRollingFileAppender.FILE_OFFSET_FIELD,
+          "" + i * 10));
+      manifest.add(i, i * 10, i * 10 + 10);
+      writer.addDocument(doc);
+    }
+    writer.close();
+    manifest.write(indexDir);
+
+    // Blocks smaller than a statement, as rolled over by the appender
+    BlockCompressedLog.compress(log, 8);
+    assertTrue(log.delete());
+
+    LogGenerations generations = new LogGenerations(indexDir.getPath(), log
+        .getPath(), 0, cache, null, blockCache);
+    assertTrue(generations.exists(0));
+    GenerationSearch search = new GenerationSearch(generations, 0, manifest
+        .getGenerationId(), new TermQuery(new Term("uuid", "main")), null, -1);
+    search.call();
+    try {
+      assertEquals(BlockCompressedLog.getCompressedFile(log), search.getLog());
+      assertEquals(3, search.getCount());
+      assertEquals(30, search.getSource().size());
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      assertEquals(10, search.getSource().transferTo(search.getStarts()[1],
+          10, Channels.newChannel(bytes)));
+      assertEquals("line no 1\n", bytes.toString("UTF-8"));
+    } finally {
+      search.close();
+    }
+  }
+
+  protected void tearDown() {
+    blockCache.evictAll();
+    cache.evictAll();
+    delete(dir);
+  }
+
+  private void delete(File file) {
+    File[] files = file.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      delete(files[i]);
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,103 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link IndexSearcherCache} against the pre-generated lucene sample we
+ * have in classpath.
+ */
+public class IndexSearcherCacheTest extends TestCase {
+
+  private IndexSearcherCache cache = new IndexSearcherCache();
+
+  public void testSharesSearcherUntilEvicted() throws Exception {
+    String rotatedDir = getIndexDir("server.log_lucene.1");
+
+    IndexSearcherCache.CachedSearcher first = cache.acquire(rotatedDir, true);
+    IndexSearcherCache.CachedSearcher second = cache.acquire(rotatedDir, true);
+    assertSame(first, second);
+
+    // A rollover while in use must not close the searcher under the request
+    cache.evictAll();
+    assertTrue(first.getSearcher().maxDoc() > 0);
+    cache.release(first);
+    cache.release(second);
+
+    IndexSearcherCache.CachedSearcher reopened = cache.acquire(rotatedDir, true);
+    assertNotSame(first, reopened);
+    cache.release(reopened);
+  }
+
+  public void testKeepsLiveSearcherWhileVersionIsUnchanged() throws Exception {
+    String liveDir = getIndexDir("server.log_lucene");
+
+    IndexSearcherCache.CachedSearcher first = cache.acquire(liveDir, false);
+    cache.release(first);
+    IndexSearcherCache.CachedSearcher second = cache.acquire(liveDir, false);
+    cache.release(second);
+
+    assertSame(first, second);
+  }
+
+  public void testEvictsOnlyExpiredGeneration() throws Exception {
+    String rotatedDir = getIndexDir("server.log_lucene.1");
+    String liveDir = getIndexDir("server.log_lucene");
+
+    IndexSearcherCache.CachedSearcher rotated = cache.acquire(rotatedDir, true);
+    cache.release(rotated);
+    IndexSearcherCache.CachedSearcher live = cache.acquire(liveDir, false);
+    cache.release(live);
+
+    cache.evict(rotatedDir);
+    IndexSearcherCache.CachedSearcher reopened = cache.acquire(rotatedDir, true);
+    cache.release(reopened);
+    IndexSearcherCache.CachedSearcher kept = cache.acquire(liveDir, false);
+    cache.release(kept);
+
+    assertNotSame(rotated, reopened);
+    assertSame(live, kept);
+  }
+
+  public void testConcurrentRequestsShareOneOpen() throws Exception {
+    final String rotatedDir = getIndexDir("server.log_lucene.1");
+    final IndexSearcherCache.CachedSearcher[] acquired =
+        new IndexSearcherCache.CachedSearcher[8];
+
+    // The index is opened outside the cache lock, once for all of them
+    Thread[] threads = new Thread[acquired.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int slot = i;
+      threads[i] = new Thread() {
+
+        public void run() {
+          try {
+            acquired[slot] = cache.acquire(rotatedDir, true);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+    }
+
+    for (int i = 0; i < acquired.length; i++) {
+      assertSame(acquired[0], acquired[i]);
+      cache.release(acquired[i]);
+    }
+  }
+
+  protected void tearDown() {
+    cache.evictAll();
+  }
+
+  private String getIndexDir(String name) throws UnsupportedEncodingException {
+    return URLDecoder.decode(getClass().getResource(name).getFile(), "UTF-8");
+  }
+}
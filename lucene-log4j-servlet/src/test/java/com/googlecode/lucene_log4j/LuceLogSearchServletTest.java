@@ -3,20 +3,29 @@ package com.googlecode.lucene_log4j;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
 import org.easymock.MockControl;
 
 import com.googlecode.lucene_log4j.LuceneLogSearchServlet;
@@ -24,10 +33,18 @@ import com.googlecode.lucene_log4j.LuceneLogSearchServlet;
 public class LuceLogSearchServletTest extends TestCase {
 
   public void testGetTxId() throws Exception {
-    HttpServletRequest mock = getMockHttpServletRequest();
+    assertGetTxId(null);
+  }
+
+  public void testGetTxIdWithoutMapping() throws Exception {
+    assertGetTxId("false");
+  }
+
+  private void assertGetTxId(String mapLogFiles) throws Exception {
+    HttpServletRequest mock = getMockHttpServletRequest(null, null);
 
     LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
-    luceLogSearchServlet.init(getMockServletConfig());
+    luceLogSearchServlet.init(getMockServletConfig(mapLogFiles));
 
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
     HttpServletResponse resp = getHttpServletResponse(outputStream);
@@ -39,13 +56,239 @@ public class LuceLogSearchServletTest extends TestCase {
     assertLogContent(expectedLogInputStream, new ByteArrayInputStream(outputStream.toByteArray()));
   }
 
-  private HttpServletRequest getMockHttpServletRequest() {
+  public void testGzipResponse() throws Exception {
+    LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
+    luceLogSearchServlet.init(getMockServletConfig());
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    luceLogSearchServlet.doGet(getMockHttpServletRequest(
+        "uuid:main currentTimeMillis:1255833788437", null, null, null,
+        "deflate;q=0.5, gzip"), getHttpServletResponse(outputStream));
+
+    InputStream expectedLogInputStream = getClass().getResourceAsStream(
+        "luceneLogSearchServlet_expected_output.txt");
+    assertLogContent(expectedLogInputStream, new GZIPInputStream(
+        new ByteArrayInputStream(outputStream.toByteArray())));
+  }
+
+  public void testNegotiateEncoding() {
+    assertNull(LuceneLogSearchServlet.negotiateEncoding(null));
+    assertNull(LuceneLogSearchServlet.negotiateEncoding("identity"));
+    assertEquals("gzip", LuceneLogSearchServlet.negotiateEncoding("gzip, deflate"));
+    assertEquals("gzip", LuceneLogSearchServlet.negotiateEncoding("*"));
+    assertEquals("deflate", LuceneLogSearchServlet
+        .negotiateEncoding("gzip;q=0, deflate;q=0.5"));
+    assertEquals("deflate", LuceneLogSearchServlet.negotiateEncoding("gzip;q=0.0, *"));
+    assertNull(LuceneLogSearchServlet.negotiateEncoding("*;q=0"));
+  }
+  public void testDebugResponseIsNotCompressed() throws Exception {
+    LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
+    luceLogSearchServlet.init(getMockServletConfig());
+
+    // An unsupported charset falls back to the log charset as well
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    luceLogSearchServlet.doGet(getMockHttpServletRequest(
+        "uuid:main currentTimeMillis:1255833788437", null, null, null, "gzip",
+        "true", "no-such-charset"), getHttpServletResponse(outputStream));
+
+    String output = outputStream.toString("UTF-8");
+    assertTrue(output, output.indexOf("Start of File") >= 0);
+  }
+
+  public void testInvalidQuery() throws Exception {
+    LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
+    luceLogSearchServlet.init(getMockServletConfig());
+
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    MockControl control = MockControl.createControl(HttpServletResponse.class);
+    HttpServletResponse resp = (HttpServletResponse) control.getMock();
+    resp.addHeader("Content-Type", "text/plain; charset=UTF-8");
+    resp.addHeader("Vary", "Accept-Encoding");
+    resp.getOutputStream();
+    control.setReturnValue(new ServletOutputStream() {
+      public void write(int b) {
+        outputStream.write(b);
+      }
+    });
+    // A client mistake, not a server failure
+    resp.setStatus(400);
+    control.replay();
+
+    luceLogSearchServlet.doGet(getMockHttpServletRequest("uuid:(main", null,
+        null, null), resp);
+    control.verify();
+
+    String output = outputStream.toString("UTF-8");
+    assertTrue(output, output.startsWith("Invalid query: uuid:(main"));
+    assertTrue(output, output.indexOf("at org.") < 0);
+  }
+
+  public void testLimitAndCursor() throws Exception {
+    LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
+    luceLogSearchServlet.init(getMockServletConfig());
+
+    BufferedReader expectedReader = new BufferedReader(new InputStreamReader(
+        getClass().getResourceAsStream("luceneLogSearchServlet_expected_output.txt")));
+
+    // Page through the first log statements, three at a time
+    String cursor = null;
+    for (int page = 0; page < 2; page++) {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      luceLogSearchServlet.doGet(getMockHttpServletRequest("3", cursor),
+          getHttpServletResponse(outputStream));
+
+      BufferedReader actualReader = new BufferedReader(new InputStreamReader(
+          new ByteArrayInputStream(outputStream.toByteArray())));
+      for (int i = 0; i < 3; i++) {
+        assertEquals(expectedReader.readLine(), actualReader.readLine());
+      }
+
+      String continuation = actualReader.readLine();
+      assertTrue(continuation, continuation.startsWith("Continue from cursor="));
+      cursor = continuation.substring("Continue from cursor=".length());
+      assertNull(actualReader.readLine());
+    }
+  }
+
+  public void testSearchMetrics() throws Exception {
+    LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
+    luceLogSearchServlet.init(getMockServletConfig());
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(
+        "com.googlecode.lucene_log4j:type=LuceneLogSearchServlet,name=\"luceneLogSearch\"");
+    assertTrue(server.isRegistered(name));
+
+    luceLogSearchServlet.doGet(getMockHttpServletRequest(null, null),
+        getHttpServletResponse(new ByteArrayOutputStream()));
+    assertEquals(new Long(1), server.getAttribute(name, "Requests"));
+    assertTrue(((Long) server.getAttribute(name, "TotalMaxMicros")).longValue() > 0);
+
+    luceLogSearchServlet.destroy();
+    assertFalse(server.isRegistered(name));
+  }
+
+  public void testCursorSurvivesRollOver() throws Exception {
+    assertCursorSurvivesRollOver("rename");
+  }
+
+  public void testCursorSurvivesSequenceRollOver() throws Exception {
+    assertCursorSurvivesRollOver("sequence");
+  }
+
+  private void assertCursorSurvivesRollOver(String rollOverMode)
+      throws Exception {
+    File logDir = File.createTempFile("logs", "");
+    logDir.delete();
+    logDir.mkdir();
+
+    Properties log4jConfig = new Properties();
+    log4jConfig.put("log4j.appender.R",
+        FilePosTrackingRollingFileAppender.class.getName());
+    log4jConfig.put("log4j.appender.R.file", new File(logDir, "server.log")
+        .getPath());
+    log4jConfig.put("log4j.appender.R.layout", "org.apache.log4j.PatternLayout");
+    log4jConfig.put("log4j.appender.R.layout.ConversionPattern", "%m%n");
+    log4jConfig.put("log4j.appender.R.MaxFileSize", "1KB");
+    log4jConfig.put("log4j.appender.R.MaxBackupIndex", "20");
+    log4jConfig.put("log4j.appender.R.Jmx", "false");
+    log4jConfig.put("log4j.appender.R.RollOverMode", rollOverMode);
+    log4jConfig.put("log4j.logger.rollOverTest", "ERROR, R");
+    PropertyConfigurator.configure(log4jConfig);
+    Logger logger = Logger.getLogger("rollOverTest");
+
+    try {
+      for (int i = 0; i < 100; i++) {
+        logger.error("Statement " + (1000 + i));
+      }
+
+      LuceneLogSearchServlet luceLogSearchServlet = new LuceneLogSearchServlet();
+      luceLogSearchServlet.init(getMockServletConfig(logDir.getPath()
+          + File.separator, "20", null));
+
+      // First page, oldest statements first
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      luceLogSearchServlet.doGet(getMockHttpServletRequest("uuid:main",
+          "chronological", "30", null), getHttpServletResponse(outputStream));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new ByteArrayInputStream(outputStream.toByteArray())));
+      for (int i = 0; i < 30; i++) {
+        assertEquals("Statement " + (1000 + i), reader.readLine());
+      }
+      String continuation = reader.readLine();
+      assertTrue(continuation, continuation.startsWith("Continue from cursor=g"));
+      String cursor = continuation.substring("Continue from cursor=".length());
+
+      // Shift every generation before asking for the next page
+      for (int i = 100; i < 200; i++) {
+        logger.error("Statement " + (1000 + i));
+      }
+
+      outputStream = new ByteArrayOutputStream();
+      luceLogSearchServlet.doGet(getMockHttpServletRequest("uuid:main",
+          "chronological", "30", cursor), getHttpServletResponse(outputStream));
+      reader = new BufferedReader(new InputStreamReader(
+          new ByteArrayInputStream(outputStream.toByteArray())));
+      for (int i = 30; i < 60; i++) {
+        assertEquals("Statement " + (1000 + i), reader.readLine());
+      }
+
+      luceLogSearchServlet.destroy();
+    } finally {
+      LogManager.resetConfiguration();
+      File[] files = logDir.listFiles();
+      for (int i = 0; i < files.length; i++) {
+        File[] indexFiles = files[i].listFiles();
+        for (int j = 0; indexFiles != null && j < indexFiles.length; j++) {
+          indexFiles[j].delete();
+        }
+        files[i].delete();
+      }
+      logDir.delete();
+    }
+  }
+
+  private HttpServletRequest getMockHttpServletRequest(String limit, String cursor) {
+    return getMockHttpServletRequest(
+        "uuid:main currentTimeMillis:1255833788437", null, limit, cursor);
+  }
+
+  private HttpServletRequest getMockHttpServletRequest(String query,
+      String order, String limit, String cursor) {
+    return getMockHttpServletRequest(query, order, limit, cursor, null);
+  }
+
+  private HttpServletRequest getMockHttpServletRequest(String query,
+      String order, String limit, String cursor, String acceptEncoding) {
+    return getMockHttpServletRequest(query, order, limit, cursor,
+        acceptEncoding, "false", null);
+  }
+
+  private HttpServletRequest getMockHttpServletRequest(String query,
+      String order, String limit, String cursor, String acceptEncoding,
+      String debug, String charset) {
     MockControl control = MockControl.createControl(HttpServletRequest.class);
     HttpServletRequest mock = (HttpServletRequest) control.getMock();
     mock.getParameter("query");
-    control.setReturnValue("uuid:main currentTimeMillis:1255833788437");
+    control.setReturnValue(query);
     mock.getParameter("debug");
-    control.setReturnValue("false");
+    control.setReturnValue(debug, MockControl.ONE_OR_MORE);
+    mock.getParameter("order");
+    control.setReturnValue(order);
+    mock.getParameter("charset");
+    control.setReturnValue(charset);
+    mock.getParameter("from");
+    control.setReturnValue(null);
+    mock.getParameter("to");
+    control.setReturnValue(null);
+    mock.getParameter("limit");
+    control.setReturnValue(limit);
+    mock.getParameter("offset");
+    control.setReturnValue(null);
+    mock.getParameter("cursor");
+    control.setReturnValue(cursor);
+    mock.getHeader("Accept-Encoding");
+    control.setReturnValue(acceptEncoding);
 
     control.replay();
 
@@ -53,6 +296,22 @@ public class LuceLogSearchServletTest extends TestCase {
   }
 
   private ServletConfig getMockServletConfig() {
+    return getMockServletConfig(null);
+  }
+
+  private ServletConfig getMockServletConfig(String mapLogFiles) {
+    URL logDirResource = getClass().getResource("");
+    try {
+      return getMockServletConfig(URLDecoder.decode(logDirResource.getFile(),
+          "UTF-8"), "10", mapLogFiles);
+    } catch (UnsupportedEncodingException e) {
+      // Should always support UTF-8 encoding but throwing an RuntimeException just in case
+      throw new RuntimeException(e);
+    }
+  }
+
+  private ServletConfig getMockServletConfig(String logDir,
+      String maxBackupIndex, String mapLogFiles) {
     MockControl control = MockControl.createControl(ServletConfig.class);
     ServletConfig mock = (ServletConfig) control.getMock();
 
@@ -64,18 +323,35 @@ public class LuceLogSearchServletTest extends TestCase {
     control.setReturnValue("server.log");
 
     mock.getInitParameter("logDir");
-    URL logDirResource = getClass().getResource("");
-    try {
-      control.setReturnValue(URLDecoder.decode(logDirResource.getFile(), "UTF-8"));
-    } catch (UnsupportedEncodingException e) {
-      // Should always support UTF-8 encoding but throwing an RuntimeException just in case
-      throw new RuntimeException(e);
-    }
+    control.setReturnValue(logDir);
 
     mock.getInitParameter("charset");
     control.setReturnValue("UTF-8");
     mock.getInitParameter("maxBackupIndex");
-    control.setReturnValue("10");
+    control.setReturnValue(maxBackupIndex);
+    mock.getInitParameter("searchThreads");
+    control.setReturnValue("4");
+    mock.getInitParameter("searchConcurrency");
+    control.setReturnValue("2");
+    mock.getInitParameter("maxLimit");
+    control.setReturnValue(null);
+    mock.getInitParameter("slowQueryThreshold");
+    control.setReturnValue(null);
+    mock.getServletName();
+    control.setReturnValue("luceneLogSearch");
+    mock.getInitParameter("mapLogFiles");
+    control.setReturnValue(mapLogFiles);
+    mock.getInitParameter("blockCacheSize");
+    control.setReturnValue(null);
+    mock.getInitParameter("compressResponse");
+    control.setReturnValue(null);
+    mock.getInitParameter("responseBufferSize");
+    control.setReturnValue(null);
+    mock.getInitParameter("flushBytes");
+    control.setReturnValue(null);
+    // Searches right after logging must see every statement
+    mock.getInitParameter("maxIndexLag");
+    control.setReturnValue("0");
     control.replay();
 
     return mock;
@@ -85,13 +361,19 @@ public class LuceLogSearchServletTest extends TestCase {
       final ByteArrayOutputStream outputStream) {
     MockControl control = MockControl.createControl(HttpServletResponse.class);
     HttpServletResponse mock = (HttpServletResponse) control.getMock();
+    mock.addHeader("Content-Type", "text/plain; charset=UTF-8");
+    mock.addHeader("Vary", "Accept-Encoding");
+    mock.setHeader("Content-Encoding", "gzip");
     try {
-      mock.getWriter();
+      mock.getOutputStream();
     } catch (IOException e) {
       throw new RuntimeException("This should not happen");
     }
-    control.setReturnValue(new PrintWriter(outputStream), MockControl.ZERO_OR_MORE);
-    mock.addHeader("Content-Type", "text/plain");
+    control.setReturnValue(new ServletOutputStream() {
+      public void write(int b) {
+        outputStream.write(b);
+      }
+    }, MockControl.ZERO_OR_MORE);
     control.replay();
 
     return mock;
@@ -0,0 +1,75 @@
+package com.googlecode.lucene_log4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MappedLogCache} on a growing and a replaced log file.
+ */
+public class MappedLogCacheTest extends TestCase {
+
+  private MappedLogCache cache = new MappedLogCache();
+
+  private File log;
+
+  protected void setUp() throws IOException {
+    log = File.createTempFile("server", ".log");
+  }
+
+  public void testMapsGrowingLog() throws Exception {
+    append("first\n", false);
+    MappedLogCache.MappedLog first = cache.get(log);
+    assertSame(first, cache.get(log));
+    assertEquals("first\n", read(first, 0, first.size()));
+
+    append("second\n", true);
+    MappedLogCache.MappedLog second = cache.get(log);
+    assertNotSame(first, second);
+    assertEquals(13, second.size());
+    assertEquals("second\n", read(second, 6, 7));
+
+    ByteBuffer bytes = ByteBuffer.allocate(4);
+    assertEquals(4, second.read(bytes, 2));
+    assertEquals("rst\n", new String(bytes.array(), 0, 4, "UTF-8"));
+    assertEquals(-1, second.read(bytes, 13));
+  }
+
+  public void testRemapsReplacedLog() throws Exception {
+    append("a long first log statement\n", false);
+    cache.get(log);
+
+    // Rolled over in another JVM
+    append("short\n", false);
+    MappedLogCache.MappedLog mapped = cache.get(log);
+    assertEquals("short\n", read(mapped, 0, mapped.size()));
+  }
+
+  protected void tearDown() {
+    cache.evictAll();
+    log.delete();
+  }
+
+  private void append(String text, boolean append) throws IOException {
+    FileOutputStream out = new FileOutputStream(log, append);
+    try {
+      out.write(text.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private String read(MappedLogCache.MappedLog mapped, long position,
+      long count) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(count, mapped.transferTo(position, count, Channels
+        .newChannel(out)));
+
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,67 @@
+package com.googlecode.lucene_log4j;
+
+import java.net.URLDecoder;
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.DateField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Tests {@link TimeRangeFilter} on current and legacy indexes.
+ */
+public class TimeRangeFilterTest extends TestCase {
+
+  public void testFiltersOnTimestampField() throws Exception {
+    RAMDirectory directory = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(directory, new WhitespaceAnalyzer(),
+        true);
+    long[] times = { 1000, 2000, 3000, 10000 };
+    for (int i = 0; i < times.length; i++) {
+      Document doc = new Document();
+      doc.add(Field.Keyword(FilePosTrackingRollingFileAppender.TIMESTAMP_FIELD,
+          DateField.timeToString(times[i])));
+      writer.addDocument(doc);
+    }
+    writer.close();
+
+    IndexReader reader = IndexReader.open(directory);
+    try {
+      BitSet bits = new TimeRangeFilter(1500, 3000).bits(reader);
+      assertEquals(2, bits.cardinality());
+      assertTrue(bits.get(1));
+      assertTrue(bits.get(2));
+
+      assertEquals(0, new TimeRangeFilter(20000, Long.MAX_VALUE).bits(reader)
+          .cardinality());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testFallsBackToCurrentTimeMillis() throws Exception {
+    String indexDir = URLDecoder.decode(getClass().getResource(
+        "server.log_lucene").getFile(), "UTF-8");
+    IndexReader reader = IndexReader.open(indexDir);
+    try {
+      TermEnum terms = reader.terms(new Term("currentTimeMillis", ""));
+      Term term = terms.term();
+      terms.close();
+
+      long time = Long.parseLong(term.text());
+      BitSet bits = new TimeRangeFilter(time, time).bits(reader);
+      assertTrue(bits.cardinality() > 0);
+      assertEquals(reader.docFreq(term), bits.cardinality());
+    } finally {
+      reader.close();
+    }
+  }
+}